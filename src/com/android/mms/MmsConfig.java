@@ -103,6 +103,11 @@ public class MmsConfig {
     private static int mAliasRuleMinChars = 2;
     private static int mAliasRuleMaxChars = 48;
 
+    // The number of queued SMS handed to SmsManager before the first one
+    // reports back as sent. Carriers which need strictly serial sending can
+    // set <int name="smsSendWindow">1</int>.
+    private static int mSmsSendWindow = 4;
+
     private static int mMaxSubjectLength = 40;  // maximum number of characters allowed for mms
                                                 // subject
 
@@ -286,6 +291,10 @@ public class MmsConfig {
         return mMaxSubjectLength;
     }
 
+    public static int getSmsSendWindow() {
+        return mSmsSendWindow;
+    }
+
     public static boolean getGroupMmsEnabled() {
         return mEnableGroupMms;
     }
@@ -403,6 +412,11 @@ public class MmsConfig {
                             mMaxTextLength = Integer.parseInt(text);
                         } else if ("maxSubjectLength".equalsIgnoreCase(value)) {
                             mMaxSubjectLength = Integer.parseInt(text);
+                        } else if ("smsSendWindow".equalsIgnoreCase(value)) {
+                            mSmsSendWindow = Integer.parseInt(text);
+                            if (mSmsSendWindow < 1) {
+                                mSmsSendWindow = 1;
+                            }
                         }
                     } else if ("string".equals(tag)) {
                         // string config tags go here
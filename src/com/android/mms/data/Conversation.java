@@ -2,9 +2,13 @@ package com.android.mms.data;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 import android.app.Activity;
 import android.content.AsyncQueryHandler;
@@ -615,6 +619,11 @@ public class Conversation {
                 recipients.add(c.getNumber());
             }
         }
+        String key = ThreadIdCache.keyFor(recipients);
+        long cached = ThreadIdCache.get(key);
+        if (cached > 0) {
+            return cached;
+        }
         synchronized(sDeletingThreadsLock) {
             if (DELETEDEBUG) {
                 ComposeMessageActivity.log("Conversation getOrCreateThreadId for: " +
@@ -636,6 +645,7 @@ public class Conversation {
                 }
             }
             long retVal = Threads.getOrCreateThreadId(context, recipients);
+            ThreadIdCache.put(key, retVal);
             if (DELETEDEBUG || Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
                 LogTag.debug("[Conversation] getOrCreateThreadId for (%s) returned %d",
                         recipients, retVal);
@@ -645,6 +655,11 @@ public class Conversation {
     }
 
     public static long getOrCreateThreadId(Context context, String address) {
+        String key = ThreadIdCache.keyFor(Collections.singleton(address));
+        long cached = ThreadIdCache.get(key);
+        if (cached > 0) {
+            return cached;
+        }
         synchronized(sDeletingThreadsLock) {
             if (DELETEDEBUG) {
                 ComposeMessageActivity.log("Conversation getOrCreateThreadId for: " +
@@ -666,6 +681,7 @@ public class Conversation {
                 }
             }
             long retVal = Threads.getOrCreateThreadId(context, address);
+            ThreadIdCache.put(key, retVal);
             if (DELETEDEBUG || Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
                 LogTag.debug("[Conversation] getOrCreateThreadId for (%s) returned %d",
                         address, retVal);
@@ -699,11 +715,30 @@ public class Conversation {
         return String.format("[%s] (tid %d)", mRecipients.serialize(), mThreadId);
     }
 
+    /**
+     * Forget the cached thread id of every recipient set. Call this after
+     * deleting threads other than through startDelete, startDeleteAll or
+     * asyncDeleteObsoleteThreads.
+     */
+    public static void invalidateThreadIdCache() {
+        ThreadIdCache.clear();
+    }
+
+    /**
+     * Forget the cached thread id of any recipient set mapped to the thread,
+     * e.g. after deleting what may have been its last message.
+     */
+    public static void invalidateThreadIdCache(long threadId) {
+        ThreadIdCache.remove(threadId);
+    }
+
     /**
      * Remove any obsolete conversations sitting around on disk. Obsolete threads are threads
      * that aren't referenced by any message in the pdu or sms tables.
      */
     public static void asyncDeleteObsoleteThreads(AsyncQueryHandler handler, int token) {
+        // Any cached thread may be about to go, e.g. one created for a draft.
+        ThreadIdCache.clear();
         handler.startDelete(token, null, Threads.OBSOLETE_THREADS_URI, null, null);
     }
 
@@ -774,6 +809,7 @@ public class Conversation {
                 String selection = deleteAll ? null : "locked=0";
 
                 handler.setDeleteToken(token);
+                ThreadIdCache.remove(threadId);
                 handler.startDelete(token, new Long(threadId), uri, selection, null);
 
                 DraftCache.getInstance().setDraftState(threadId, false);
@@ -805,6 +841,7 @@ public class Conversation {
             app.getPduLoaderManager().clear();
             app.getThumbnailManager().clear();
 
+            ThreadIdCache.clear();
             handler.setDeleteToken(token);
             handler.startDelete(token, new Long(-1), Threads.CONTENT_URI, selection, null);
         }
@@ -835,6 +872,13 @@ public class Conversation {
 
                 // release lock
                 synchronized(sDeletingThreadsLock) {
+                    // Drop anything cached for the deleted threads while the delete ran.
+                    long threadId = cookie instanceof Long ? (Long) cookie : -1;
+                    if (threadId == -1) {
+                        ThreadIdCache.clear();
+                    } else {
+                        ThreadIdCache.remove(threadId);
+                    }
                     sDeletingThreads = false;
                     if (DELETEDEBUG) {
                         Log.v(TAG, "Conversation onDeleteComplete sDeletingThreads: " +
@@ -1086,6 +1130,84 @@ public class Conversation {
         }
     }
 
+    /**
+     * Maps recipient sets to the thread ids the provider returned for them, so
+     * repeated traffic with the same correspondents skips the
+     * Threads.getOrCreateThreadId round-trip. The provider deletes a thread along
+     * with its last message, so every path which deletes threads or may delete the
+     * last message of one drops the entries pointing at it. Threads deleted by
+     * other apps are dropped by the obsolete thread sweep and cacheAllThreads().
+     */
+    private static class ThreadIdCache {
+        private static final int MAX_ENTRIES = 200;
+
+        private static final LinkedHashMap<String, Long> sThreadIds =
+                new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+        /**
+         * Build the cache key for a recipient set. Phone numbers are stripped of
+         * separators so differently formatted forms of a number share an entry.
+         */
+        static String keyFor(Collection<String> recipients) {
+            TreeSet<String> normalized = new TreeSet<String>();
+            for (String recipient : recipients) {
+                if (recipient == null) {
+                    continue;
+                }
+                normalized.add(Mms.isEmailAddress(recipient) ?
+                        recipient : PhoneNumberUtils.stripSeparators(recipient));
+            }
+            return TextUtils.join(";", normalized);
+        }
+
+        /**
+         * Return the cached thread id for the key, or 0 if there is none.
+         */
+        static synchronized long get(String key) {
+            Long threadId = sThreadIds.get(key);
+            return threadId != null ? threadId : 0;
+        }
+
+        static synchronized void put(String key, long threadId) {
+            if (threadId > 0) {
+                sThreadIds.put(key, threadId);
+            }
+        }
+
+        /**
+         * Remove every entry pointing at the thread.
+         */
+        static synchronized void remove(long threadId) {
+            Iterator<Long> iter = sThreadIds.values().iterator();
+            while (iter.hasNext()) {
+                if (iter.next() == threadId) {
+                    iter.remove();
+                }
+            }
+        }
+
+        /**
+         * Remove every entry pointing at a thread that is not in the set.
+         */
+        static synchronized void keepOnly(Set<Long> threads) {
+            Iterator<Long> iter = sThreadIds.values().iterator();
+            while (iter.hasNext()) {
+                if (!threads.contains(iter.next())) {
+                    iter.remove();
+                }
+            }
+        }
+
+        static synchronized void clear() {
+            sThreadIds.clear();
+        }
+    }
+
     /**
      * Set up the conversation cache.  To be called once at application
      * startup time.
@@ -1267,6 +1389,7 @@ public class Conversation {
 
         // Purge the cache of threads that no longer exist on disk.
         Cache.keepOnly(threadsOnDisk);
+        ThreadIdCache.keepOnly(threadsOnDisk);
 
         if (Log.isLoggable(LogTag.THREAD_CACHE, Log.VERBOSE)) {
             LogTag.debug("[Conversation] cacheAllThreads: finished");
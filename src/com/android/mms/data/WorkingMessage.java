@@ -379,7 +379,7 @@ public class WorkingMessage {
         mAttachmentType = TEXT;
         mSlideshow = null;
         if (mMessageUri != null) {
-            asyncDelete(mMessageUri, null, null);
+            asyncDelete(mMessageUri, null, null, mConversation.getThreadId());
             mMessageUri = null;
         }
         // mark this message as no longer having an attachment
@@ -1773,7 +1773,12 @@ public class WorkingMessage {
         mMessageUri = null;
     }
 
-    private void asyncDelete(final Uri uri, final String selection, final String[] selectionArgs) {
+    /**
+     * Delete in the background. The deleted messages may be the last ones of the thread,
+     * which the provider then deletes too, so its cached thread id is dropped after.
+     */
+    private void asyncDelete(final Uri uri, final String selection, final String[] selectionArgs,
+            final long threadId) {
         if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
             LogTag.debug("asyncDelete %s where %s", uri, selection);
         }
@@ -1781,6 +1786,9 @@ public class WorkingMessage {
             @Override
             public void run() {
                 SqliteWrapper.delete(mActivity, mContentResolver, uri, selection, selectionArgs);
+                if (threadId > 0) {
+                    Conversation.invalidateThreadIdCache(threadId);
+                }
             }
         }, "WorkingMessage.asyncDelete").start();
     }
@@ -1791,7 +1799,7 @@ public class WorkingMessage {
         final long threadId = conv.getThreadId();
         if (threadId > 0) {
             asyncDelete(ContentUris.withAppendedId(Sms.Conversations.CONTENT_URI, threadId),
-                SMS_DRAFT_WHERE, null);
+                SMS_DRAFT_WHERE, null, threadId);
         }
     }
 
@@ -1799,6 +1807,7 @@ public class WorkingMessage {
         SqliteWrapper.delete(mActivity, mContentResolver,
                 ContentUris.withAppendedId(Sms.Conversations.CONTENT_URI, threadId),
                 SMS_DRAFT_WHERE, null);
+        Conversation.invalidateThreadIdCache(threadId);
     }
 
     private void asyncDeleteDraftMmsMessage(Conversation conv) {
@@ -1808,7 +1817,7 @@ public class WorkingMessage {
         // If the thread id is < 1, then the thread_id in the pdu will be "" or NULL. We have
         // to clear those messages as well as ones with a valid thread id.
         final String where = Mms.THREAD_ID +  (threadId > 0 ? " = " + threadId : " IS NULL");
-        asyncDelete(Mms.Draft.CONTENT_URI, where, null);
+        asyncDelete(Mms.Draft.CONTENT_URI, where, null, threadId);
     }
 
     /**
@@ -62,6 +62,7 @@ public class AttrImpl extends NodeImpl implements Attr {
 	// internal mValue member.
 	public void setValue(String value) throws DOMException {
 		mValue = value;
+		mOwnerDocument.notifyModified();
 	}
 	
     /*
@@ -34,6 +34,7 @@ import org.w3c.dom.ProcessingInstruction;
 import org.w3c.dom.Text;
 
 public abstract class DocumentImpl extends NodeImpl implements Document {
+    private int mModificationCount;
 
     /*
      * Internal methods
@@ -43,6 +44,19 @@ public abstract class DocumentImpl extends NodeImpl implements Document {
         super(null);
     }
 
+    /**
+     * @return A count which changes whenever an attribute of this document is set or a
+     *         node is added to or removed from its tree. Values derived from the
+     *         document can be cached along with it and dropped once it has changed.
+     */
+    public int getModificationCount() {
+        return mModificationCount;
+    }
+
+    void notifyModified() {
+        mModificationCount++;
+    }
+
     /*
      * Document Interface Methods
      */
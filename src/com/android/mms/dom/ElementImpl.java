@@ -26,7 +26,7 @@ import org.w3c.dom.TypeInfo;
 
 public class ElementImpl extends NodeImpl implements Element {
     private String mTagName;
-    private NamedNodeMap mAttributes = new NamedNodeMapImpl();
+    private final NamedNodeMap mAttributes = new NamedNodeMapImpl();
 
     /*
      * Internal methods
@@ -106,9 +106,9 @@ public class ElementImpl extends NodeImpl implements Element {
         Attr attribute = getAttributeNode(name);
         if (attribute == null) {
             attribute = mOwnerDocument.createAttribute(name);
+            mAttributes.setNamedItem(attribute);
         }
         attribute.setNodeValue(value);
-        mAttributes.setNamedItem(attribute);
     }
 
     public void setAttributeNS(String namespaceURI, String qualifiedName,
@@ -17,29 +17,26 @@
 
 package com.android.mms.dom;
 
-import java.util.Vector;
+import java.util.Arrays;
 
 import org.w3c.dom.DOMException;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
 public class NamedNodeMapImpl implements NamedNodeMap {
+    // SMIL elements have a handful of attributes, which a linear search finds fastest.
+    private static final int INITIAL_CAPACITY = 4;
 
-    private Vector<Node> mNodes = new Vector<Node>();
+    private Node[] mNodes;
+    private int mCount;
 
     public int getLength() {
-        return mNodes.size();
+        return mCount;
     }
 
     public Node getNamedItem(String name) {
-        Node node = null;
-        for (int i = 0; i < mNodes.size(); i++) {
-            if (name.equals(mNodes.elementAt(i).getNodeName())) {
-                node = mNodes.elementAt(i);
-                break;
-            }
-        }
-        return node;
+        int index = indexOf(name);
+        return (index >= 0) ? mNodes[index] : null;
     }
 
     public Node getNamedItemNS(String namespaceURI, String localName) {
@@ -48,19 +45,21 @@ public class NamedNodeMapImpl implements NamedNodeMap {
     }
 
     public Node item(int index) {
-        if (index < mNodes.size()) {
-            return mNodes.elementAt(index);
+        if ((index >= 0) && (index < mCount)) {
+            return mNodes[index];
         }
         return null;
     }
 
     public Node removeNamedItem(String name) throws DOMException {
-        Node node = getNamedItem(name);
-        if (node == null) {
+        int index = indexOf(name);
+        if (index < 0) {
             throw new DOMException(DOMException.NOT_FOUND_ERR, "Not found");
-        } else {
-            mNodes.remove(node);
         }
+        Node node = mNodes[index];
+        System.arraycopy(mNodes, index + 1, mNodes, index, mCount - index - 1);
+        mNodes[--mCount] = null;
+        notifyModified(node);
         return node;
     }
 
@@ -71,12 +70,23 @@ public class NamedNodeMapImpl implements NamedNodeMap {
     }
 
     public Node setNamedItem(Node arg) throws DOMException {
-        Node existing = getNamedItem(arg.getNodeName());
-        if (existing != null) {
-            mNodes.remove(existing);
+        // A node replacing another one with the same name takes its place.
+        int index = indexOf(arg.getNodeName());
+        if (index >= 0) {
+            Node existing = mNodes[index];
+            mNodes[index] = arg;
+            notifyModified(arg);
+            return existing;
         }
-        mNodes.add(arg);
-        return existing;
+
+        if (mNodes == null) {
+            mNodes = new Node[INITIAL_CAPACITY];
+        } else if (mCount == mNodes.length) {
+            mNodes = Arrays.copyOf(mNodes, mCount * 2);
+        }
+        mNodes[mCount++] = arg;
+        notifyModified(arg);
+        return null;
     }
 
     public Node setNamedItemNS(Node arg) throws DOMException {
@@ -84,4 +94,19 @@ public class NamedNodeMapImpl implements NamedNodeMap {
         return null;
     }
 
+    private static void notifyModified(Node node) {
+        DocumentImpl document = ((NodeImpl) node).mOwnerDocument;
+        if (document != null) {
+            document.notifyModified();
+        }
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < mCount; i++) {
+            if (name.equals(mNodes[i].getNodeName())) {
+                return i;
+            }
+        }
+        return -1;
+    }
 }
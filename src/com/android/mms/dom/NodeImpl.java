@@ -17,9 +17,6 @@
 
 package com.android.mms.dom;
 
-import java.util.NoSuchElementException;
-import java.util.Vector;
-
 import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
 import org.w3c.dom.NamedNodeMap;
@@ -34,10 +31,15 @@ import org.w3c.dom.events.EventTarget;
 import com.android.mms.dom.events.EventTargetImpl;
 
 public abstract class NodeImpl implements Node, EventTarget {
-    private Node mParentNode;
-    private final Vector<Node> mChildNodes = new Vector<Node>();
+    private NodeImpl mParentNode;
+    // The children of a node are a doubly linked list through their sibling links.
+    private NodeImpl mFirstChild;
+    private NodeImpl mLastChild;
+    private NodeImpl mPreviousSibling;
+    private NodeImpl mNextSibling;
     DocumentImpl mOwnerDocument;
-    private final EventTarget mEventTarget = new EventTargetImpl(this);
+    // Created with the first listener or event, which most nodes never get.
+    private EventTargetImpl mEventTarget;
 
     /*
      * Internal methods
@@ -52,9 +54,18 @@ public abstract class NodeImpl implements Node, EventTarget {
      */
 
     public Node appendChild(Node newChild) throws DOMException {
-        ((NodeImpl)newChild).setParentNode(this);
-        mChildNodes.remove(newChild);
-        mChildNodes.add(newChild);
+        NodeImpl child = (NodeImpl) newChild;
+        if (child.mParentNode != null) {
+            child.mParentNode.unlinkChild(child);
+        }
+        child.mPreviousSibling = mLastChild;
+        if (mLastChild != null) {
+            mLastChild.mNextSibling = child;
+        } else {
+            mFirstChild = child;
+        }
+        mLastChild = child;
+        child.setParentNode(this);
         return newChild;
     }
 
@@ -73,25 +84,11 @@ public abstract class NodeImpl implements Node, EventTarget {
     }
 
     public Node getFirstChild() {
-        Node firstChild = null;
-        try {
-            firstChild = mChildNodes.firstElement();
-        }
-        catch (NoSuchElementException e) {
-            // Ignore and return null
-        }
-        return firstChild;
+        return mFirstChild;
     }
 
     public Node getLastChild() {
-        Node lastChild = null;
-        try {
-            lastChild = mChildNodes.lastElement();
-        }
-        catch (NoSuchElementException e) {
-            // Ignore and return null
-        }
-        return lastChild;
+        return mLastChild;
     }
 
     public String getLocalName() {
@@ -105,12 +102,7 @@ public abstract class NodeImpl implements Node, EventTarget {
     }
 
     public Node getNextSibling() {
-        if ((mParentNode != null) && (this != mParentNode.getLastChild())) {
-            Vector<Node> siblings = ((NodeImpl)mParentNode).mChildNodes;
-            int indexOfThis = siblings.indexOf(this);
-            return siblings.elementAt(indexOfThis + 1);
-        }
-        return null;
+        return mNextSibling;
     }
 
     public abstract String getNodeName();
@@ -136,12 +128,7 @@ public abstract class NodeImpl implements Node, EventTarget {
     }
 
     public Node getPreviousSibling() {
-        if ((mParentNode != null) && (this != mParentNode.getFirstChild())) {
-            Vector<Node> siblings = ((NodeImpl)mParentNode).mChildNodes;
-            int indexOfThis = siblings.indexOf(this);
-            return siblings.elementAt(indexOfThis - 1);
-        }
-        return null;
+        return mPreviousSibling;
     }
 
     public boolean hasAttributes() {
@@ -150,7 +137,7 @@ public abstract class NodeImpl implements Node, EventTarget {
     }
 
     public boolean hasChildNodes() {
-        return !(mChildNodes.isEmpty());
+        return mFirstChild != null;
     }
 
     public Node insertBefore(Node newChild, Node refChild) throws DOMException {
@@ -168,9 +155,10 @@ public abstract class NodeImpl implements Node, EventTarget {
     }
 
     public Node removeChild(Node oldChild) throws DOMException {
-        if (mChildNodes.contains(oldChild)) {
-            mChildNodes.remove(oldChild);
-            ((NodeImpl)oldChild).setParentNode(null);
+        NodeImpl child = (NodeImpl) oldChild;
+        if (child.mParentNode == this) {
+            unlinkChild(child);
+            child.setParentNode(null);
         } else {
             throw new DOMException(DOMException.NOT_FOUND_ERR, "Child does not exist");
         }
@@ -178,16 +166,30 @@ public abstract class NodeImpl implements Node, EventTarget {
     }
 
     public Node replaceChild(Node newChild, Node oldChild) throws DOMException {
-        if (mChildNodes.contains(oldChild)) {
-            // Try to remove the new child if available
-            try {
-                mChildNodes.remove(newChild);
-            } catch (DOMException e) {
-                // Ignore exception
+        NodeImpl oldNode = (NodeImpl) oldChild;
+        NodeImpl newNode = (NodeImpl) newChild;
+        if (oldNode.mParentNode == this) {
+            if (newNode != oldNode) {
+                if (newNode.mParentNode != null) {
+                    newNode.mParentNode.unlinkChild(newNode);
+                }
+                newNode.mPreviousSibling = oldNode.mPreviousSibling;
+                newNode.mNextSibling = oldNode.mNextSibling;
+                if (newNode.mPreviousSibling != null) {
+                    newNode.mPreviousSibling.mNextSibling = newNode;
+                } else {
+                    mFirstChild = newNode;
+                }
+                if (newNode.mNextSibling != null) {
+                    newNode.mNextSibling.mPreviousSibling = newNode;
+                } else {
+                    mLastChild = newNode;
+                }
+                oldNode.mPreviousSibling = null;
+                oldNode.mNextSibling = null;
+                newNode.setParentNode(this);
+                oldNode.setParentNode(null);
             }
-            mChildNodes.setElementAt(newChild, mChildNodes.indexOf(oldChild));
-            ((NodeImpl)newChild).setParentNode(this);
-            ((NodeImpl)oldChild).setParentNode(null);
         } else {
             throw new DOMException(DOMException.NOT_FOUND_ERR, "Old child does not exist");
         }
@@ -202,8 +204,26 @@ public abstract class NodeImpl implements Node, EventTarget {
         // TODO Auto-generated method stub
     }
 
-    private void setParentNode(Node parentNode) {
+    private void unlinkChild(NodeImpl child) {
+        if (child.mPreviousSibling != null) {
+            child.mPreviousSibling.mNextSibling = child.mNextSibling;
+        } else {
+            mFirstChild = child.mNextSibling;
+        }
+        if (child.mNextSibling != null) {
+            child.mNextSibling.mPreviousSibling = child.mPreviousSibling;
+        } else {
+            mLastChild = child.mPreviousSibling;
+        }
+        child.mPreviousSibling = null;
+        child.mNextSibling = null;
+    }
+
+    private void setParentNode(NodeImpl parentNode) {
         mParentNode = parentNode;
+        if (mOwnerDocument != null) {
+            mOwnerDocument.notifyModified();
+        }
     }
 
     /*
@@ -211,15 +231,24 @@ public abstract class NodeImpl implements Node, EventTarget {
      */
 
     public void addEventListener(String type, EventListener listener, boolean useCapture) {
-        mEventTarget.addEventListener(type, listener, useCapture);
+        getEventTarget().addEventListener(type, listener, useCapture);
     }
 
     public void removeEventListener(String type, EventListener listener, boolean useCapture) {
-        mEventTarget.removeEventListener(type, listener, useCapture);
+        if (mEventTarget != null) {
+            mEventTarget.removeEventListener(type, listener, useCapture);
+        }
     }
 
     public boolean dispatchEvent(Event evt) throws EventException {
-        return mEventTarget.dispatchEvent(evt);
+        return getEventTarget().dispatchEvent(evt);
+    }
+
+    private EventTarget getEventTarget() {
+        if (mEventTarget == null) {
+            mEventTarget = new EventTargetImpl(this);
+        }
+        return mEventTarget;
     }
 
     public String getBaseURI() {
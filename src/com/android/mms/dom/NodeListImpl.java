@@ -28,6 +28,8 @@ public class NodeListImpl implements NodeList {
     private Node mRootNode;
     private String mTagName;
     private boolean mDeepSearch;
+    // The modification count of the document when mSearchNodes was filled.
+    private int mSearchModificationCount;
 
     /*
      * Internal Interface
@@ -62,7 +64,7 @@ public class NodeListImpl implements NodeList {
 
     public int getLength() {
         if (mStaticNodes == null) {
-            fillList(mRootNode);
+            updateList();
             return mSearchNodes.size();
         } else {
             return mStaticNodes.size();
@@ -72,7 +74,7 @@ public class NodeListImpl implements NodeList {
     public Node item(int index) {
         Node node = null;
         if (mStaticNodes == null) {
-            fillList(mRootNode);
+            updateList();
             try {
                 node = mSearchNodes.get(index);
             } catch (IndexOutOfBoundsException e) {
@@ -88,6 +90,20 @@ public class NodeListImpl implements NodeList {
         return node;
     }
 
+    /**
+     * Searches the tree again if it has changed since the last search, so that the
+     * list stays live without a traversal for every call to getLength() and item().
+     */
+    private void updateList() {
+        DocumentImpl document = (mRootNode instanceof DocumentImpl)
+                ? (DocumentImpl) mRootNode : ((NodeImpl) mRootNode).mOwnerDocument;
+        int modificationCount = document.getModificationCount();
+        if ((mSearchNodes == null) || (modificationCount != mSearchModificationCount)) {
+            fillList(mRootNode);
+            mSearchModificationCount = modificationCount;
+        }
+    }
+
     /**
      * A preorder traversal is done in the following order:
      * <ul>
@@ -102,7 +118,11 @@ public class NodeListImpl implements NodeList {
         // (Re)-initialize the container if this is the start of the search.
         // Visit the root of this iteration otherwise.
         if (node == mRootNode) {
-            mSearchNodes = new ArrayList<Node>();
+            if (mSearchNodes == null) {
+                mSearchNodes = new ArrayList<Node>();
+            } else {
+                mSearchNodes.clear();
+            }
         } else {
             if ((mTagName == null) || node.getNodeName().equals(mTagName)) {
                 mSearchNodes.add(node);
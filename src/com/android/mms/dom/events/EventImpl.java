@@ -41,7 +41,7 @@ public class EventImpl implements Event {
     private EventTarget mCurrentTarget;
     private int mSeekTo;
 
-    private final long mTimeStamp = System.currentTimeMillis();
+    private long mTimeStamp = System.currentTimeMillis();
 
     public boolean getBubbles() {
         return mCanBubble;
@@ -109,6 +109,16 @@ public class EventImpl implements Event {
         return mStopPropagation;
     }
 
+    /**
+     * Clears what a previous dispatch left in the event, so that an event can be kept
+     * and dispatched again instead of creating one for every dispatch.
+     */
+    void resetDispatchState() {
+        mStopPropagation = false;
+        mPreventDefault = false;
+        mTimeStamp = System.currentTimeMillis();
+    }
+
     void setTarget(EventTarget target) {
         mTarget = target;
     }
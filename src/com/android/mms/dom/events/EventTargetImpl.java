@@ -19,7 +19,7 @@ package com.android.mms.dom.events;
 
 import com.android.mms.LogTag;
 
-import java.util.ArrayList;
+import java.util.HashMap;
 
 import org.w3c.dom.events.Event;
 import org.w3c.dom.events.EventException;
@@ -30,7 +30,12 @@ import android.util.Log;
 
 public class EventTargetImpl implements EventTarget {
     private static final String TAG = LogTag.TAG;
-    private ArrayList<EventListenerEntry> mListenerEntries;
+    private static final EventListenerEntry[] NO_ENTRIES = new EventListenerEntry[0];
+
+    // The listeners of each event type, in the order they were added. An array is
+    // replaced rather than changed, so that dispatchEvent() can run over it while the
+    // listeners it calls add or remove others.
+    private HashMap<String, EventListenerEntry[]> mListenerEntries;
     private EventTarget mNodeTarget;
 
     static class EventListenerEntry
@@ -60,9 +65,16 @@ public class EventTargetImpl implements EventTarget {
         removeEventListener(type, listener, useCapture);
 
         if (mListenerEntries == null) {
-            mListenerEntries = new ArrayList<EventListenerEntry>();
+            mListenerEntries = new HashMap<String, EventListenerEntry[]>();
+        }
+        EventListenerEntry[] entries = mListenerEntries.get(type);
+        if (entries == null) {
+            entries = NO_ENTRIES;
         }
-        mListenerEntries.add(new EventListenerEntry(type, listener, useCapture));
+        EventListenerEntry[] newEntries = new EventListenerEntry[entries.length + 1];
+        System.arraycopy(entries, 0, newEntries, 0, entries.length);
+        newEntries[entries.length] = new EventListenerEntry(type, listener, useCapture);
+        mListenerEntries.put(type, newEntries);
     }
 
     public boolean dispatchEvent(Event evt) throws EventException {
@@ -77,7 +89,8 @@ public class EventTargetImpl implements EventTarget {
                     "Unspecified even type");
         }
 
-        // Initialize event status
+        // Initialize event status. The event may have been dispatched before.
+        eventImpl.resetDispatchState();
         eventImpl.setTarget(mNodeTarget);
 
         // TODO: At this point, to support event capturing and bubbling, we should
@@ -90,11 +103,12 @@ public class EventTargetImpl implements EventTarget {
         // Invoke handleEvent of non-capturing listeners on this EventTarget.
         eventImpl.setEventPhase(Event.AT_TARGET);
         eventImpl.setCurrentTarget(mNodeTarget);
-        if (!eventImpl.isPropogationStopped() && (mListenerEntries != null)) {
-            for (int i = 0; i < mListenerEntries.size(); i++) {
-                EventListenerEntry listenerEntry = mListenerEntries.get(i);
-                if (!listenerEntry.mUseCapture
-                        && listenerEntry.mType.equals(eventImpl.getType())) {
+        EventListenerEntry[] entries = (mListenerEntries != null)
+                ? mListenerEntries.get(eventImpl.getType()) : null;
+        if (!eventImpl.isPropogationStopped() && (entries != null)) {
+            for (int i = 0; i < entries.length; i++) {
+                EventListenerEntry listenerEntry = entries[i];
+                if (!listenerEntry.mUseCapture) {
                     try {
                         listenerEntry.mListener.handleEvent(eventImpl);
                     }
@@ -119,12 +133,22 @@ public class EventTargetImpl implements EventTarget {
         if (null == mListenerEntries) {
             return;
         }
-        for (int i = 0; i < mListenerEntries.size(); i ++) {
-            EventListenerEntry listenerEntry = mListenerEntries.get(i);
+        EventListenerEntry[] entries = mListenerEntries.get(type);
+        if (entries == null) {
+            return;
+        }
+        for (int i = 0; i < entries.length; i ++) {
+            EventListenerEntry listenerEntry = entries[i];
             if ((listenerEntry.mUseCapture == useCapture)
-                    && (listenerEntry.mListener == listener)
-                    && listenerEntry.mType.equals(type)) {
-                mListenerEntries.remove(i);
+                    && (listenerEntry.mListener == listener)) {
+                if (entries.length == 1) {
+                    mListenerEntries.remove(type);
+                } else {
+                    EventListenerEntry[] newEntries = new EventListenerEntry[entries.length - 1];
+                    System.arraycopy(entries, 0, newEntries, 0, i);
+                    System.arraycopy(entries, i + 1, newEntries, i, newEntries.length - i);
+                    mListenerEntries.put(type, newEntries);
+                }
                 break;
             }
         }
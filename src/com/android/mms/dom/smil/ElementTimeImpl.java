@@ -18,6 +18,7 @@
 package com.android.mms.dom.smil;
 
 import com.android.mms.LogTag;
+import com.android.mms.dom.DocumentImpl;
 
 import java.util.ArrayList;
 
@@ -42,6 +43,22 @@ public abstract class ElementTimeImpl implements ElementTime {
 
     final SMILElement mSmilElement;
 
+    /*
+     * The values returned by the getters below, parsed on first use. They are valid
+     * while the modification count of the owner document is mCacheModificationCount;
+     * any attribute set or node added or removed anywhere in the document drops them,
+     * since the end and fill of an element also depend on its parent and children.
+     */
+    private int mCacheModificationCount;
+    private TimeList mBegin;
+    private TimeList mEnd;
+    private float mDur = Float.NaN;
+    private short mFill = -1;
+    private short mFillDefault = -1;
+    private float mRepeatCount = Float.NaN;
+    private float mRepeatDur = Float.NaN;
+    private short mRestart = -1;
+
     /*
      * Internal Interface
      */
@@ -49,6 +66,22 @@ public abstract class ElementTimeImpl implements ElementTime {
         mSmilElement = element;
     }
 
+    private void validateCache() {
+        int modificationCount =
+                ((DocumentImpl) mSmilElement.getOwnerDocument()).getModificationCount();
+        if (modificationCount != mCacheModificationCount) {
+            mCacheModificationCount = modificationCount;
+            mBegin = null;
+            mEnd = null;
+            mDur = Float.NaN;
+            mFill = -1;
+            mFillDefault = -1;
+            mRepeatCount = Float.NaN;
+            mRepeatDur = Float.NaN;
+            mRestart = -1;
+        }
+    }
+
     // Default implementation. Override if required.
     int getBeginConstraints() {
         return TimeImpl.ALLOW_ALL;
@@ -70,6 +103,14 @@ public abstract class ElementTimeImpl implements ElementTime {
      */
 
     public TimeList getBegin() {
+        validateCache();
+        if (mBegin == null) {
+            mBegin = parseBegin();
+        }
+        return mBegin;
+    }
+
+    private TimeList parseBegin() {
         String[] beginTimeStringList = mSmilElement.getAttribute("begin").split(";");
 
         // TODO: Check other constraints on parsed values, e.g., "single, non-negative offset values
@@ -108,6 +149,14 @@ public abstract class ElementTimeImpl implements ElementTime {
     }
 
     public float getDur() {
+        validateCache();
+        if (Float.isNaN(mDur)) {
+            mDur = parseDur();
+        }
+        return mDur;
+    }
+
+    private float parseDur() {
         float dur = 0;
         try {
             String durString = mSmilElement.getAttribute("dur");
@@ -122,6 +171,14 @@ public abstract class ElementTimeImpl implements ElementTime {
     }
 
     public TimeList getEnd() {
+        validateCache();
+        if (mEnd == null) {
+            mEnd = parseEnd();
+        }
+        return mEnd;
+    }
+
+    private TimeList parseEnd() {
         ArrayList<Time> endTimeList = new ArrayList<Time>();
 
         String[] endTimeStringList = mSmilElement.getAttribute("end").split(";");
@@ -173,6 +230,14 @@ public abstract class ElementTimeImpl implements ElementTime {
     }
 
     public short getFill() {
+        validateCache();
+        if (mFill == -1) {
+            mFill = parseFill();
+        }
+        return mFill;
+    }
+
+    private short parseFill() {
         String fill = mSmilElement.getAttribute(FILL_ATTRIBUTE_NAME);
         if (fill.equalsIgnoreCase(FILL_FREEZE_ATTRIBUTE)) {
             return FILL_FREEZE;
@@ -218,6 +283,14 @@ public abstract class ElementTimeImpl implements ElementTime {
     }
 
     public short getFillDefault() {
+        validateCache();
+        if (mFillDefault == -1) {
+            mFillDefault = parseFillDefault();
+        }
+        return mFillDefault;
+    }
+
+    private short parseFillDefault() {
         String fillDefault = mSmilElement.getAttribute(FILLDEFAULT_ATTRIBUTE_NAME);
         if (fillDefault.equalsIgnoreCase(FILL_REMOVE_ATTRIBUTE)) {
             return FILL_REMOVE;
@@ -252,6 +325,14 @@ public abstract class ElementTimeImpl implements ElementTime {
     }
 
     public float getRepeatCount() {
+        validateCache();
+        if (Float.isNaN(mRepeatCount)) {
+            mRepeatCount = parseRepeatCount();
+        }
+        return mRepeatCount;
+    }
+
+    private float parseRepeatCount() {
         String repeatCount = mSmilElement.getAttribute("repeatCount");
         try {
             float value = Float.parseFloat(repeatCount);
@@ -266,6 +347,14 @@ public abstract class ElementTimeImpl implements ElementTime {
     }
 
     public float getRepeatDur() {
+        validateCache();
+        if (Float.isNaN(mRepeatDur)) {
+            mRepeatDur = parseRepeatDur();
+        }
+        return mRepeatDur;
+    }
+
+    private float parseRepeatDur() {
         try {
             float repeatDur =
                 TimeImpl.parseClockValue(mSmilElement.getAttribute("repeatDur"));
@@ -280,6 +369,14 @@ public abstract class ElementTimeImpl implements ElementTime {
     }
 
     public short getRestart() {
+        validateCache();
+        if (mRestart == -1) {
+            mRestart = parseRestart();
+        }
+        return mRestart;
+    }
+
+    private short parseRestart() {
         String restart = mSmilElement.getAttribute("restart");
         if (restart.equalsIgnoreCase("never")) {
             return RESTART_NEVER;
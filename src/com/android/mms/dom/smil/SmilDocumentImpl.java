@@ -41,6 +41,9 @@ public class SmilDocumentImpl extends DocumentImpl implements SMILDocument, Docu
      */
     ElementSequentialTimeContainer mSeqTimeContainer;
 
+    // The timeline SmilPlayer built for the document, see SmilPlayer.getCompiledTimeline().
+    SmilTimeline mTimeline;
+
     public final static String SMIL_DOCUMENT_START_EVENT = "SmilDocumentStart";
     public final static String SMIL_DOCUMENT_END_EVENT = "SimlDocumentEnd";
 
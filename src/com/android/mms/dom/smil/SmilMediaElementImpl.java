@@ -40,6 +40,12 @@ public class SmilMediaElementImpl extends SmilElementImpl implements
     private static final boolean LOCAL_LOGV = false;
 
     ElementTime mElementTime = new ElementTimeImpl(this) {
+            // These events carry nothing but their type, so the element dispatches
+            // the same ones every time instead of creating new ones.
+            private Event mStartEvent;
+            private Event mEndEvent;
+            private Event mPauseEvent;
+
             private Event createEvent(String eventType) {
                 DocumentEvent doc =
                     (DocumentEvent)SmilMediaElementImpl.this.getOwnerDocument();
@@ -69,25 +75,31 @@ public class SmilMediaElementImpl extends SmilElementImpl implements
             }
 
             public boolean beginElement() {
-                Event startEvent = createEvent(SMIL_MEDIA_START_EVENT);
-                dispatchEvent(startEvent);
+                if (mStartEvent == null) {
+                    mStartEvent = createEvent(SMIL_MEDIA_START_EVENT);
+                }
+                dispatchEvent(mStartEvent);
                 return true;
             }
 
             public boolean endElement() {
-                Event endEvent = createEvent(SMIL_MEDIA_END_EVENT);
-                dispatchEvent(endEvent);
+                if (mEndEvent == null) {
+                    mEndEvent = createEvent(SMIL_MEDIA_END_EVENT);
+                }
+                dispatchEvent(mEndEvent);
                 return true;
             }
 
             public void resumeElement() {
-                Event resumeEvent = createEvent(SMIL_MEDIA_START_EVENT);
-                dispatchEvent(resumeEvent);
+                // Resuming dispatches the same start event as beginning.
+                beginElement();
             }
 
             public void pauseElement() {
-                Event pauseEvent = createEvent(SMIL_MEDIA_PAUSE_EVENT);
-                dispatchEvent(pauseEvent);
+                if (mPauseEvent == null) {
+                    mPauseEvent = createEvent(SMIL_MEDIA_PAUSE_EVENT);
+                }
+                dispatchEvent(mPauseEvent);
             }
 
             public void seekElement(float seekTo) {
@@ -35,6 +35,10 @@ public class SmilParElementImpl extends SmilElementImpl implements SMILParElemen
 
     ElementParallelTimeContainer mParTimeContainer =
         new ElementParallelTimeContainerImpl(this) {
+        // Dispatched each time the slide is played, so kept rather than created again.
+        private Event mStartEvent;
+        private Event mEndEvent;
+
         @Override
         public TimeList getBegin() {
             /*
@@ -55,18 +59,22 @@ public class SmilParElementImpl extends SmilElementImpl implements SMILParElemen
         }
 
         public boolean beginElement() {
-            DocumentEvent doc = (DocumentEvent) SmilParElementImpl.this.getOwnerDocument();
-            Event startEvent = doc.createEvent("Event");
-            startEvent.initEvent(SMIL_SLIDE_START_EVENT, false, false);
-            dispatchEvent(startEvent);
+            if (mStartEvent == null) {
+                DocumentEvent doc = (DocumentEvent) SmilParElementImpl.this.getOwnerDocument();
+                mStartEvent = doc.createEvent("Event");
+                mStartEvent.initEvent(SMIL_SLIDE_START_EVENT, false, false);
+            }
+            dispatchEvent(mStartEvent);
             return true;
         }
 
         public boolean endElement() {
-            DocumentEvent doc = (DocumentEvent) SmilParElementImpl.this.getOwnerDocument();
-            Event endEvent = doc.createEvent("Event");
-            endEvent.initEvent(SMIL_SLIDE_END_EVENT, false, false);
-            dispatchEvent(endEvent);
+            if (mEndEvent == null) {
+                DocumentEvent doc = (DocumentEvent) SmilParElementImpl.this.getOwnerDocument();
+                mEndEvent = doc.createEvent("Event");
+                mEndEvent.initEvent(SMIL_SLIDE_END_EVENT, false, false);
+            }
+            dispatchEvent(mEndEvent);
             return true;
         }
 
@@ -22,7 +22,6 @@ import com.android.mms.LogTag;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
 
 import org.w3c.dom.NodeList;
 import org.w3c.dom.events.DocumentEvent;
@@ -34,18 +33,20 @@ import org.w3c.dom.smil.ElementTime;
 import org.w3c.dom.smil.Time;
 import org.w3c.dom.smil.TimeList;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
  * The SmilPlayer is responsible for playing, stopping, pausing and resuming a SMIL tree.
  * <li>It creates a whole timeline before playing.</li>
  * <li>The player runs in a different thread which intends not to block the main thread.</li>
+ * <li>The player thread sleeps until the next entry of the timeline is due, or until it
+ * is woken by an action. The current time is read from a monotonic clock.</li>
  */
 public class SmilPlayer implements Runnable {
     private static final String TAG = LogTag.TAG;
     private static final boolean DEBUG = false;
     private static final boolean LOCAL_LOGV = false;
-    private static final int TIMESLICE = 200;
 
     private static enum SmilPlayerState {
         INITIALIZED,
@@ -79,13 +80,23 @@ public class SmilPlayer implements Runnable {
     private long mCurrentTime;
     private int mCurrentElement;
     private int mCurrentSlide;
-    private ArrayList<TimelineEntry> mAllEntries;
+    private SmilTimeline mTimeline;
     private ElementTime mRoot;
     private Thread mPlayerThread;
     private SmilPlayerState mState = SmilPlayerState.INITIALIZED;
     private SmilPlayerAction mAction = SmilPlayerAction.NO_ACTIVE_ACTION;
     private ArrayList<ElementTime> mActiveElements;
     private Event mMediaTimeUpdatedEvent;
+    // How often MEDIA_TIME_UPDATED_EVENT is dispatched while playing, or 0 if it isn't.
+    private int mMediaTimeUpdateInterval;
+
+    // The SystemClock.elapsedRealtime() at which the timeline was at 0 ms. It is set
+    // again whenever the playback position jumps or playback resumes.
+    private long mClockOrigin;
+    // Whether the player thread is waiting for the entry at mWaitTarget; while it is,
+    // the current time follows the clock.
+    private boolean mClockRunning;
+    private long mWaitTarget;
 
     private static ArrayList<TimelineEntry> getParTimeline(
             ElementParallelTimeContainer par, double offset, double maxOffset) {
@@ -204,7 +215,7 @@ public class SmilPlayer implements Runnable {
         return timeline;
     }
 
-    private static ArrayList<TimelineEntry> getTimeline(ElementTime element,
+    static ArrayList<TimelineEntry> getTimeline(ElementTime element,
             double offset, double maxOffset) {
         if (element instanceof ElementParallelTimeContainer) {
             return getParTimeline((ElementParallelTimeContainer) element, offset, maxOffset);
@@ -250,6 +261,30 @@ public class SmilPlayer implements Runnable {
         // Private constructor
     }
 
+    /**
+     * @return The timeline of the document with the given root, built the first time
+     *         it is asked for and again after the document has changed. It is kept on
+     *         the document, so it goes away with it.
+     */
+    static SmilTimeline getCompiledTimeline(ElementTime root) {
+        if (!(root instanceof SmilDocumentImpl)) {
+            return new SmilTimeline(getTimeline(root, 0, Long.MAX_VALUE));
+        }
+
+        SmilDocumentImpl document = (SmilDocumentImpl) root;
+        synchronized (document) {
+            // A document can be changed in place, see SmilHelper.updateSlide().
+            int modificationCount = document.getModificationCount();
+            SmilTimeline timeline = document.mTimeline;
+            if ((timeline == null) || (timeline.mModificationCount != modificationCount)) {
+                timeline = new SmilTimeline(getTimeline(root, 0, Long.MAX_VALUE));
+                timeline.mModificationCount = modificationCount;
+                document.mTimeline = timeline;
+            }
+            return timeline;
+        }
+    }
+
     public static SmilPlayer getPlayer() {
         if (sPlayer == null) {
             sPlayer = new SmilPlayer();
@@ -299,17 +334,27 @@ public class SmilPlayer implements Runnable {
 
     public synchronized void init(ElementTime root) {
         mRoot = root;
-        mAllEntries = getTimeline(mRoot, 0, Long.MAX_VALUE);
+        mTimeline = getCompiledTimeline(mRoot);
         mMediaTimeUpdatedEvent = ((DocumentEvent) mRoot).createEvent("Event");
         mMediaTimeUpdatedEvent.initEvent(MEDIA_TIME_UPDATED_EVENT, false, false);
         mActiveElements = new ArrayList<ElementTime>();
     }
 
+    /**
+     * Dispatch MEDIA_TIME_UPDATED_EVENT to the root element every intervalMs while
+     * playing. Updates are off by default; pass 0 to turn them off again.
+     */
+    public synchronized void setMediaTimeUpdateInterval(int intervalMs) {
+        mMediaTimeUpdateInterval = Math.max(intervalMs, 0);
+        notifyAll();
+    }
+
     public synchronized void play() {
         if (!isPlayingState()) {
             mCurrentTime = 0;
             mCurrentElement = 0;
             mCurrentSlide = 0;
+            resetClock();
             mPlayerThread = new Thread(this, "SmilPlayer thread");
             mState = SmilPlayerState.PLAYING;
             mPlayerThread.start();
@@ -375,32 +420,24 @@ public class SmilPlayer implements Runnable {
       }
     }
 
-    private synchronized boolean isBeginOfSlide(TimelineEntry entry) {
-        return (TimelineEntry.ACTION_BEGIN == entry.getAction())
-                    && (entry.getElement() instanceof SmilParElementImpl);
-    }
-
     private synchronized void reloadActiveSlide() {
         mActiveElements.clear();
         beginSmilDocument();
 
         for (int i = mCurrentSlide; i < mCurrentElement; i++) {
-            TimelineEntry entry = mAllEntries.get(i);
-            actionEntry(entry);
+            actionEntry(i);
         }
         seekActiveMedia();
     }
 
     private synchronized void beginSmilDocument() {
-        TimelineEntry entry = mAllEntries.get(0);
-        actionEntry(entry);
+        actionEntry(0);
     }
 
     private synchronized double getOffsetTime(ElementTime element) {
         for (int i = mCurrentSlide; i < mCurrentElement; i++) {
-            TimelineEntry entry = mAllEntries.get(i);
-            if (element.equals(entry.getElement())) {
-                return entry.getOffsetTime() * 1000;  // in ms
+            if (element.equals(mTimeline.mElements[i])) {
+                return mTimeline.mOffsets[i] * 1000;  // in ms
             }
         }
         return -1;
@@ -423,45 +460,74 @@ public class SmilPlayer implements Runnable {
         }
     }
 
-    private synchronized void waitForEntry(long interval)
-            throws InterruptedException {
+    private synchronized boolean hasPendingAction() {
+        return isStopAction() || isReloadAction() || isPauseAction() || isNextAction()
+                || isPrevAction();
+    }
+
+    /**
+     * Make the clock read mCurrentTime now, after the position jumped or playback
+     * was paused.
+     */
+    private synchronized void resetClock() {
+        mClockOrigin = SystemClock.elapsedRealtime() - mCurrentTime;
+    }
+
+    /**
+     * Wait until the timeline reaches offset, or an action is requested.
+     */
+    private void waitForEntry(long offset) throws InterruptedException {
         if (LOCAL_LOGV) {
-            Log.v(TAG, "Waiting for " + interval + "ms.");
+            Log.v(TAG, "Waiting for " + (offset - mCurrentTime) + "ms.");
         }
 
-        long overhead = 0;
-
-        while (interval > 0) {
-            long startAt = System.currentTimeMillis();
-            long sleep = Math.min(interval, TIMESLICE);
-            if (overhead < sleep) {
-                wait(sleep - overhead);
-                mCurrentTime += sleep;
-            } else {
-                sleep = 0;
-                mCurrentTime += overhead;
+        synchronized (this) {
+            mWaitTarget = offset;
+            mClockRunning = true;
+        }
+        try {
+            while (true) {
+                boolean update;
+                synchronized (this) {
+                    long timeout = offset - (SystemClock.elapsedRealtime() - mClockOrigin);
+                    if (timeout <= 0 || hasPendingAction()) {
+                        mCurrentTime = Math.min(
+                                SystemClock.elapsedRealtime() - mClockOrigin, offset);
+                        return;
+                    }
+                    update = (mMediaTimeUpdateInterval > 0)
+                            && (mMediaTimeUpdateInterval < timeout);
+                    wait(update ? mMediaTimeUpdateInterval : timeout);
+                    mCurrentTime = Math.min(
+                            SystemClock.elapsedRealtime() - mClockOrigin, offset);
+                    if (hasPendingAction() || mMediaTimeUpdateInterval == 0) {
+                        continue;
+                    }
+                }
+                if (update) {
+                    // Outside of the lock, so the listeners don't hold up the UI
+                    // thread calling into the player.
+                    ((EventTarget) mRoot).dispatchEvent(mMediaTimeUpdatedEvent);
+                }
             }
-
-            if (isStopAction() || isReloadAction() || isPauseAction() || isNextAction() ||
-                isPrevAction()) {
-                return;
+        } finally {
+            synchronized (this) {
+                mClockRunning = false;
             }
-
-            ((EventTarget) mRoot).dispatchEvent(mMediaTimeUpdatedEvent);
-
-            interval -= TIMESLICE;
-            overhead = System.currentTimeMillis() - startAt - sleep;
         }
     }
 
     public synchronized int getDuration() {
-         if ((mAllEntries != null) && !mAllEntries.isEmpty()) {
-             return (int) mAllEntries.get(mAllEntries.size() - 1).mOffsetTime * 1000;
+         if (mTimeline != null) {
+             return (int) mTimeline.getEndOffset() * 1000;
          }
          return 0;
     }
 
     public synchronized int getCurrentPosition() {
+        if (mClockRunning && !hasPendingAction()) {
+            return (int) Math.min(SystemClock.elapsedRealtime() - mClockOrigin, mWaitTarget);
+        }
         return (int) mCurrentTime;
     }
 
@@ -503,121 +569,102 @@ public class SmilPlayer implements Runnable {
         try {
             while ( !(isStartAction() || isStopAction() || isReloadAction() ||
                     isNextAction() || isPrevAction()) ) {
-                wait(TIMESLICE);
+                wait();
             }
             if (isStartAction()) {
                 mAction = SmilPlayerAction.NO_ACTIVE_ACTION;
                 mState = SmilPlayerState.PLAYING;
+                resetClock();
             }
         } catch (InterruptedException e) {
             Log.e(TAG, "Unexpected InterruptedException.", e);
         }
     }
 
-    private synchronized void actionEntry(TimelineEntry entry) {
-        switch (entry.getAction()) {
-            case TimelineEntry.ACTION_BEGIN:
+    private synchronized void actionEntry(int index) {
+        ElementTime element = mTimeline.mElements[index];
+        switch (mTimeline.mActions[index]) {
+            case SmilTimeline.ACTION_BEGIN:
                 if (LOCAL_LOGV) {
-                    Log.v(TAG, "[START] " + " at " + mCurrentTime + " "
-                            + entry.getElement());
+                    Log.v(TAG, "[START] " + " at " + mCurrentTime + " " + element);
                 }
-                entry.getElement().beginElement();
-                mActiveElements.add(entry.getElement());
+                element.beginElement();
+                mActiveElements.add(element);
                 break;
-            case TimelineEntry.ACTION_END:
+            case SmilTimeline.ACTION_END:
                 if (LOCAL_LOGV) {
-                    Log.v(TAG, "[STOP]  " + " at " + mCurrentTime + " "
-                            + entry.getElement());
+                    Log.v(TAG, "[STOP]  " + " at " + mCurrentTime + " " + element);
                 }
-                entry.getElement().endElement();
-                mActiveElements.remove(entry.getElement());
+                element.endElement();
+                mActiveElements.remove(element);
                 break;
             default:
                 break;
         }
     }
 
-    private synchronized TimelineEntry reloadCurrentEntry() {
-        // Check if the position is less than size of all entries
-        if (mCurrentElement < mAllEntries.size()) {
-            return mAllEntries.get(mCurrentElement);
-        } else {
-            return null;
-        }
-    }
-
     private void stopCurrentSlide() {
-        HashSet<TimelineEntry> skippedEntries = new HashSet<TimelineEntry>();
-        int totalEntries = mAllEntries.size();
+        // End the started elements, and skip the ones not started yet, until the end
+        // of the slide.
+        int totalEntries = mTimeline.size();
         for (int i = mCurrentElement; i < totalEntries; i++) {
-            // Stop any started entries, and skip the not started entries until
-            // meeting the end of slide
-            TimelineEntry entry = mAllEntries.get(i);
-            int action = entry.getAction();
-            if (entry.getElement() instanceof SmilParElementImpl &&
-                    action == TimelineEntry.ACTION_END) {
-                actionEntry(entry);
-                mCurrentElement = i;
-                break;
-            } else if (action == TimelineEntry.ACTION_END && !skippedEntries.contains(entry)) {
-                    actionEntry(entry);
-            } else if (action == TimelineEntry.ACTION_BEGIN) {
-                skippedEntries.add(entry);
+            if (mTimeline.mActions[i] == SmilTimeline.ACTION_END) {
+                actionEntry(i);
+                if (mTimeline.mElements[i] instanceof SmilParElementImpl) {
+                    mCurrentElement = i;
+                    break;
+                }
             }
         }
     }
 
-    private TimelineEntry loadNextSlide() {
-      TimelineEntry entry;
-      int totalEntries = mAllEntries.size();
-      for (int i = mCurrentElement; i < totalEntries; i++) {
-          entry = mAllEntries.get(i);
-          if (isBeginOfSlide(entry)) {
-              mCurrentElement = i;
-              mCurrentSlide = i;
-              mCurrentTime = (long)(entry.getOffsetTime() * 1000);
-              return entry;
-          }
-      }
-      // No slide, finish play back
-      mCurrentElement++;
-      entry = null;
-      if (mCurrentElement < totalEntries) {
-          entry = mAllEntries.get(mCurrentElement);
-          mCurrentTime = (long)(entry.getOffsetTime() * 1000);
-      }
-      return entry;
-    }
-
-    private TimelineEntry loadPrevSlide() {
-      int skippedSlides = 1;
-      int latestBeginEntryIndex = -1;
-      for (int i = mCurrentSlide; i >= 0; i--) {
-        TimelineEntry entry = mAllEntries.get(i);
-        if (isBeginOfSlide(entry)) {
-            latestBeginEntryIndex = i;
-          if (0 == skippedSlides-- ) {
-            mCurrentElement = i;
-            mCurrentSlide = i;
-            mCurrentTime = (long)(entry.getOffsetTime() * 1000);
-            return entry;
-          }
+    /**
+     * @return The index of the entry to play next, or -1 if playback is finished.
+     */
+    private int loadNextSlide() {
+        int next = mTimeline.nextSlideBegin(mCurrentElement);
+        if (next >= 0) {
+            mCurrentElement = next;
+            mCurrentSlide = next;
+            mCurrentTime = (long) (mTimeline.mOffsets[next] * 1000);
+            return next;
         }
-      }
-      if (latestBeginEntryIndex != -1) {
-          mCurrentElement = latestBeginEntryIndex;
-          mCurrentSlide = latestBeginEntryIndex;
-          return mAllEntries.get(mCurrentElement);
-      }
-      return null;
+        // No slide, finish play back
+        mCurrentElement++;
+        if (mCurrentElement < mTimeline.size()) {
+            mCurrentTime = (long) (mTimeline.mOffsets[mCurrentElement] * 1000);
+            return mCurrentElement;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The index of the entry to play next, or -1 if there is no slide.
+     */
+    private int loadPrevSlide() {
+        int current = mTimeline.previousSlideBegin(mCurrentSlide);
+        if (current < 0) {
+            return -1;
+        }
+        int previous = current > 0 ? mTimeline.previousSlideBegin(current - 1) : -1;
+        if (previous >= 0) {
+            mCurrentElement = previous;
+            mCurrentSlide = previous;
+            mCurrentTime = (long) (mTimeline.mOffsets[previous] * 1000);
+            return previous;
+        }
+        // Already at the first slide; restart it.
+        mCurrentElement = current;
+        mCurrentSlide = current;
+        return current;
     }
 
-    private synchronized TimelineEntry actionNext() {
+    private synchronized int actionNext() {
         stopCurrentSlide();
         return loadNextSlide();
-   }
+    }
 
-    private synchronized TimelineEntry actionPrev() {
+    private synchronized int actionPrev() {
         stopCurrentSlide();
         return loadPrevSlide();
     }
@@ -650,22 +697,24 @@ public class SmilPlayer implements Runnable {
             dumpAllEntries();
         }
         // Play the Element by following the timeline
-        int size = mAllEntries.size();
+        int size = mTimeline.size();
         for (mCurrentElement = 0; mCurrentElement < size; mCurrentElement++) {
-            TimelineEntry entry = mAllEntries.get(mCurrentElement);
-            if (isBeginOfSlide(entry)) {
+            int entry = mCurrentElement;
+            if (mTimeline.isBeginOfSlide(entry)) {
                 mCurrentSlide = mCurrentElement;
             }
-            long offset = (long) (entry.getOffsetTime() * 1000); // in ms.
+            long offset = (long) (mTimeline.mOffsets[entry] * 1000); // in ms.
             while (offset > mCurrentTime) {
                 try {
-                    waitForEntry(offset - mCurrentTime);
+                    waitForEntry(offset);
                 } catch (InterruptedException e) {
                     Log.e(TAG, "Unexpected InterruptedException.", e);
                 }
 
+                boolean handledAction = false;
                 while (isPauseAction() || isStopAction() || isReloadAction() || isNextAction() ||
                     isPrevAction()) {
+                    handledAction = true;
                     if (isPauseAction()) {
                         actionPause();
                         waitForWakeUp();
@@ -678,17 +727,18 @@ public class SmilPlayer implements Runnable {
 
                     if (isReloadAction()) {
                         actionReload();
-                        entry = reloadCurrentEntry();
-                        if (entry == null)
+                        if (mCurrentElement >= size) {
                             return;
+                        }
+                        entry = mCurrentElement;
                         if (isPausedState()) {
                             mAction = SmilPlayerAction.PAUSE;
                         }
                     }
 
                     if (isNextAction()) {
-                        TimelineEntry nextEntry = actionNext();
-                        if (nextEntry != null) {
+                        int nextEntry = actionNext();
+                        if (nextEntry >= 0) {
                             entry = nextEntry;
                         }
                         if (mState == SmilPlayerState.PAUSED) {
@@ -701,8 +751,8 @@ public class SmilPlayer implements Runnable {
                     }
 
                     if (isPrevAction()) {
-                        TimelineEntry prevEntry = actionPrev();
-                        if (prevEntry != null) {
+                        int prevEntry = actionPrev();
+                        if (prevEntry >= 0) {
                             entry = prevEntry;
                         }
                         if (mState == SmilPlayerState.PAUSED) {
@@ -714,6 +764,9 @@ public class SmilPlayer implements Runnable {
                         offset = mCurrentTime;
                     }
                 }
+                if (handledAction) {
+                    resetClock();
+                }
             }
             mCurrentTime = offset;
             actionEntry(entry);
@@ -722,7 +775,7 @@ public class SmilPlayer implements Runnable {
         mState = SmilPlayerState.PLAYED;
     }
 
-    private static final class TimelineEntry {
+    static final class TimelineEntry {
         final static int ACTION_BEGIN = 0;
         final static int ACTION_END   = 1;
 
@@ -755,8 +808,9 @@ public class SmilPlayer implements Runnable {
 
     private void dumpAllEntries() {
         if (LOCAL_LOGV) {
-            for (TimelineEntry entry : mAllEntries) {
-                Log.v(TAG, "[Entry] "+ entry);
+            for (int i = 0; i < mTimeline.size(); i++) {
+                Log.v(TAG, "[Entry] " + mTimeline.mElements[i] + " offset = "
+                        + mTimeline.mOffsets[i] + " action = " + mTimeline.mActions[i]);
             }
         }
     }
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.dom.smil;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.w3c.dom.smil.ElementTime;
+
+/**
+ * The timeline of a SMIL document in the form SmilPlayer plays it: the begin and end
+ * actions of all its timed elements, in the order they happen. Entry i is the action
+ * mActions[i] on mElements[i] at mOffsets[i] seconds.
+ */
+final class SmilTimeline {
+    static final int ACTION_BEGIN = 0;
+    static final int ACTION_END   = 1;
+
+    final double[] mOffsets;
+    final int[] mActions;
+    final ElementTime[] mElements;
+
+    // The indices of the entries which begin a slide, in increasing order.
+    final int[] mSlideBegins;
+
+    // The modification count of the document when the timeline was built from it.
+    int mModificationCount;
+
+    SmilTimeline(List<SmilPlayer.TimelineEntry> entries) {
+        int size = entries.size();
+        mOffsets = new double[size];
+        mActions = new int[size];
+        mElements = new ElementTime[size];
+
+        int[] slideBegins = new int[size];
+        int slides = 0;
+        for (int i = 0; i < size; i++) {
+            SmilPlayer.TimelineEntry entry = entries.get(i);
+            mOffsets[i] = entry.getOffsetTime();
+            mActions[i] = entry.getAction();
+            mElements[i] = entry.getElement();
+            if (isBeginOfSlide(i)) {
+                slideBegins[slides++] = i;
+            }
+        }
+        mSlideBegins = Arrays.copyOf(slideBegins, slides);
+    }
+
+    int size() {
+        return mOffsets.length;
+    }
+
+    boolean isBeginOfSlide(int index) {
+        return (mActions[index] == ACTION_BEGIN)
+                && (mElements[index] instanceof SmilParElementImpl);
+    }
+
+    /**
+     * @return The index of the first slide begin at or after index, or -1 if none.
+     */
+    int nextSlideBegin(int index) {
+        int slide = Arrays.binarySearch(mSlideBegins, index);
+        if (slide < 0) {
+            slide = -slide - 1;
+        }
+        return slide < mSlideBegins.length ? mSlideBegins[slide] : -1;
+    }
+
+    /**
+     * @return The index of the last slide begin at or before index, or -1 if none.
+     */
+    int previousSlideBegin(int index) {
+        int slide = Arrays.binarySearch(mSlideBegins, index);
+        if (slide < 0) {
+            slide = -slide - 2;
+        }
+        return slide >= 0 ? mSlideBegins[slide] : -1;
+    }
+
+    /**
+     * @return The offset of the last entry in seconds, or 0 for an empty timeline.
+     */
+    double getEndOffset() {
+        return mOffsets.length > 0 ? mOffsets[mOffsets.length - 1] : 0;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.dom.smil.parser;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.smil.SMILDocument;
+
+import com.android.mms.dom.smil.SmilDocumentImpl;
+
+/**
+ * An immutable copy of the element tree of a parsed SMILDocument. A SMILDocument is
+ * changed by its users and holds their event listeners, so it can't be shared; the
+ * template instead builds a new, independent document on every call to
+ * newDocument(), without parsing the XML again.
+ */
+public final class SmilDocumentTemplate {
+    private final ElementTemplate[] mRoots;
+
+    private static final class ElementTemplate {
+        final String mTagName;
+        final String[] mAttributeNames;
+        final String[] mAttributeValues;
+        final ElementTemplate[] mChildren;
+
+        ElementTemplate(Element element) {
+            mTagName = element.getTagName();
+
+            NamedNodeMap attributes = element.getAttributes();
+            int attributeCount = attributes.getLength();
+            mAttributeNames = new String[attributeCount];
+            mAttributeValues = new String[attributeCount];
+            for (int i = 0; i < attributeCount; i++) {
+                Attr attribute = (Attr) attributes.item(i);
+                mAttributeNames[i] = attribute.getName();
+                mAttributeValues[i] = attribute.getValue();
+            }
+
+            mChildren = compileChildren(element);
+        }
+
+        Element newElement(SMILDocument document) {
+            Element element = document.createElement(mTagName);
+            for (int i = 0; i < mAttributeNames.length; i++) {
+                element.setAttribute(mAttributeNames[i], mAttributeValues[i]);
+            }
+            for (ElementTemplate child : mChildren) {
+                element.appendChild(child.newElement(document));
+            }
+            return element;
+        }
+    }
+
+    /**
+     * @param document A document as returned by SmilXmlParser.parse().
+     */
+    public SmilDocumentTemplate(SMILDocument document) {
+        mRoots = compileChildren(document);
+    }
+
+    /**
+     * @return A new document with the same elements and attributes as the one this
+     *         template was made from.
+     */
+    public SMILDocument newDocument() {
+        SMILDocument document = new SmilDocumentImpl();
+        for (ElementTemplate root : mRoots) {
+            document.appendChild(root.newElement(document));
+        }
+        // Like SmilXmlParser, set up the body time container and the layout.
+        document.getBody();
+        document.getLayout();
+        return document;
+    }
+
+    private static ElementTemplate[] compileChildren(Node node) {
+        NodeList children = node.getChildNodes();
+        int count = 0;
+        for (int i = 0; i < children.getLength(); i++) {
+            if (children.item(i) instanceof Element) {
+                count++;
+            }
+        }
+        ElementTemplate[] templates = new ElementTemplate[count];
+        count = 0;
+        for (int i = 0; i < children.getLength(); i++) {
+            Node child = children.item(i);
+            if (child instanceof Element) {
+                templates[count++] = new ElementTemplate((Element) child);
+            }
+        }
+        return templates;
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.dom.smil.parser;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.smil.SMILDocument;
+
+import com.android.mms.dom.smil.SmilDocumentImpl;
+
+/**
+ * A parser for the subset of XML found in MMS SMIL parts: elements and attributes,
+ * with comments, processing instructions, a DOCTYPE without internal subset and
+ * ignorable text in between. It builds the same tree as SmilContentHandler does from
+ * SAX events, straight from the characters of the part.
+ *
+ * Anything outside of that subset, and anything which is not well-formed, makes
+ * parse() return null; the caller then parses the part with the SAX XMLReader, which
+ * either handles the construct or reports the error.
+ */
+final class SmilPullParser {
+    // Tag and attribute names of MMS SMIL. Names found here are shared instead of
+    // being allocated for every element.
+    private static final String[] TAG_NAMES = new String[] {
+        "smil", "head", "body", "layout", "root-layout", "region", "par", "seq",
+        "text", "img", "video", "audio", "ref", "meta",
+    };
+    private static final String[] ATTRIBUTE_NAMES = new String[] {
+        "id", "src", "region", "dur", "begin", "end", "width", "height", "left", "top",
+        "fit", "backgroundColor", "background-color", "alt", "fill", "name", "content",
+    };
+
+    private final char[] mChars;
+    private final int mLength;
+    private int mPos;
+
+    private final ArrayList<String> mOpenTags = new ArrayList<String>();
+    private final ArrayList<String> mAttributeNames = new ArrayList<String>();
+    private final ArrayList<String> mAttributeValues = new ArrayList<String>();
+    private final StringBuilder mValue = new StringBuilder();
+
+    private SmilPullParser(char[] chars) {
+        mChars = chars;
+        mLength = chars.length;
+    }
+
+    /**
+     * @return The document, not validated yet, or null if the SAX parser must be used.
+     */
+    static SMILDocument parse(byte[] data) {
+        if (data.length >= 2 && ((data[0] == (byte) 0xFE && data[1] == (byte) 0xFF)
+                || (data[0] == (byte) 0xFF && data[1] == (byte) 0xFE))) {
+            // UTF-16 is left to the SAX parser.
+            return null;
+        }
+        char[] chars;
+        try {
+            chars = new String(data, "UTF-8").toCharArray();
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+        return new SmilPullParser(chars).parseDocument();
+    }
+
+    private SMILDocument parseDocument() {
+        if (mLength > 0 && mChars[0] == '\uFEFF') {
+            mPos++;
+        }
+
+        SMILDocument document = new SmilDocumentImpl();
+        Node current = document;
+        boolean seenRoot = false;
+
+        while (mPos < mLength) {
+            if (mChars[mPos] != '<') {
+                // Text is ignored, like SmilContentHandler.characters() does, but it
+                // must not be outside of the root element or contain references.
+                char c = mChars[mPos];
+                if (c == '&' || (current == document && !isWhitespace(c))) {
+                    return null;
+                }
+                mPos++;
+            } else if (startsWith("<!--")) {
+                if (!skipPast("-->")) {
+                    return null;
+                }
+            } else if (startsWith("<?")) {
+                if (!skipProcessingInstruction()) {
+                    return null;
+                }
+            } else if (startsWith("<![CDATA[")) {
+                if (current == document || !skipPast("]]>")) {
+                    return null;
+                }
+            } else if (startsWith("<!DOCTYPE")) {
+                if (seenRoot || !skipDoctype()) {
+                    return null;
+                }
+            } else if (startsWith("</")) {
+                mPos += 2;
+                String name = readTagName();
+                skipWhitespace();
+                if (name == null || current == document || !expect('>')
+                        || !name.equals(mOpenTags.remove(mOpenTags.size() - 1))) {
+                    return null;
+                }
+                current = current.getParentNode();
+            } else {
+                mPos++;
+                if (current == document && seenRoot) {
+                    // A second root element.
+                    return null;
+                }
+                String name = readTagName();
+                if (name == null || !readAttributes()) {
+                    return null;
+                }
+
+                Element element = document.createElement(name);
+                for (int i = 0; i < mAttributeNames.size(); i++) {
+                    element.setAttribute(mAttributeNames.get(i), mAttributeValues.get(i));
+                }
+                current.appendChild(element);
+                seenRoot = true;
+
+                if (startsWith("/>")) {
+                    mPos += 2;
+                } else if (expect('>')) {
+                    current = element;
+                    mOpenTags.add(name);
+                } else {
+                    return null;
+                }
+            }
+        }
+
+        if (current != document || !seenRoot) {
+            return null;
+        }
+        return document;
+    }
+
+    /**
+     * Read the name of a start or end tag, as written. SmilDocumentImpl.createElement()
+     * lowercases it, like it does for the SAX parser.
+     *
+     * @return The name, or null if it isn't a plain name.
+     */
+    private String readTagName() {
+        int start = mPos;
+        int end = scanName();
+        if (end < 0) {
+            return null;
+        }
+        return readName(start, end, TAG_NAMES);
+    }
+
+    private String readName(int start, int end, String[] knownNames) {
+        int length = end - start;
+        for (String name : knownNames) {
+            if (name.length() == length && regionMatches(start, name)) {
+                return name;
+            }
+        }
+        return new String(mChars, start, length);
+    }
+
+    /**
+     * Read the attributes of a start tag up to its '>' or "/>".
+     */
+    private boolean readAttributes() {
+        mAttributeNames.clear();
+        mAttributeValues.clear();
+        while (true) {
+            boolean separated = skipWhitespace();
+            if (mPos >= mLength) {
+                return false;
+            }
+            char c = mChars[mPos];
+            if (c == '>' || c == '/') {
+                return true;
+            }
+            if (!separated) {
+                return false;
+            }
+
+            int start = mPos;
+            int end = scanName();
+            if (end < 0) {
+                boolean namespaceDeclaration = startsWith("xmlns:");
+                if (!namespaceDeclaration) {
+                    return false;
+                }
+                mPos += "xmlns:".length();
+                end = scanName();
+                if (end < 0) {
+                    return false;
+                }
+            }
+            skipWhitespace();
+            if (!expect('=')) {
+                return false;
+            }
+            skipWhitespace();
+            String value = readAttributeValue();
+            if (value == null) {
+                return false;
+            }
+
+            String name = readName(start, end, ATTRIBUTE_NAMES);
+            if (name.equals("xmlns") || name.startsWith("xmlns:")) {
+                // Namespace declarations aren't attributes to a namespace aware
+                // SAX parser.
+                continue;
+            }
+            if (mAttributeNames.contains(name)) {
+                return false;
+            }
+            mAttributeNames.add(name);
+            mAttributeValues.add(value);
+        }
+    }
+
+    private String readAttributeValue() {
+        if (mPos >= mLength) {
+            return null;
+        }
+        char quote = mChars[mPos];
+        if (quote != '"' && quote != '\'') {
+            return null;
+        }
+        mPos++;
+
+        int start = mPos;
+        while (mPos < mLength) {
+            char c = mChars[mPos];
+            if (c == quote) {
+                String value = new String(mChars, start, mPos - start);
+                mPos++;
+                return value;
+            }
+            if (c == '&' || c == '<' || c == '\t' || c == '\n' || c == '\r') {
+                break;
+            }
+            mPos++;
+        }
+
+        // Slow path, for values with references or whitespace to normalize.
+        mValue.setLength(0);
+        mValue.append(mChars, start, mPos - start);
+        while (mPos < mLength) {
+            char c = mChars[mPos];
+            if (c == quote) {
+                mPos++;
+                return mValue.toString();
+            } else if (c == '<') {
+                return null;
+            } else if (c == '&') {
+                if (!readReference()) {
+                    return null;
+                }
+            } else if (c == '\r') {
+                // A line break, "\r\n" included, is a single space.
+                mValue.append(' ');
+                mPos++;
+                if (mPos < mLength && mChars[mPos] == '\n') {
+                    mPos++;
+                }
+            } else {
+                mValue.append(c == '\t' || c == '\n' ? ' ' : c);
+                mPos++;
+            }
+        }
+        return null;
+    }
+
+    private boolean readReference() {
+        int end = mPos + 1;
+        while (end < mLength && mChars[end] != ';' && end - mPos < 10) {
+            end++;
+        }
+        if (end >= mLength || mChars[end] != ';') {
+            return false;
+        }
+        String name = new String(mChars, mPos + 1, end - mPos - 1);
+        mPos = end + 1;
+
+        if (name.equals("amp")) {
+            mValue.append('&');
+        } else if (name.equals("lt")) {
+            mValue.append('<');
+        } else if (name.equals("gt")) {
+            mValue.append('>');
+        } else if (name.equals("quot")) {
+            mValue.append('"');
+        } else if (name.equals("apos")) {
+            mValue.append('\'');
+        } else if (name.startsWith("#")) {
+            int codePoint;
+            try {
+                codePoint = name.startsWith("#x") ? Integer.parseInt(name.substring(2), 16)
+                        : Integer.parseInt(name.substring(1));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            if (codePoint <= 0 || codePoint > Character.MAX_CODE_POINT) {
+                return false;
+            }
+            mValue.appendCodePoint(codePoint);
+        } else {
+            // Entities declared in a DTD are left to the SAX parser.
+            return false;
+        }
+        return true;
+    }
+
+    private boolean skipProcessingInstruction() {
+        int start = mPos;
+        if (!skipPast("?>")) {
+            return false;
+        }
+        if (startsWith(start, "<?xml") && start + 5 < mLength
+                && isWhitespace(mChars[start + 5])) {
+            // Only UTF-8 and its subset are decoded here.
+            String declaration = new String(mChars, start, mPos - start).toLowerCase();
+            int encoding = declaration.indexOf("encoding");
+            if (encoding >= 0 && declaration.indexOf("utf-8", encoding) < 0
+                    && declaration.indexOf("us-ascii", encoding) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean skipDoctype() {
+        while (mPos < mLength) {
+            char c = mChars[mPos];
+            if (c == '[') {
+                // An internal subset may declare entities.
+                return false;
+            }
+            if (c == '"' || c == '\'') {
+                int close = indexOf(c, mPos + 1);
+                if (close < 0) {
+                    return false;
+                }
+                mPos = close;
+            } else if (c == '>') {
+                mPos++;
+                return true;
+            }
+            mPos++;
+        }
+        return false;
+    }
+
+    /**
+     * @return The end of the name at mPos, which mPos is moved to, or -1 if there
+     *         isn't a name without a namespace prefix at mPos.
+     */
+    private int scanName() {
+        int start = mPos;
+        while (mPos < mLength) {
+            char c = mChars[mPos];
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'
+                    || (mPos > start && ((c >= '0' && c <= '9') || c == '-' || c == '.'))) {
+                mPos++;
+            } else if (c == ':' || c > 0x7F) {
+                mPos = start;
+                return -1;
+            } else {
+                break;
+            }
+        }
+        if (mPos == start) {
+            return -1;
+        }
+        return mPos;
+    }
+
+    private boolean skipWhitespace() {
+        int start = mPos;
+        while (mPos < mLength && isWhitespace(mChars[mPos])) {
+            mPos++;
+        }
+        return mPos > start;
+    }
+
+    private boolean skipPast(String s) {
+        for (int i = mPos; i + s.length() <= mLength; i++) {
+            if (startsWith(i, s)) {
+                mPos = i + s.length();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean expect(char c) {
+        if (mPos < mLength && mChars[mPos] == c) {
+            mPos++;
+            return true;
+        }
+        return false;
+    }
+
+    private int indexOf(char c, int from) {
+        for (int i = from; i < mLength; i++) {
+            if (mChars[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean startsWith(String s) {
+        return startsWith(mPos, s);
+    }
+
+    private boolean startsWith(int pos, String s) {
+        return pos + s.length() <= mLength && regionMatches(pos, s);
+    }
+
+    private boolean regionMatches(int start, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (mChars[start + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+}
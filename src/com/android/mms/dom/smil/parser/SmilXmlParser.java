@@ -17,6 +17,7 @@
 
 package com.android.mms.dom.smil.parser;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -33,20 +34,32 @@ public class SmilXmlParser {
     private SmilContentHandler mContentHandler;
 
     public SmilXmlParser() throws MmsException {
-        //FIXME: Now we don't have the SAXParser wrapped inside,
-        //       use the Driver class temporarily.
-        System.setProperty("org.xml.sax.driver", "org.xmlpull.v1.sax2.Driver");
+        // The XMLReader is only created for the parts SmilPullParser can't handle.
+    }
 
-        try {
-            mXmlReader = XMLReaderFactory.createXMLReader();
-            mContentHandler = new SmilContentHandler();
-            mXmlReader.setContentHandler(mContentHandler);
-        } catch (SAXException e) {
-            throw new MmsException(e);
+    /**
+     * Parse a SMIL part. The common MMS subset of XML is parsed by SmilPullParser;
+     * anything else goes through the SAX XMLReader.
+     */
+    public SMILDocument parse(byte[] data) throws IOException, SAXException {
+        SMILDocument doc = SmilPullParser.parse(data);
+        if (doc == null) {
+            return parse(new ByteArrayInputStream(data));
         }
+        validateDocument(doc);
+        return doc;
     }
 
     public SMILDocument parse(InputStream in) throws IOException, SAXException {
+        if (mXmlReader == null) {
+            //FIXME: Now we don't have the SAXParser wrapped inside,
+            //       use the Driver class temporarily.
+            System.setProperty("org.xml.sax.driver", "org.xmlpull.v1.sax2.Driver");
+
+            mXmlReader = XMLReaderFactory.createXMLReader();
+            mContentHandler = new SmilContentHandler();
+            mXmlReader.setContentHandler(mContentHandler);
+        }
         mContentHandler.reset();
 
         mXmlReader.parse(new InputSource(in));
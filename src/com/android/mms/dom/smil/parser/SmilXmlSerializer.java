@@ -17,64 +17,140 @@
 
 package com.android.mms.dom.smil.parser;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
-import java.io.Writer;
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.smil.SMILDocument;
-import org.w3c.dom.smil.SMILElement;
 
 public class SmilXmlSerializer {
+    // The entity to write for each ASCII character which can't appear as itself in an
+    // attribute value, or null.
+    private static final byte[][] ESCAPES = new byte[0x80][];
+    static {
+        ESCAPES['&'] = "&amp;".getBytes();
+        ESCAPES['<'] = "&lt;".getBytes();
+        ESCAPES['>'] = "&gt;".getBytes();
+        ESCAPES['"'] = "&quot;".getBytes();
+        ESCAPES['\''] = "&apos;".getBytes();
+    }
+
     public static void serialize(SMILDocument smilDoc, OutputStream out) {
         try {
-            Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 2048);
-
-            writeElement(writer, smilDoc.getDocumentElement());
-            writer.flush();
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+            out.write(serialize(smilDoc));
+            out.flush();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private static void writeElement(Writer writer, Element element)
-            throws IOException {
+    /**
+     * Serializes the document as UTF-8 encoded XML. The document is walked twice, once
+     * to count the bytes and once to write them, so the result is the only buffer
+     * allocated and is exactly as long as the XML.
+     */
+    public static byte[] serialize(SMILDocument smilDoc) {
+        Element root = smilDoc.getDocumentElement();
+
+        Utf8Writer counter = new Utf8Writer(null);
+        writeElement(counter, root);
+
+        Utf8Writer writer = new Utf8Writer(new byte[counter.mLength]);
+        writeElement(writer, root);
+        return writer.mBuffer;
+    }
+
+    private static void writeElement(Utf8Writer writer, Element element) {
         writer.write('<');
-        writer.write(element.getTagName());
+        writer.write(element.getTagName(), false);
 
         if (element.hasAttributes()) {
             NamedNodeMap attributes = element.getAttributes();
             for (int i = 0; i < attributes.getLength(); i++) {
                 Attr attribute = (Attr)attributes.item(i);
-                writer.write(" " + attribute.getName());
-                writer.write("=\"" + attribute.getValue() + "\"");
+                writer.write(' ');
+                writer.write(attribute.getName(), false);
+                writer.write('=');
+                writer.write('"');
+                writer.write(attribute.getValue(), true);
+                writer.write('"');
             }
         }
 
         // FIXME: Might throw ClassCastException
-        SMILElement childElement = (SMILElement) element.getFirstChild();
+        Element childElement = (Element) element.getFirstChild();
 
         if (childElement != null) {
             writer.write('>');
 
             do {
                 writeElement(writer, childElement);
-                childElement = (SMILElement) childElement.getNextSibling();
+                childElement = (Element) childElement.getNextSibling();
             } while (childElement != null);
 
-            writer.write("</");
-            writer.write(element.getTagName());
+            writer.write('<');
+            writer.write('/');
+            writer.write(element.getTagName(), false);
             writer.write('>');
         } else {
-            writer.write("/>");
+            writer.write('/');
+            writer.write('>');
         }
     }
-}
 
+    /**
+     * Encodes characters as UTF-8 into a byte array, or only counts the bytes if it has
+     * no array.
+     */
+    private static final class Utf8Writer {
+        final byte[] mBuffer;
+        int mLength;
+
+        Utf8Writer(byte[] buffer) {
+            mBuffer = buffer;
+        }
+
+        void write(int b) {
+            if (mBuffer != null) {
+                mBuffer[mLength] = (byte) b;
+            }
+            mLength++;
+        }
+
+        void write(String s, boolean escape) {
+            int length = s.length();
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    byte[] escaped = escape ? ESCAPES[c] : null;
+                    if (escaped == null) {
+                        write(c);
+                    } else {
+                        for (byte b : escaped) {
+                            write(b);
+                        }
+                    }
+                } else if (c < 0x800) {
+                    write(0xc0 | (c >> 6));
+                    write(0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && (i + 1 < length)
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    write(0xf0 | (codePoint >> 18));
+                    write(0x80 | ((codePoint >> 12) & 0x3f));
+                    write(0x80 | ((codePoint >> 6) & 0x3f));
+                    write(0x80 | (codePoint & 0x3f));
+                } else if ((c >= Character.MIN_SURROGATE) && (c <= Character.MAX_SURROGATE)) {
+                    // Like OutputStreamWriter, replace a lone surrogate.
+                    write('?');
+                } else {
+                    write(0xe0 | (c >> 12));
+                    write(0x80 | ((c >> 6) & 0x3f));
+                    write(0x80 | (c & 0x3f));
+                }
+            }
+        }
+    }
+}
@@ -183,7 +183,7 @@ public class ImageModel extends RegionMediaModel {
     }
 
     @Override
-    protected void resizeMedia(int byteLimit, long messageId) throws MmsException {
+    protected PduPart getResizedPart(int byteLimit) throws MmsException {
         UriImage image = new UriImage(mContext, getUri());
 
         int widthLimit = MmsConfig.getMaxImageWidth();
@@ -218,7 +218,7 @@ public class ImageModel extends RegionMediaModel {
             if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
                 Log.v(TAG, "resizeMedia - already sized");
             }
-            return;
+            return null;
         }
 
         PduPart part = image.getResizedImageAsPart(
@@ -230,7 +230,11 @@ public class ImageModel extends RegionMediaModel {
             throw new ExceedMessageSizeException("Not enough memory to turn image into part: " +
                     getUri());
         }
+        return part;
+    }
 
+    @Override
+    protected void setResizedPart(PduPart part, long messageId) throws MmsException {
         // Update the content type because it may have changed due to resizing/recompressing
         mContentType = new String(part.getContentType());
 
@@ -37,6 +37,7 @@ import com.android.mms.LogTag;
 import com.android.mms.MmsConfig;
 
 import com.google.android.mms.MmsException;
+import com.google.android.mms.pdu.PduPart;
 // TODO: remove dependency for SDK build
 
 public abstract class MediaModel extends Model implements EventListener {
@@ -302,11 +303,21 @@ public abstract class MediaModel extends Model implements EventListener {
     }
 
     /**
-     * If the attached media is resizeable, resize it to fit within the byteLimit. Save the
-     * new part in the pdu.
+     * If the attached media is resizeable, resize it to fit within the byteLimit without
+     * saving it. Only reads the media, so several media can be resized at the same time.
+     * Throws an ExceedMessageSizeException if the media can't be made to fit.
      * @param byteLimit the max size of the media attachment
+     * @return the resized part, or null if the media already fits
      * @throws MmsException
      */
-    protected void resizeMedia(int byteLimit, long messageId) throws MmsException {
+    protected PduPart getResizedPart(int byteLimit) throws MmsException {
+        return null;
+    }
+
+    /**
+     * Save a part returned by getResizedPart() in the pdu and make it the content of the
+     * media.
+     */
+    protected void setResizedPart(PduPart part, long messageId) throws MmsException {
     }
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.mms.ExceedMessageSizeException;
+import com.android.mms.LogTag;
+import com.google.android.mms.MmsException;
+import com.google.android.mms.pdu.PduPart;
+
+/**
+ * Resizes the resizable media of a slideshow so that together they fit in a byte budget.
+ * <p>
+ * The budget is shared out before anything is resized: a media which already fits in its
+ * share keeps its size, and what it leaves is split between the others. The media are
+ * then resized at the same time on a small pool of threads. A media which can't be made
+ * to fit its share is resized again with what the others left over.
+ * <p>
+ * Only getResizedPart() runs on the pool. The parts are saved by the caller, so the
+ * model changes stay on its thread.
+ */
+class MediaResizePlanner {
+    private static final String TAG = LogTag.TAG;
+
+    // Each resize decodes a whole picture, so only a few run at once.
+    private static final int MAX_THREADS = 2;
+
+    // How many times the budget is shared out before giving up.
+    private static final int MAX_PLANS = 2;
+
+    private static ExecutorService sExecutor;
+
+    private final ExecutorService mExecutor;
+
+    MediaResizePlanner() {
+        this(getDefaultExecutor());
+    }
+
+    MediaResizePlanner(ExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    private static synchronized ExecutorService getDefaultExecutor() {
+        if (sExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    MAX_THREADS, MAX_THREADS, 5, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ResizeThreadFactory());
+            // Sending is rare, don't keep the threads around between messages.
+            executor.allowCoreThreadTimeOut(true);
+            sExecutor = executor;
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Resize the media to fit within byteLimit together.
+     *
+     * @return the resized part of each media, or null for a media which already fits
+     * @throws ExceedMessageSizeException if the media can't all be made to fit
+     */
+    PduPart[] resize(List<MediaModel> media, int byteLimit) throws MmsException {
+        int count = media.size();
+        PduPart[] parts = new PduPart[count];
+        // The size of each media, or 0 where it isn't known.
+        int[] sizes = new int[count];
+        boolean[] pending = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = media.get(i).getMediaSize();
+            pending[i] = true;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        int remaining = byteLimit;
+        for (int plan = 1; ; plan++) {
+            int[] limits = allocate(remaining, sizes, pending);
+            ExceedMessageSizeException overshoot = resizePending(media, limits, pending, parts);
+            if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
+                Log.v(TAG, "resize: plan " + plan + " of " + count + " media done after "
+                        + (SystemClock.elapsedRealtime() - start) + " ms"
+                        + (overshoot == null ? "" : ", some didn't fit"));
+            }
+            if (overshoot == null) {
+                return parts;
+            }
+
+            // Share what the resized media left between those which didn't fit.
+            remaining = byteLimit;
+            for (int i = 0; i < count; i++) {
+                if (!pending[i]) {
+                    remaining -= parts[i] != null ? parts[i].getData().length : sizes[i];
+                } else {
+                    // Their size didn't help them fit, so it isn't a limit any more.
+                    sizes[i] = 0;
+                }
+            }
+            if ((plan >= MAX_PLANS) || (remaining <= 0)) {
+                throw overshoot;
+            }
+        }
+    }
+
+    /**
+     * Share out budget between the media still pending. A media with a known size which
+     * fits in an equal share gets just its size, and the others share the rest equally.
+     *
+     * @return the byte limit of each pending media
+     */
+    static int[] allocate(int budget, int[] sizes, boolean[] pending) {
+        int count = sizes.length;
+        int[] limits = new int[count];
+        int unassigned = 0;
+        for (int i = 0; i < count; i++) {
+            if (pending[i]) {
+                unassigned++;
+            }
+        }
+
+        // Giving a media less than an equal share only makes the shares of the others
+        // bigger, so keep going until no more media fits.
+        int remaining = budget;
+        boolean assigned = true;
+        while (assigned && (unassigned > 0)) {
+            assigned = false;
+            int share = remaining / unassigned;
+            for (int i = 0; i < count; i++) {
+                if (pending[i] && (limits[i] == 0) && (sizes[i] != 0) && (sizes[i] <= share)) {
+                    limits[i] = sizes[i];
+                    remaining -= sizes[i];
+                    unassigned--;
+                    assigned = true;
+                }
+            }
+        }
+
+        if (unassigned > 0) {
+            int share = remaining / unassigned;
+            for (int i = 0; i < count; i++) {
+                if (pending[i] && (limits[i] == 0)) {
+                    limits[i] = share;
+                }
+            }
+        }
+        return limits;
+    }
+
+    /**
+     * Resize the pending media to their limits at the same time. A media which is resized
+     * or already fits is no longer pending.
+     *
+     * @return the exception of a media which didn't fit, or null if all did
+     */
+    private ExceedMessageSizeException resizePending(List<MediaModel> media, int[] limits,
+            boolean[] pending, PduPart[] parts) throws MmsException {
+        int count = media.size();
+        ArrayList<Future<PduPart>> futures = new ArrayList<Future<PduPart>>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                futures.add(pending[i]
+                        ? mExecutor.submit(new ResizeTask(media.get(i), limits[i])) : null);
+            }
+
+            ExceedMessageSizeException overshoot = null;
+            for (int i = 0; i < count; i++) {
+                Future<PduPart> future = futures.get(i);
+                if (future == null) {
+                    continue;
+                }
+                try {
+                    parts[i] = future.get();
+                    pending[i] = false;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof ExceedMessageSizeException) {
+                        overshoot = (ExceedMessageSizeException) cause;
+                    } else if (cause instanceof MmsException) {
+                        throw (MmsException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    } else {
+                        throw new MmsException(cause);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MmsException(e);
+                }
+            }
+            return overshoot;
+        } finally {
+            // Don't leave work behind when giving up early.
+            for (Future<PduPart> future : futures) {
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    private static class ResizeTask implements Callable<PduPart> {
+        private final MediaModel mMedia;
+        private final int mByteLimit;
+
+        ResizeTask(MediaModel media, int byteLimit) {
+            mMedia = media;
+            mByteLimit = byteLimit;
+        }
+
+        public PduPart call() throws MmsException {
+            return mMedia.getResizedPart(mByteLimit);
+        }
+    }
+
+    private static class ResizeThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        public Thread newThread(Runnable r) {
+            // The message is sent once its media is resized, so keep the normal priority.
+            return new Thread(r, "MediaResize-" + mCount.getAndIncrement());
+        }
+    }
+}
@@ -18,13 +18,13 @@
 package com.android.mms.model;
 
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
@@ -69,6 +69,11 @@ public class SlideshowModel extends Model
     private final LayoutModel mLayout;
     private final ArrayList<SlideModel> mSlides;
     private SMILDocument mDocumentCache;
+    // Whether mDocumentCache was made from this slideshow, so that its pars can be
+    // updated one slide at a time.
+    private boolean mDocumentCacheFromModel;
+    // The slides which changed since mDocumentCache was last brought up to date.
+    private final HashSet<SlideModel> mChangedSlides = new HashSet<SlideModel>();
     private PduBody mPduBodyCache;
     private int mCurrentMessageSize;    // This is the current message size, not including
                                         // attachments that can be resized (such as photos)
@@ -82,6 +87,9 @@ public class SlideshowModel extends Model
         mLayout = new LayoutModel();
         mSlides = new ArrayList<SlideModel>();
         mContext = context;
+        // The cached document has to follow the regions even if nobody else observes
+        // this slideshow.
+        mLayout.registerModelChangedObserver(this);
     }
 
     private SlideshowModel (
@@ -234,8 +242,7 @@ public class SlideshowModel extends Model
 
     public PduBody toPduBody() {
         if (mPduBodyCache == null) {
-            mDocumentCache = SmilHelper.getDocument(this);
-            mPduBodyCache = makePduBody(mDocumentCache);
+            mPduBodyCache = makePduBody(toSmilDocument());
         }
         return mPduBodyCache;
     }
@@ -298,13 +305,11 @@ public class SlideshowModel extends Model
         }
 
         // Create and insert SMIL part(as the first part) into the PduBody.
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        SmilXmlSerializer.serialize(document, out);
         PduPart smilPart = new PduPart();
         smilPart.setContentId("smil".getBytes());
         smilPart.setContentLocation("smil.xml".getBytes());
         smilPart.setContentType(ContentType.APP_SMIL.getBytes());
-        smilPart.setData(out.toByteArray());
+        smilPart.setData(SmilXmlSerializer.serialize(document));
         pb.addPart(0, smilPart);
 
         return pb;
@@ -341,8 +346,26 @@ public class SlideshowModel extends Model
     }
 
     public SMILDocument toSmilDocument() {
+        if ((mDocumentCache != null) && !mChangedSlides.isEmpty()) {
+            if (!mDocumentCacheFromModel) {
+                // Only a document made from the slideshow can be updated slide by slide.
+                mDocumentCache = null;
+            }
+            for (SlideModel slide : mChangedSlides) {
+                if (mDocumentCache == null) {
+                    break;
+                }
+                int index = mSlides.indexOf(slide);
+                if ((index < 0) || !SmilHelper.updateSlide(mDocumentCache, this, index)) {
+                    mDocumentCache = null;
+                }
+            }
+        }
+        mChangedSlides.clear();
+
         if (mDocumentCache == null) {
             mDocumentCache = SmilHelper.getDocument(this);
+            mDocumentCacheFromModel = true;
         }
         return mDocumentCache;
     }
@@ -407,6 +430,7 @@ public class SlideshowModel extends Model
 
         if ((object != null) && mSlides.add(object)) {
             increaseMessageSize(increaseSize);
+            dropDocumentCache();
             object.registerModelChangedObserver(this);
             for (IModelChangedObserver observer : mModelChangedObservers) {
                 object.registerModelChangedObserver(observer);
@@ -431,6 +455,7 @@ public class SlideshowModel extends Model
             }
             mCurrentMessageSize = 0;
             mSlides.clear();
+            dropDocumentCache();
             notifyModelChanged(true);
         }
     }
@@ -456,6 +481,7 @@ public class SlideshowModel extends Model
             SlideModel slide = (SlideModel) object;
             decreaseMessageSize(slide.getSlideSize());
             slide.unregisterAllModelChangedObservers();
+            dropDocumentCache();
             notifyModelChanged(true);
             return true;
         }
@@ -489,6 +515,7 @@ public class SlideshowModel extends Model
 
             mSlides.add(location, object);
             increaseMessageSize(increaseSize);
+            dropDocumentCache();
             object.registerModelChangedObserver(this);
             for (IModelChangedObserver observer : mModelChangedObservers) {
                 object.registerModelChangedObserver(observer);
@@ -527,6 +554,7 @@ public class SlideshowModel extends Model
         if (slide != null) {
             decreaseMessageSize(slide.getSlideSize());
             slide.unregisterAllModelChangedObservers();
+            dropDocumentCache();
             notifyModelChanged(true);
         }
         return slide;
@@ -552,6 +580,7 @@ public class SlideshowModel extends Model
         if (slide != null) {
             slide.unregisterAllModelChangedObservers();
         }
+        dropDocumentCache();
 
         if (object != null) {
             object.registerModelChangedObserver(this);
@@ -599,11 +628,39 @@ public class SlideshowModel extends Model
 
     public void onModelChanged(Model model, boolean dataChanged) {
         if (dataChanged) {
-            mDocumentCache = null;
             mPduBodyCache = null;
+
+            // A change within one slide only needs the par of that slide to be made
+            // again. A change to the slides or the layout needs the whole document.
+            SlideModel changedSlide = null;
+            if (model instanceof SlideModel) {
+                changedSlide = (SlideModel) model;
+            } else if (model instanceof MediaModel) {
+                for (SlideModel slide : mSlides) {
+                    if (slide.contains(model)) {
+                        changedSlide = slide;
+                        break;
+                    }
+                }
+            }
+            if ((changedSlide != null) && mSlides.contains(changedSlide)) {
+                mChangedSlides.add(changedSlide);
+            } else {
+                dropDocumentCache();
+            }
         }
     }
 
+    /**
+     * Drop the cached document and pdu body. The slide list mutators call this
+     * themselves, since only a slideshow made by createFromPduBody() observes itself.
+     */
+    private void dropDocumentCache() {
+        mDocumentCache = null;
+        mChangedSlides.clear();
+        mPduBodyCache = null;
+    }
+
     public void sync(PduBody pb) {
         for (SlideModel slide : mSlides) {
             for (MediaModel media : slide) {
@@ -667,12 +724,12 @@ public class SlideshowModel extends Model
 
         // Figure out if we have any media items that need to be resized and total up the
         // sizes of the items that can't be resized.
-        int resizableCnt = 0;
+        ArrayList<MediaModel> resizable = new ArrayList<MediaModel>();
         int fixedSizeTotal = 0;
         for (SlideModel slide : mSlides) {
             for (MediaModel media : slide) {
                 if (media.getMediaResizable()) {
-                    ++resizableCnt;
+                    resizable.add(media);
                 } else {
                     fixedSizeTotal += media.getMediaSize();
                 }
@@ -683,19 +740,18 @@ public class SlideshowModel extends Model
                     " getMaxMessageSize: " + MmsConfig.getMaxMessageSize() +
                     " fixedSizeTotal: " + fixedSizeTotal);
         }
-        if (resizableCnt > 0) {
+        if (!resizable.isEmpty()) {
             int remainingSize = MmsConfig.getMaxMessageSize() - fixedSizeTotal - SLIDESHOW_SLOP;
             if (remainingSize <= 0) {
                 throw new ExceedMessageSizeException("No room for pictures");
             }
             long messageId = ContentUris.parseId(messageUri);
-            int bytesPerMediaItem = remainingSize / resizableCnt;
-            // Resize the resizable media items to fit within their byte limit.
-            for (SlideModel slide : mSlides) {
-                for (MediaModel media : slide) {
-                    if (media.getMediaResizable()) {
-                        media.resizeMedia(bytesPerMediaItem, messageId);
-                    }
+            // Resize the resizable media items to fit within the remaining size together,
+            // then save the resized ones here so that the model only changes on this thread.
+            PduPart[] parts = new MediaResizePlanner().resize(resizable, remainingSize);
+            for (int i = 0; i < parts.length; i++) {
+                if (parts[i] != null) {
+                    resizable.get(i).setResizedPart(parts[i], messageId);
                 }
             }
             // One last time through to calc the real message size.
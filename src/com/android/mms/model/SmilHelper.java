@@ -24,12 +24,14 @@ import static com.android.mms.dom.smil.SmilMediaElementImpl.SMIL_MEDIA_START_EVE
 import static com.android.mms.dom.smil.SmilParElementImpl.SMIL_SLIDE_END_EVENT;
 import static com.android.mms.dom.smil.SmilParElementImpl.SMIL_SLIDE_START_EVENT;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import org.w3c.dom.Node;
 import org.w3c.dom.events.EventTarget;
 import org.w3c.dom.smil.SMILDocument;
 import org.w3c.dom.smil.SMILElement;
@@ -49,6 +51,7 @@ import android.util.Log;
 import com.android.mms.LogTag;
 import com.android.mms.MmsApp;
 import com.android.mms.dom.smil.SmilDocumentImpl;
+import com.android.mms.dom.smil.parser.SmilDocumentTemplate;
 import com.android.mms.dom.smil.parser.SmilXmlParser;
 import com.android.mms.dom.smil.parser.SmilXmlSerializer;
 import com.google.android.mms.ContentType;
@@ -67,6 +70,29 @@ public class SmilHelper {
     public static final String ELEMENT_TAG_VIDEO = "video";
     public static final String ELEMENT_TAG_REF = "ref";
 
+    // The number of parsed SMIL parts kept, for reopening the same messages.
+    private static final int SMIL_CACHE_SIZE = 16;
+
+    private static final class CachedSmil {
+        final byte[] mData;
+        final SmilDocumentTemplate mTemplate;
+
+        CachedSmil(byte[] data, SmilDocumentTemplate template) {
+            mData = data;
+            mTemplate = template;
+        }
+    }
+
+    // Parsed SMIL parts keyed by the hash of their bytes. The bytes are kept too, to
+    // tell a hash collision from a hit.
+    private static final LinkedHashMap<Integer, CachedSmil> sSmilCache =
+            new LinkedHashMap<Integer, CachedSmil>(SMIL_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, CachedSmil> eldest) {
+            return size() > SMIL_CACHE_SIZE;
+        }
+    };
+
     private SmilHelper() {
         // Never instantiate this class.
     }
@@ -93,6 +119,74 @@ public class SmilHelper {
         return createSmilDocument(model);
     }
 
+    /**
+     * Brings the par of one slide in a document made by getDocument(SlideshowModel) up
+     * to date with the slide, without touching the pars of the other slides. The
+     * document comes out the same as if it had been made again from the slideshow.
+     *
+     * @param index The index of the slide in the slideshow.
+     * @return false if the pars of the document don't match the slides of the slideshow,
+     *         in which case it has to be made again.
+     */
+    public static boolean updateSlide(SMILDocument document, SlideshowModel slideshow,
+            int index) {
+        SlideModel slide = slideshow.get(index);
+        SMILElement bodyElement = document.getBody();
+        Node oldPar = null;
+        int parCount = 0;
+        for (Node par = bodyElement.getFirstChild(); par != null; par = par.getNextSibling()) {
+            if (parCount == index) {
+                oldPar = par;
+            }
+            parCount++;
+        }
+        if ((slide == null) || (parCount != slideshow.size())
+                || !(oldPar instanceof SMILParElement)) {
+            return false;
+        }
+
+        // Reuse the regions the layout has, and create those only the new par uses.
+        SMILLayoutElement layoutElement = document.getLayout();
+        ArrayList<SMILRegionElement> smilRegions = new ArrayList<SMILRegionElement>();
+        for (RegionModel r : slideshow.getLayout().getRegions()) {
+            SMILRegionElement smilRegion = findRegionElementById(layoutElement, r.getRegionId());
+            if (smilRegion == null) {
+                smilRegion = createRegionElement(document, r);
+            }
+            smilRegions.add(smilRegion);
+        }
+
+        bodyElement.replaceChild(createPar(document, slide, smilRegions, layoutElement),
+                oldPar);
+
+        // Building every par again would leave the regions in the layout in the order
+        // of their last use, and only those in use.
+        ArrayList<Node> usedRegions = new ArrayList<Node>();
+        for (Node par = bodyElement.getFirstChild(); par != null; par = par.getNextSibling()) {
+            for (Node media = par.getFirstChild(); media != null;
+                    media = media.getNextSibling()) {
+                String regionId = ((SMILElement) media).getAttribute("region");
+                SMILRegionElement smilRegion = findRegionElementById(layoutElement, regionId);
+                if (smilRegion != null) {
+                    usedRegions.remove(smilRegion);
+                    usedRegions.add(smilRegion);
+                }
+            }
+        }
+        Node child = layoutElement.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            if (child instanceof SMILRegionElement) {
+                layoutElement.removeChild(child);
+            }
+            child = next;
+        }
+        for (Node smilRegion : usedRegions) {
+            layoutElement.appendChild(smilRegion);
+        }
+        return true;
+    }
+
     /**
      * Find a SMIL part in the MM.
      *
@@ -125,14 +219,28 @@ public class SmilHelper {
         try {
             byte[] data = smilPart.getData();
             if (data != null) {
+                Integer hash = Arrays.hashCode(data);
+                synchronized (sSmilCache) {
+                    CachedSmil cached = sSmilCache.get(hash);
+                    if (cached != null && Arrays.equals(cached.mData, data)) {
+                        // Every caller gets its own document to change.
+                        return cached.mTemplate.newDocument();
+                    }
+                }
+
                 if (LOCAL_LOGV) {
                     Log.v(TAG, "Parsing SMIL document.");
                     Log.v(TAG, new String(data));
                 }
 
-                ByteArrayInputStream bais = new ByteArrayInputStream(data);
-                SMILDocument document = new SmilXmlParser().parse(bais);
-                return validate(document);
+                SMILDocument document = validate(new SmilXmlParser().parse(data));
+
+                // Make the template before anyone gets to change the document.
+                SmilDocumentTemplate template = new SmilDocumentTemplate(document);
+                synchronized (sSmilCache) {
+                    sSmilCache.put(hash, new CachedSmil(data.clone(), template));
+                }
+                return document;
             }
         } catch (IOException e) {
             Log.e(TAG, "Failed to parse SMIL document.", e);
@@ -156,18 +264,11 @@ public class SmilHelper {
             String tag, SMILDocument document, String src) {
         SMILMediaElement mediaElement =
                 (SMILMediaElement) document.createElement(tag);
-        mediaElement.setSrc(escapeXML(src));
+        // SmilXmlSerializer escapes the value when it writes it.
+        mediaElement.setSrc(src);
         return mediaElement;
     }
 
-    static public String escapeXML(String str) {
-        return str.replaceAll("&","&amp;")
-                  .replaceAll("<", "&lt;")
-                  .replaceAll(">", "&gt;")
-                  .replaceAll("\"", "&quot;")
-                  .replaceAll("'", "&apos;");
-    }
-
     private static SMILDocument createSmilDocument(PduBody pb) {
         if (Config.LOGV) {
             Log.v(TAG, "Creating default SMIL document.");
@@ -285,14 +386,7 @@ public class SmilHelper {
         ArrayList<RegionModel> regions = layouts.getRegions();
         ArrayList<SMILRegionElement> smilRegions = new ArrayList<SMILRegionElement>();
         for (RegionModel r : regions) {
-            SMILRegionElement smilRegion = (SMILRegionElement) document.createElement("region");
-            smilRegion.setId(r.getRegionId());
-            smilRegion.setLeft(r.getLeft());
-            smilRegion.setTop(r.getTop());
-            smilRegion.setWidth(r.getWidth());
-            smilRegion.setHeight(r.getHeight());
-            smilRegion.setFit(r.getFit());
-            smilRegions.add(smilRegion);
+            smilRegions.add(createRegionElement(document, r));
         }
 
         // Create BODY and append it to the document.
@@ -300,67 +394,7 @@ public class SmilHelper {
         smilElement.appendChild(bodyElement);
 
         for (SlideModel slide : slideshow) {
-            boolean txtRegionPresentInLayout = false;
-            boolean imgRegionPresentInLayout = false;
-
-            // Create PAR element.
-            SMILParElement par = addPar(document);
-            par.setDur(slide.getDuration() / 1000f);
-
-            addParElementEventListeners((EventTarget) par, slide);
-
-            // Add all media elements.
-            for (MediaModel media : slide) {
-                SMILMediaElement sme = null;
-                String src = media.getSrc();
-                if (media instanceof TextModel) {
-                    TextModel text = (TextModel) media;
-                    if (TextUtils.isEmpty(text.getText())) {
-                        if (LOCAL_LOGV) {
-                            Log.v(TAG, "Empty text part ignored: " + text.getSrc());
-                        }
-                        continue;
-                    }
-                    sme = SmilHelper.createMediaElement(SmilHelper.ELEMENT_TAG_TEXT, document, src);
-                    txtRegionPresentInLayout = setRegion((SMILRegionMediaElement) sme,
-                                                         smilRegions,
-                                                         layoutElement,
-                                                         LayoutModel.TEXT_REGION_ID,
-                                                         txtRegionPresentInLayout);
-                } else if (media instanceof ImageModel) {
-                    sme = SmilHelper.createMediaElement(SmilHelper.ELEMENT_TAG_IMAGE, document, src);
-                    imgRegionPresentInLayout = setRegion((SMILRegionMediaElement) sme,
-                                                         smilRegions,
-                                                         layoutElement,
-                                                         LayoutModel.IMAGE_REGION_ID,
-                                                         imgRegionPresentInLayout);
-                } else if (media instanceof VideoModel) {
-                    sme = SmilHelper.createMediaElement(SmilHelper.ELEMENT_TAG_VIDEO, document, src);
-                    imgRegionPresentInLayout = setRegion((SMILRegionMediaElement) sme,
-                                                         smilRegions,
-                                                         layoutElement,
-                                                         LayoutModel.IMAGE_REGION_ID,
-                                                         imgRegionPresentInLayout);
-                } else if (media instanceof AudioModel) {
-                    sme = SmilHelper.createMediaElement(SmilHelper.ELEMENT_TAG_AUDIO, document, src);
-                } else {
-                    Log.w(TAG, "Unsupport media: " + media);
-                    continue;
-                }
-
-                // Set timing information.
-                int begin = media.getBegin();
-                if (begin != 0) {
-                    sme.setAttribute("begin", String.valueOf(begin / 1000));
-                }
-                int duration = media.getDuration();
-                if (duration != 0) {
-                    sme.setDur((float) duration / 1000);
-                }
-                par.appendChild(sme);
-
-                addMediaElementEventListeners((EventTarget) sme, media);
-            }
+            bodyElement.appendChild(createPar(document, slide, smilRegions, layoutElement));
         }
 
         if (LOCAL_LOGV) {
@@ -372,6 +406,88 @@ public class SmilHelper {
         return document;
     }
 
+    /**
+     * Creates the par of a slide. The first text and the first image or video of the
+     * slide are put in their region, which is appended to the layout.
+     */
+    private static SMILParElement createPar(SMILDocument document, SlideModel slide,
+            ArrayList<SMILRegionElement> smilRegions, SMILLayoutElement layoutElement) {
+        boolean txtRegionPresentInLayout = false;
+        boolean imgRegionPresentInLayout = false;
+
+        // Create PAR element.
+        SMILParElement par = (SMILParElement) document.createElement("par");
+        par.setDur(slide.getDuration() / 1000f);
+
+        addParElementEventListeners((EventTarget) par, slide);
+
+        // Add all media elements.
+        for (MediaModel media : slide) {
+            SMILMediaElement sme = null;
+            String src = media.getSrc();
+            if (media instanceof TextModel) {
+                TextModel text = (TextModel) media;
+                if (TextUtils.isEmpty(text.getText())) {
+                    if (LOCAL_LOGV) {
+                        Log.v(TAG, "Empty text part ignored: " + text.getSrc());
+                    }
+                    continue;
+                }
+                sme = SmilHelper.createMediaElement(SmilHelper.ELEMENT_TAG_TEXT, document, src);
+                txtRegionPresentInLayout = setRegion((SMILRegionMediaElement) sme,
+                                                     smilRegions,
+                                                     layoutElement,
+                                                     LayoutModel.TEXT_REGION_ID,
+                                                     txtRegionPresentInLayout);
+            } else if (media instanceof ImageModel) {
+                sme = SmilHelper.createMediaElement(SmilHelper.ELEMENT_TAG_IMAGE, document, src);
+                imgRegionPresentInLayout = setRegion((SMILRegionMediaElement) sme,
+                                                     smilRegions,
+                                                     layoutElement,
+                                                     LayoutModel.IMAGE_REGION_ID,
+                                                     imgRegionPresentInLayout);
+            } else if (media instanceof VideoModel) {
+                sme = SmilHelper.createMediaElement(SmilHelper.ELEMENT_TAG_VIDEO, document, src);
+                imgRegionPresentInLayout = setRegion((SMILRegionMediaElement) sme,
+                                                     smilRegions,
+                                                     layoutElement,
+                                                     LayoutModel.IMAGE_REGION_ID,
+                                                     imgRegionPresentInLayout);
+            } else if (media instanceof AudioModel) {
+                sme = SmilHelper.createMediaElement(SmilHelper.ELEMENT_TAG_AUDIO, document, src);
+            } else {
+                Log.w(TAG, "Unsupport media: " + media);
+                continue;
+            }
+
+            // Set timing information.
+            int begin = media.getBegin();
+            if (begin != 0) {
+                sme.setAttribute("begin", String.valueOf(begin / 1000));
+            }
+            int duration = media.getDuration();
+            if (duration != 0) {
+                sme.setDur((float) duration / 1000);
+            }
+            par.appendChild(sme);
+
+            addMediaElementEventListeners((EventTarget) sme, media);
+        }
+
+        return par;
+    }
+
+    private static SMILRegionElement createRegionElement(SMILDocument document, RegionModel r) {
+        SMILRegionElement smilRegion = (SMILRegionElement) document.createElement("region");
+        smilRegion.setId(r.getRegionId());
+        smilRegion.setLeft(r.getLeft());
+        smilRegion.setTop(r.getTop());
+        smilRegion.setWidth(r.getWidth());
+        smilRegion.setHeight(r.getHeight());
+        smilRegion.setFit(r.getFit());
+        return smilRegion;
+    }
+
     private static SMILRegionElement findRegionElementById(
             ArrayList<SMILRegionElement> smilRegions, String rId) {
         for (SMILRegionElement smilRegion : smilRegions) {
@@ -382,6 +498,18 @@ public class SmilHelper {
         return null;
     }
 
+    private static SMILRegionElement findRegionElementById(
+            SMILLayoutElement layoutElement, String rId) {
+        for (Node child = layoutElement.getFirstChild(); child != null;
+                child = child.getNextSibling()) {
+            if ((child instanceof SMILRegionElement)
+                    && rId.equals(((SMILRegionElement) child).getId())) {
+                return (SMILRegionElement) child;
+            }
+        }
+        return null;
+    }
+
     private static boolean setRegion(SMILRegionMediaElement srme,
                                      ArrayList<SMILRegionElement> smilRegions,
                                      SMILLayoutElement smilLayout,
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import com.android.mms.LogTag;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter, used when a whole batch of transactions
+ * failed together so that their retries don't all fire at the same moment.
+ * The interval doubles from BASE_INTERVAL up to MAX_INTERVAL, and the actual
+ * wait is picked at random in the upper half of it.
+ */
+public class ExponentialBackoffRetryScheme extends AbstractRetryScheme {
+    private static final String TAG = LogTag.TAG;
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final long BASE_INTERVAL = 1 * 60 * 1000;
+    private static final long MAX_INTERVAL = 30 * 60 * 1000;
+    private static final int RETRY_LIMIT = 5;
+
+    private static final Random sRandom = new Random();
+
+    public ExponentialBackoffRetryScheme(Context context, int retriedTimes) {
+        super(retriedTimes);
+
+        mRetriedTimes = mRetriedTimes < 1 ? 1 : mRetriedTimes;
+    }
+
+    @Override
+    public int getRetryLimit() {
+        return RETRY_LIMIT;
+    }
+
+    @Override
+    public long getWaitingInterval() {
+        long interval = MAX_INTERVAL;
+        if (mRetriedTimes - 1 < 31) {
+            interval = Math.min(BASE_INTERVAL << (mRetriedTimes - 1), MAX_INTERVAL);
+        }
+        long half = interval / 2;
+        long wait = half + (long) (sRandom.nextDouble() * half);
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "Next int: " + wait);
+        }
+        return wait;
+    }
+}
@@ -19,11 +19,15 @@ package com.android.mms.transaction;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Locale;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
@@ -32,19 +36,25 @@ import org.apache.http.StatusLine;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.conn.params.ConnRouteParams;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.http.AndroidHttpClient;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.Config;
 import android.util.Log;
 
+import com.android.internal.telephony.TelephonyIntents;
 import com.android.mms.LogTag;
 import com.android.mms.MmsConfig;
+import com.android.mms.util.SendingProgressTokenManager;
 
 public class HttpUtils {
     private static final String TAG = LogTag.TRANSACTION;
@@ -74,10 +84,168 @@ public class HttpUtils {
     private static final String HDR_VALUE_ACCEPT =
         "*/*, application/vnd.wap.mms-message, application/vnd.wap.sic";
 
+    // The compiled MMSC request headers, rebuilt when MmsConfig changes or
+    // after invalidateHeaderTemplate().
+    private static volatile HeaderTemplate sHeaderTemplate;
+    // Bumped by invalidateHeaderTemplate(), so a template compiled from a line number
+    // read before an invalidation isn't published after it.
+    private static int sHeaderTemplateGeneration;
+    private static final Object sHeaderTemplateLock = new Object();
+
+    // Registered when the first template is compiled, since the line number in the
+    // headers may change with the SIM.
+    private static BroadcastReceiver sSimStateReceiver;
+
     private HttpUtils() {
         // To forbidden instantiate this class.
     }
 
+    /**
+     * The MMSC request headers derived from MmsConfig and the line number,
+     * compiled once into immutable headers which can be added to any number of
+     * requests without parsing or allocation.
+     */
+    public static final class HeaderTemplate {
+        // The MmsConfig values the template was compiled from.
+        private final String mUaProfTagName;
+        private final String mUaProfUrl;
+        private final String mHttpParams;
+        private final String mLine1Key;
+
+        private final Header[] mHeaders;
+
+        private HeaderTemplate(String uaProfTagName, String uaProfUrl, String httpParams,
+                String line1Key, Header[] headers) {
+            mUaProfTagName = uaProfTagName;
+            mUaProfUrl = uaProfUrl;
+            mHttpParams = httpParams;
+            mLine1Key = line1Key;
+            mHeaders = headers;
+        }
+
+        private boolean isCompiledFrom(String uaProfTagName, String uaProfUrl,
+                String httpParams, String line1Key) {
+            return TextUtils.equals(mUaProfTagName, uaProfTagName)
+                    && TextUtils.equals(mUaProfUrl, uaProfUrl)
+                    && TextUtils.equals(mHttpParams, httpParams)
+                    && TextUtils.equals(mLine1Key, line1Key);
+        }
+
+        public void applyTo(HttpRequest req) {
+            for (Header header : mHeaders) {
+                req.addHeader(header);
+            }
+        }
+    }
+
+    /**
+     * Compile the MMSC request headers.
+     *
+     * Extra http parameters are split by '|' to get a list of value pairs.
+     * Each pair is separated by the first occurrence of ':' to obtain a name and
+     * value. The occurrences of line1Key inside a value are replaced with the
+     * user's telephone number.
+     */
+    public static HeaderTemplate compileHeaderTemplate(String uaProfTagName,
+            String uaProfUrl, String httpParams, String line1Key, String line1Number) {
+        ArrayList<Header> headers = new ArrayList<Header>();
+        headers.add(new BasicHeader(HDR_KEY_ACCEPT, HDR_VALUE_ACCEPT));
+
+        if (uaProfUrl != null) {
+            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                Log.d(LogTag.TRANSACTION,
+                        "[HttpUtils] compileHeaderTemplate: xWapProfUrl=" + uaProfUrl);
+            }
+            headers.add(new BasicHeader(uaProfTagName, uaProfUrl));
+        }
+
+        if (httpParams != null) {
+            String paramList[] = httpParams.split("\\|");
+
+            for (String paramPair : paramList) {
+                String splitPair[] = paramPair.split(":", 2);
+
+                if (splitPair.length == 2) {
+                    String name = splitPair[0].trim();
+                    String value = splitPair[1].trim();
+
+                    if (line1Key != null) {
+                        value = value.replace(line1Key, line1Number);
+                    }
+                    if (!TextUtils.isEmpty(name) && !TextUtils.isEmpty(value)) {
+                        headers.add(new BasicHeader(name, value));
+                    }
+                }
+            }
+        }
+        headers.add(new BasicHeader(HDR_KEY_ACCEPT_LANGUAGE, HDR_VALUE_ACCEPT_LANGUAGE));
+
+        return new HeaderTemplate(uaProfTagName, uaProfUrl, httpParams, line1Key,
+                headers.toArray(new Header[headers.size()]));
+    }
+
+    /**
+     * Get the compiled MMSC request headers for the current MmsConfig, compiling them
+     * if there are none or MmsConfig has changed since.
+     */
+    public static HeaderTemplate getHeaderTemplate(Context context) {
+        String uaProfTagName = MmsConfig.getUaProfTagName();
+        String uaProfUrl = MmsConfig.getUaProfUrl();
+        String httpParams = MmsConfig.getHttpParams();
+        String line1Key = MmsConfig.getHttpParamsLine1Key();
+
+        HeaderTemplate template = sHeaderTemplate;
+        if (template == null
+                || !template.isCompiledFrom(uaProfTagName, uaProfUrl, httpParams, line1Key)) {
+            registerSimStateReceiver(context);
+            int generation;
+            synchronized (sHeaderTemplateLock) {
+                generation = sHeaderTemplateGeneration;
+            }
+            String line1Number = null;
+            if (httpParams != null) {
+                line1Number = ((TelephonyManager)context
+                        .getSystemService(Context.TELEPHONY_SERVICE))
+                        .getLine1Number();
+            }
+            template = compileHeaderTemplate(uaProfTagName, uaProfUrl, httpParams,
+                    line1Key, line1Number);
+            synchronized (sHeaderTemplateLock) {
+                // If invalidated meanwhile, the line number may be stale. This request
+                // still uses it, and the next one compiles again.
+                if (generation == sHeaderTemplateGeneration) {
+                    sHeaderTemplate = template;
+                }
+            }
+        }
+        return template;
+    }
+
+    private static synchronized void registerSimStateReceiver(Context context) {
+        if (sSimStateReceiver != null) {
+            return;
+        }
+        sSimStateReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidateHeaderTemplate();
+            }
+        };
+        context.getApplicationContext().registerReceiver(sSimStateReceiver,
+                new IntentFilter(TelephonyIntents.ACTION_SIM_STATE_CHANGED));
+    }
+
+    /**
+     * Drop the compiled request headers, e.g. because the line number may have
+     * changed. They are compiled again by the next request.
+     */
+    public static void invalidateHeaderTemplate() {
+        synchronized (sHeaderTemplateLock) {
+            sHeaderTemplateGeneration++;
+            sHeaderTemplate = null;
+        }
+    }
+
     /**
      * A helper method to send or retrieve data through HTTP protocol.
      *
@@ -94,6 +262,62 @@ public class HttpUtils {
     protected static byte[] httpConnection(Context context, long token,
             String url, byte[] pdu, int method, boolean isProxySet,
             String proxyHost, int proxyPort) throws IOException {
+        ProgressCallbackEntity entity = null;
+        if (method == HTTP_POST_METHOD) {
+            entity = new ProgressCallbackEntity(context, token, pdu);
+            // Set request content type.
+            entity.setContentType("application/vnd.wap.mms-message");
+        }
+        return httpConnection(context, token, url, entity, method,
+                isProxySet, proxyHost, proxyPort, null);
+    }
+
+    /**
+     * A helper method to POST an entity through HTTP protocol. The entity is
+     * responsible for its own content type and progress reporting.
+     *
+     * @param token The token to identify the sending progress.
+     * @param entity The entity to be POST.
+     * @return A byte array which contains the response data.
+     * @throws IOException if any error occurred on network interface or
+     *         an HTTP error code(&gt;=400) returned from the server.
+     */
+    protected static byte[] httpConnection(Context context, long token,
+            String url, HttpEntity entity, boolean isProxySet,
+            String proxyHost, int proxyPort) throws IOException {
+        return httpConnection(context, token, url, entity, HTTP_POST_METHOD,
+                isProxySet, proxyHost, proxyPort, null);
+    }
+
+    /**
+     * A helper method to retrieve data through HTTP protocol without holding
+     * the whole response in memory. The response body is copied into the
+     * given stream through a small fixed-size buffer as it arrives.
+     *
+     * @param url The URL used in the GET request.
+     * @param out The stream the response body is written to. It is not closed.
+     * @throws IOException if any error occurred on network interface or
+     *         an HTTP error code(&gt;=400) returned from the server.
+     */
+    protected static void httpConnection(Context context, String url,
+            OutputStream out, boolean isProxySet, String proxyHost, int proxyPort)
+            throws IOException {
+        if (out == null) {
+            throw new IllegalArgumentException("Output stream must not be null.");
+        }
+        httpConnection(context, SendingProgressTokenManager.NO_TOKEN, url, null,
+                HTTP_GET_METHOD, isProxySet, proxyHost, proxyPort, out);
+    }
+
+    /**
+     * @param requestEntity The entity to be POST. Null when the method is
+     *         HTTP_GET_METHOD.
+     * @param out If not null, the response body is streamed into it and null
+     *         is returned; otherwise the response body is returned as an array.
+     */
+    private static byte[] httpConnection(Context context, long token,
+            String url, HttpEntity requestEntity, int method, boolean isProxySet,
+            String proxyHost, int proxyPort, OutputStream out) throws IOException {
         if (url == null) {
             throw new IllegalArgumentException("URL must not be null.");
         }
@@ -125,13 +349,8 @@ public class HttpUtils {
             HttpRequest req = null;
             switch(method) {
                 case HTTP_POST_METHOD:
-                    ProgressCallbackEntity entity = new ProgressCallbackEntity(
-                                                        context, token, pdu);
-                    // Set request content type.
-                    entity.setContentType("application/vnd.wap.mms-message");
-
                     HttpPost post = new HttpPost(url);
-                    post.setEntity(entity);
+                    post.setEntity(requestEntity);
                     req = post;
                     break;
                 case HTTP_GET_METHOD:
@@ -153,51 +372,7 @@ public class HttpUtils {
             req.setParams(params);
 
             // Set necessary HTTP headers for MMS transmission.
-            req.addHeader(HDR_KEY_ACCEPT, HDR_VALUE_ACCEPT);
-            {
-                String xWapProfileTagName = MmsConfig.getUaProfTagName();
-                String xWapProfileUrl = MmsConfig.getUaProfUrl();
-
-                if (xWapProfileUrl != null) {
-                    if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                        Log.d(LogTag.TRANSACTION,
-                                "[HttpUtils] httpConn: xWapProfUrl=" + xWapProfileUrl);
-                    }
-                    req.addHeader(xWapProfileTagName, xWapProfileUrl);
-                }
-            }
-
-            // Extra http parameters. Split by '|' to get a list of value pairs.
-            // Separate each pair by the first occurrence of ':' to obtain a name and
-            // value. Replace the occurrence of the string returned by
-            // MmsConfig.getHttpParamsLine1Key() with the users telephone number inside
-            // the value.
-            String extraHttpParams = MmsConfig.getHttpParams();
-
-            if (extraHttpParams != null) {
-                String line1Number = ((TelephonyManager)context
-                        .getSystemService(Context.TELEPHONY_SERVICE))
-                        .getLine1Number();
-                String line1Key = MmsConfig.getHttpParamsLine1Key();
-                String paramList[] = extraHttpParams.split("\\|");
-
-                for (String paramPair : paramList) {
-                    String splitPair[] = paramPair.split(":", 2);
-
-                    if (splitPair.length == 2) {
-                        String name = splitPair[0].trim();
-                        String value = splitPair[1].trim();
-
-                        if (line1Key != null) {
-                            value = value.replace(line1Key, line1Number);
-                        }
-                        if (!TextUtils.isEmpty(name) && !TextUtils.isEmpty(value)) {
-                            req.addHeader(name, value);
-                        }
-                    }
-                }
-            }
-            req.addHeader(HDR_KEY_ACCEPT_LANGUAGE, HDR_VALUE_ACCEPT_LANGUAGE);
+            getHeaderTemplate(context).applyTo(req);
 
             HttpResponse response = client.execute(target, req);
             StatusLine status = response.getStatusLine();
@@ -209,7 +384,9 @@ public class HttpUtils {
             byte[] body = null;
             if (entity != null) {
                 try {
-                    if (entity.getContentLength() > 0) {
+                    if (out != null) {
+                        writeResponseBody(entity, out);
+                    } else if (entity.getContentLength() > 0) {
                         body = new byte[(int) entity.getContentLength()];
                         DataInputStream dis = new DataInputStream(entity.getContent());
                         try {
@@ -222,7 +399,7 @@ public class HttpUtils {
                             }
                         }
                     }
-                    if (entity.isChunked()) {
+                    if (out == null && entity.isChunked()) {
                         Log.v(TAG, "httpConnection: transfer encoding is chunked");
                         int bytesTobeRead = MmsConfig.getMaxMessageSize();
                         byte[] tempBody = new byte[bytesTobeRead];
@@ -289,6 +466,39 @@ public class HttpUtils {
         return null;
     }
 
+    /**
+     * Copy the response body into the given stream using a fixed-size buffer.
+     * Responses of unknown length are bounded by MmsConfig.getMaxMessageSize(),
+     * like the buffered chunked path.
+     */
+    private static void writeResponseBody(HttpEntity entity, OutputStream out)
+            throws IOException {
+        long maxSize = entity.getContentLength() >= 0 ?
+                entity.getContentLength() : MmsConfig.getMaxMessageSize();
+        byte[] buffer = new byte[MMS_READ_BUFFER];
+        long total = 0;
+        InputStream in = entity.getContent();
+        try {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                total += bytesRead;
+                if (total > maxSize) {
+                    throw new IOException("Response entity too large");
+                }
+                out.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing input stream: " + e.getMessage());
+            }
+        }
+        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            Log.v(TAG, "httpConnection: streamed response length [" + total + "]");
+        }
+    }
+
     private static void handleHttpConnectionException(Exception exception, String url)
             throws IOException {
         // Inner exception should be logged to make life easier.
@@ -22,8 +22,11 @@ import static com.google.android.mms.pdu.PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF;
 
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -48,7 +51,10 @@ import android.media.AudioManager;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.preference.PreferenceManager;
+import android.provider.BaseColumns;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.Sms;
 import android.text.Spannable;
@@ -61,13 +67,12 @@ import android.util.Log;
 import android.widget.Toast;
 
 import com.android.mms.LogTag;
+import com.android.mms.MmsApp;
 import com.android.mms.MmsConfig;
 import com.android.mms.R;
 import com.android.mms.data.Contact;
 import com.android.mms.data.Conversation;
 import com.android.mms.data.WorkingMessage;
-import com.android.mms.model.SlideModel;
-import com.android.mms.model.SlideshowModel;
 import com.android.mms.ui.ComposeMessageActivity;
 import com.android.mms.ui.ConversationList;
 import com.android.mms.ui.MessageUtils;
@@ -76,10 +81,7 @@ import com.android.mms.util.AddressUtils;
 import com.android.mms.util.DownloadManager;
 import com.android.mms.widget.MmsWidgetProvider;
 
-import com.google.android.mms.MmsException;
 import com.google.android.mms.pdu.EncodedStringValue;
-import com.google.android.mms.pdu.GenericPdu;
-import com.google.android.mms.pdu.MultimediaMessagePdu;
 import com.google.android.mms.pdu.PduHeaders;
 import com.google.android.mms.pdu.PduPersister;
 
@@ -108,7 +110,7 @@ public class MessagingNotification {
 
     // This must be consistent with the column constants below.
     private static final String[] SMS_STATUS_PROJECTION = new String[] {
-        Sms.THREAD_ID, Sms.DATE, Sms.ADDRESS, Sms.SUBJECT, Sms.BODY };
+        Sms.THREAD_ID, Sms.DATE, Sms.ADDRESS, Sms.SUBJECT, Sms.BODY, Sms._ID };
 
     // These must be consistent with MMS_STATUS_PROJECTION and
     // SMS_STATUS_PROJECTION.
@@ -119,6 +121,9 @@ public class MessagingNotification {
     private static final int COLUMN_SUBJECT     = 3;
     private static final int COLUMN_SUBJECT_CS  = 4;
     private static final int COLUMN_SMS_BODY    = 4;
+    private static final int COLUMN_SMS_ID      = 5;
+
+    private static final String[] UNSEEN_ID_PROJECTION = new String[] { Sms._ID };
 
     private static final String[] SMS_THREAD_ID_PROJECTION = new String[] { Sms.THREAD_ID };
     private static final String[] MMS_THREAD_ID_PROJECTION = new String[] { Mms.THREAD_ID };
@@ -153,6 +158,7 @@ public class MessagingNotification {
                 Log.d(TAG, "[MessagingNotification] clear notification: mark all msgs seen");
             }
 
+            sUnseenMessages.clearShown();
             Conversation.markAllConversationsAsSeen(context);
         }
     }
@@ -168,13 +174,110 @@ public class MessagingNotification {
     private static OnDeletedReceiver sNotificationDeletedReceiver = new OnDeletedReceiver();
     private static Intent sNotificationOnDeleteIntent;
     private static Handler sHandler = new Handler();
-    private static PduPersister sPduPersister;
-    private static final int MAX_BITMAP_DIMEN_DP = 360;
-    private static float sScreenDensity;
 
     private static final int MAX_MESSAGES_TO_SHOW = 8;  // the maximum number of new messages to
                                                         // show in a single notification.
 
+    // Calls to nonBlockingUpdateNewMessageIndicator within this window of the first
+    // one are folded into a single update.
+    private static final long UPDATE_DEBOUNCE_MS = 250;
+
+    // The worker thread running the debounced updates, started on first use.
+    private static Handler sUpdateHandler;
+    private static final Object sPendingUpdateLock = new Object();
+    private static boolean sUpdatePending;
+    private static Context sPendingContext;
+    private static long sPendingThreadId;
+    private static boolean sPendingIsStatusMessage;
+    private static int sUpdatesCoalesced;
+
+    private static final UnseenMessages sUnseenMessages = new UnseenMessages();
+
+    /**
+     * In-memory model of the unseen incoming messages, keyed by message id, so an update
+     * only builds a NotificationInfo for messages which arrived since the last one. A null
+     * value marks a message which doesn't get a notification, e.g. one from a contact
+     * sent to voicemail or an MMS which failed to load.
+     */
+    private static final class UnseenMessages {
+        final HashMap<Long, NotificationInfo> mSms = new HashMap<Long, NotificationInfo>();
+        final HashMap<Long, NotificationInfo> mMms = new HashMap<Long, NotificationInfo>();
+
+        // Guards the shown state below. The update holds the UnseenMessages monitor across
+        // its queries and loads, but the shown state is also cleared from the main thread,
+        // so it has its own lock which is never held across I/O.
+        private final Object mShownLock = new Object();
+
+        // What the notification handed to NotificationManager shows, or null if unknown.
+        // NotificationInfos are reused across updates, so identity is enough.
+        List<NotificationInfo> mShownInfos;
+        int mShownMessageCount;
+        int mShownThreadCount;
+        // True once the notification is known to be gone.
+        boolean mNothingShown;
+
+        int mRefreshes;
+        int mInfosReused;
+        int mInfosBuilt;
+        int mQueriesAvoided;
+        int mRendersSkipped;
+
+        void clearShown() {
+            synchronized (mShownLock) {
+                mShownInfos = null;
+                mNothingShown = true;
+            }
+        }
+
+        boolean isNothingShown() {
+            synchronized (mShownLock) {
+                return mNothingShown;
+            }
+        }
+
+        /**
+         * @return true if the notification for these messages would look different from
+         *         the one showing.
+         */
+        boolean isShownContentChanged(SortedSet<NotificationInfo> notificationSet,
+                int threadCount) {
+            synchronized (mShownLock) {
+                return mShownInfos == null
+                        || mShownMessageCount != notificationSet.size()
+                        || mShownThreadCount != threadCount
+                        || !mShownInfos.equals(firstInfos(notificationSet));
+            }
+        }
+
+        void setShown(SortedSet<NotificationInfo> notificationSet, int threadCount) {
+            synchronized (mShownLock) {
+                mShownInfos = firstInfos(notificationSet);
+                mShownMessageCount = notificationSet.size();
+                mShownThreadCount = threadCount;
+                mNothingShown = false;
+            }
+        }
+
+        private static List<NotificationInfo> firstInfos(SortedSet<NotificationInfo> set) {
+            ArrayList<NotificationInfo> infos = new ArrayList<NotificationInfo>(
+                    Math.min(set.size(), MAX_MESSAGES_TO_SHOW));
+            for (NotificationInfo info : set) {
+                if (infos.size() == MAX_MESSAGES_TO_SHOW) {
+                    break;
+                }
+                infos.add(info);
+            }
+            return infos;
+        }
+
+        @Override
+        public String toString() {
+            return "refreshes=" + mRefreshes + " infosReused=" + mInfosReused +
+                    " infosBuilt=" + mInfosBuilt + " queriesAvoided=" + mQueriesAvoided +
+                    " rendersSkipped=" + mRendersSkipped;
+        }
+    }
+
 
     private MessagingNotification() {
     }
@@ -186,12 +289,9 @@ public class MessagingNotification {
 
         // TODO: should we unregister when the app gets killed?
         context.registerReceiver(sNotificationDeletedReceiver, intentFilter);
-        sPduPersister = PduPersister.getPduPersister(context);
 
         // initialize the notification deleted action
         sNotificationOnDeleteIntent = new Intent(NOTIFICATION_DELETED_ACTION);
-
-        sScreenDensity = context.getResources().getDisplayMetrics().density;
     }
 
     /**
@@ -227,12 +327,61 @@ public class MessagingNotification {
                     newMsgThreadId +
                     " sCurrentlyDisplayedThreadId: " + sCurrentlyDisplayedThreadId);
         }
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                blockingUpdateNewMessageIndicator(context, newMsgThreadId, isStatusMessage);
+        synchronized (sPendingUpdateLock) {
+            if (sUpdatePending) {
+                // Fold this into the update which is already waiting to run.
+                sPendingThreadId = mergeThreadIds(sPendingThreadId, newMsgThreadId);
+                sPendingIsStatusMessage |= isStatusMessage;
+                sUpdatesCoalesced++;
+                return;
             }
-        }, "MessagingNotification.nonBlockingUpdateNewMessageIndicator").start();
+            if (sUpdateHandler == null) {
+                HandlerThread thread = new HandlerThread(
+                        "MessagingNotification.nonBlockingUpdateNewMessageIndicator",
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                sUpdateHandler = new Handler(thread.getLooper());
+            }
+            sUpdatePending = true;
+            sPendingContext = context.getApplicationContext();
+            sPendingThreadId = newMsgThreadId;
+            sPendingIsStatusMessage = isStatusMessage;
+            sUpdateHandler.postDelayed(sPendingUpdateRunnable, UPDATE_DEBOUNCE_MS);
+        }
+    }
+
+    private static final Runnable sPendingUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Context context;
+            long newMsgThreadId;
+            boolean isStatusMessage;
+            synchronized (sPendingUpdateLock) {
+                context = sPendingContext;
+                newMsgThreadId = sPendingThreadId;
+                isStatusMessage = sPendingIsStatusMessage;
+                sPendingContext = null;
+                sUpdatePending = false;
+                if (DEBUG || Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
+                    Log.d(TAG, "nonBlockingUpdateNewMessageIndicator: coalesced " +
+                            sUpdatesCoalesced + " updates so far");
+                }
+            }
+            blockingUpdateNewMessageIndicator(context, newMsgThreadId, isStatusMessage);
+        }
+    };
+
+    /**
+     * Combine the thread ids of two update requests into the one to notify about.
+     */
+    private static long mergeThreadIds(long threadId1, long threadId2) {
+        if (threadId1 == THREAD_NONE || threadId1 == threadId2) {
+            return threadId2;
+        }
+        if (threadId2 == THREAD_NONE) {
+            return threadId1;
+        }
+        return THREAD_ALL;
     }
 
     /**
@@ -261,6 +410,16 @@ public class MessagingNotification {
             return;
         }
 
+        synchronized (sUnseenMessages) {
+            blockingUpdateNewMessageIndicatorLocked(context, newMsgThreadId, isStatusMessage);
+        }
+    }
+
+    private static void blockingUpdateNewMessageIndicatorLocked(Context context,
+            long newMsgThreadId, boolean isStatusMessage) {
+        final UnseenMessages unseen = sUnseenMessages;
+        refreshUnseenMessages(context, unseen);
+
         // notificationSet is kept sorted by the incoming message delivery time, with the
         // most recent message first.
         SortedSet<NotificationInfo> notificationSet =
@@ -268,15 +427,19 @@ public class MessagingNotification {
 
         Set<Long> threads = new HashSet<Long>(4);
 
-        addMmsNotificationInfos(context, threads, notificationSet);
-        addSmsNotificationInfos(context, threads, notificationSet);
+        addNotificationInfos(unseen.mMms, threads, notificationSet);
+        addNotificationInfos(unseen.mSms, threads, notificationSet);
 
         if (notificationSet.isEmpty()) {
-            if (DEBUG) {
-                Log.d(TAG, "blockingUpdateNewMessageIndicator: notificationSet is empty, " +
-                        "canceling existing notifications");
+            if (!unseen.isNothingShown()) {
+                if (DEBUG) {
+                    Log.d(TAG, "blockingUpdateNewMessageIndicator: notificationSet is empty, " +
+                            "canceling existing notifications");
+                }
+                cancelNotification(context, NOTIFICATION_ID);
+            } else {
+                unseen.mRendersSkipped++;
             }
-            cancelNotification(context, NOTIFICATION_ID);
         } else {
             if (DEBUG || Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
                 Log.d(TAG, "blockingUpdateNewMessageIndicator: count=" + notificationSet.size() +
@@ -294,21 +457,107 @@ public class MessagingNotification {
                     return;
                 }
             }
-            updateNotification(context, newMsgThreadId != THREAD_NONE, threads.size(),
-                    notificationSet);
+            if (unseen.isShownContentChanged(notificationSet, threads.size())) {
+                updateNotification(context, newMsgThreadId != THREAD_NONE, threads.size(),
+                        notificationSet);
+                unseen.setShown(notificationSet, threads.size());
+            } else {
+                // Nothing new to show, so don't repost the notification or alert again.
+                unseen.mRendersSkipped++;
+            }
         }
 
         // And deals with delivery reports (which use Toasts). It's safe to call in a worker
-        // thread because the toast will eventually get posted to a handler.
-        MmsSmsDeliveryInfo delivery = getSmsNewDeliveryInfo(context);
-        if (delivery != null) {
-            delivery.deliver(context, isStatusMessage);
+        // thread because the toast will eventually get posted to a handler. The toast is
+        // only shown for status messages, so don't bother querying otherwise.
+        if (isStatusMessage) {
+            MmsSmsDeliveryInfo delivery = getSmsNewDeliveryInfo(context);
+            if (delivery != null) {
+                delivery.deliver(context, isStatusMessage);
+            }
+        } else {
+            unseen.mQueriesAvoided++;
+        }
+
+        if (DEBUG || Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
+            Log.d(TAG, "blockingUpdateNewMessageIndicator: " + unseen);
         }
 
         notificationSet.clear();
         threads.clear();
     }
 
+    /**
+     * Bring the model of unseen messages up to date: drop messages which are no longer
+     * unseen, and build a NotificationInfo for each message which is new since last time.
+     */
+    private static void refreshUnseenMessages(Context context, UnseenMessages unseen) {
+        unseen.mRefreshes++;
+
+        Set<Long> smsIds = queryUnseenIds(context, Sms.CONTENT_URI, NEW_INCOMING_SM_CONSTRAINT);
+        unseen.mSms.keySet().retainAll(smsIds);
+        smsIds.removeAll(unseen.mSms.keySet());
+        unseen.mInfosReused += unseen.mSms.size();
+        if (smsIds.isEmpty()) {
+            unseen.mQueriesAvoided++;
+        } else {
+            addSmsNotificationInfos(context, smsIds, unseen.mSms);
+            unseen.mInfosBuilt += smsIds.size();
+        }
+
+        Set<Long> mmsIds = queryUnseenIds(context, Mms.CONTENT_URI, NEW_INCOMING_MM_CONSTRAINT);
+        unseen.mMms.keySet().retainAll(mmsIds);
+        mmsIds.removeAll(unseen.mMms.keySet());
+        unseen.mInfosReused += unseen.mMms.size();
+        if (mmsIds.isEmpty()) {
+            unseen.mQueriesAvoided++;
+        } else {
+            addMmsNotificationInfos(context, mmsIds, unseen.mMms);
+            unseen.mInfosBuilt += mmsIds.size();
+        }
+    }
+
+    private static Set<Long> queryUnseenIds(Context context, Uri uri, String selection) {
+        Set<Long> ids = new HashSet<Long>();
+        Cursor cursor = SqliteWrapper.query(context, context.getContentResolver(), uri,
+                UNSEEN_ID_PROJECTION, selection, null, null);
+        if (cursor == null) {
+            return ids;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    private static String idSelection(String constraint, Set<Long> ids) {
+        StringBuilder selection = new StringBuilder(constraint);
+        selection.append(" AND ").append(BaseColumns._ID).append(" IN (");
+        boolean first = true;
+        for (long id : ids) {
+            if (!first) {
+                selection.append(',');
+            }
+            selection.append(id);
+            first = false;
+        }
+        return selection.append(')').toString();
+    }
+
+    private static void addNotificationInfos(Map<Long, NotificationInfo> infos,
+            Set<Long> threads, SortedSet<NotificationInfo> notificationSet) {
+        for (NotificationInfo info : infos.values()) {
+            if (info != null) {
+                notificationSet.add(info);
+                threads.add(info.mThreadId);
+            }
+        }
+    }
+
     /**
      * Play the in-conversation notification sound (it's the regular notification sound, but
      * played at half-volume
@@ -371,7 +620,7 @@ public class MessagingNotification {
         public final CharSequence mTicker;
         public final long mTimeMillis;
         public final String mTitle;
-        public final Bitmap mAttachmentBitmap;
+        public final Uri mAttachmentUri;
         public final Contact mSender;
         public final boolean mIsSms;
         public final int mAttachmentType;
@@ -387,7 +636,7 @@ public class MessagingNotification {
          * as sender: message
          * @param timeMillis date the message was received
          * @param title for a single message, this is the sender
-         * @param attachmentBitmap a bitmap of an attachment, such as a picture or video
+         * @param attachmentUri the part uri of a picture attachment
          * @param sender contact of the sender
          * @param attachmentType of the mms attachment
          * @param threadId thread this message belongs to
@@ -395,7 +644,7 @@ public class MessagingNotification {
         public NotificationInfo(boolean isSms,
                 Intent clickIntent, String message, String subject,
                 CharSequence ticker, long timeMillis, String title,
-                Bitmap attachmentBitmap, Contact sender,
+                Uri attachmentUri, Contact sender,
                 int attachmentType, long threadId) {
             mIsSms = isSms;
             mClickIntent = clickIntent;
@@ -404,7 +653,7 @@ public class MessagingNotification {
             mTicker = ticker;
             mTimeMillis = timeMillis;
             mTitle = title;
-            mAttachmentBitmap = attachmentBitmap;
+            mAttachmentUri = attachmentUri;
             mSender = sender;
             mAttachmentType = attachmentType;
             mThreadId = threadId;
@@ -569,17 +818,20 @@ public class MessagingNotification {
         }
     }
 
+    /**
+     * Build the NotificationInfos of the unseen MMS with the given ids into infos.
+     */
     private static final void addMmsNotificationInfos(
-            Context context, Set<Long> threads, SortedSet<NotificationInfo> notificationSet) {
+            Context context, Set<Long> ids, Map<Long, NotificationInfo> infos) {
         ContentResolver resolver = context.getContentResolver();
 
         // This query looks like this when logged:
         // I/Database(  147): elapsedTime4Sql|/data/data/com.android.providers.telephony/databases/
         // mmssms.db|0.362 ms|SELECT thread_id, date, _id, sub, sub_cs FROM pdu WHERE ((msg_box=1
-        // AND seen=0 AND (m_type=130 OR m_type=132))) ORDER BY date desc
+        // AND seen=0 AND (m_type=130 OR m_type=132)) AND _id IN (...)) ORDER BY date desc
 
         Cursor cursor = SqliteWrapper.query(context, resolver, Mms.CONTENT_URI,
-                            MMS_STATUS_PROJECTION, NEW_INCOMING_MM_CONSTRAINT,
+                            MMS_STATUS_PROJECTION, idSelection(NEW_INCOMING_MM_CONSTRAINT, ids),
                             null, Mms.DATE + " desc");
 
         if (cursor == null) {
@@ -597,6 +849,7 @@ public class MessagingNotification {
                 Contact contact = Contact.get(address, false);
                 if (contact.getSendToVoicemail()) {
                     // don't notify, skip this one
+                    infos.put(msgId, null);
                     continue;
                 }
 
@@ -612,76 +865,27 @@ public class MessagingNotification {
                             ", addr = " + address + ", thread_id=" + threadId);
                 }
 
-                // Extract the message and/or an attached picture from the first slide
-                Bitmap attachedPicture = null;
-                String messageBody = null;
-                int attachmentType = WorkingMessage.TEXT;
-                try {
-                    GenericPdu pdu = sPduPersister.load(msgUri);
-                    if (pdu != null && pdu instanceof MultimediaMessagePdu) {
-                        SlideshowModel slideshow = SlideshowModel.createFromPduBody(context,
-                                ((MultimediaMessagePdu)pdu).getBody());
-                        attachmentType = getAttachmentType(slideshow);
-                        SlideModel firstSlide = slideshow.get(0);
-                        if (firstSlide != null) {
-                            if (firstSlide.hasImage()) {
-                                int maxDim = dp2Pixels(MAX_BITMAP_DIMEN_DP);
-                                attachedPicture = firstSlide.getImage().getBitmap(maxDim, maxDim);
-                            }
-                            if (firstSlide.hasText()) {
-                                messageBody = firstSlide.getText().getText();
-                            }
-                        }
-                    }
-                } catch (final MmsException e) {
-                    Log.e(TAG, "MmsException loading uri: " + msgUri, e);
-                    continue;   // skip this bad boy -- don't generate an empty notification
-                }
+                // Extract the message text and the attached picture from the part table.
+                // The picture itself is only loaded if the notification shows it.
+                MmsNotificationPreview preview = MmsNotificationPreview.load(context, msgId);
 
                 NotificationInfo info = getNewMessageNotificationInfo(context,
                         false /* isSms */,
                         address,
-                        messageBody, subject,
+                        preview.mText, subject,
                         threadId,
                         timeMillis,
-                        attachedPicture,
+                        preview.mPictureUri,
                         contact,
-                        attachmentType);
+                        preview.mAttachmentType);
 
-                notificationSet.add(info);
-
-                threads.add(threadId);
+                infos.put(msgId, info);
             }
         } finally {
             cursor.close();
         }
     }
 
-    // Look at the passed in slideshow and determine what type of attachment it is.
-    private static int getAttachmentType(SlideshowModel slideshow) {
-        int slideCount = slideshow.size();
-
-        if (slideCount == 0) {
-            return WorkingMessage.TEXT;
-        } else if (slideCount > 1) {
-            return WorkingMessage.SLIDESHOW;
-        } else {
-            SlideModel slide = slideshow.get(0);
-            if (slide.hasImage()) {
-                return WorkingMessage.IMAGE;
-            } else if (slide.hasVideo()) {
-                return WorkingMessage.VIDEO;
-            } else if (slide.hasAudio()) {
-                return WorkingMessage.AUDIO;
-            }
-        }
-        return WorkingMessage.TEXT;
-    }
-
-    private static final int dp2Pixels(int dip) {
-        return (int) (dip * sScreenDensity + 0.5f);
-    }
-
     private static final MmsSmsDeliveryInfo getSmsNewDeliveryInfo(Context context) {
         ContentResolver resolver = context.getContentResolver();
         Cursor cursor = SqliteWrapper.query(context, resolver, Sms.CONTENT_URI,
@@ -711,11 +915,14 @@ public class MessagingNotification {
         }
     }
 
+    /**
+     * Build the NotificationInfos of the unseen SMS with the given ids into infos.
+     */
     private static final void addSmsNotificationInfos(
-            Context context, Set<Long> threads, SortedSet<NotificationInfo> notificationSet) {
+            Context context, Set<Long> ids, Map<Long, NotificationInfo> infos) {
         ContentResolver resolver = context.getContentResolver();
         Cursor cursor = SqliteWrapper.query(context, resolver, Sms.CONTENT_URI,
-                            SMS_STATUS_PROJECTION, NEW_INCOMING_SM_CONSTRAINT,
+                            SMS_STATUS_PROJECTION, idSelection(NEW_INCOMING_SM_CONSTRAINT, ids),
                             null, Sms.DATE + " desc");
 
         if (cursor == null) {
@@ -724,11 +931,13 @@ public class MessagingNotification {
 
         try {
             while (cursor.moveToNext()) {
+                long msgId = cursor.getLong(COLUMN_SMS_ID);
                 String address = cursor.getString(COLUMN_SMS_ADDRESS);
 
                 Contact contact = Contact.get(address, false);
                 if (contact.getSendToVoicemail()) {
                     // don't notify, skip this one
+                    infos.put(msgId, null);
                     continue;
                 }
 
@@ -745,13 +954,10 @@ public class MessagingNotification {
 
                 NotificationInfo info = getNewMessageNotificationInfo(context, true /* isSms */,
                         address, message, null /* subject */,
-                        threadId, timeMillis, null /* attachmentBitmap */,
+                        threadId, timeMillis, null /* attachmentUri */,
                         contact, WorkingMessage.TEXT);
 
-                notificationSet.add(info);
-
-                threads.add(threadId);
-                threads.add(cursor.getLong(COLUMN_THREAD_ID));
+                infos.put(msgId, info);
             }
         } finally {
             cursor.close();
@@ -766,7 +972,7 @@ public class MessagingNotification {
             String subject,
             long threadId,
             long timeMillis,
-            Bitmap attachmentBitmap,
+            Uri attachmentUri,
             Contact contact,
             int attachmentType) {
         Intent clickIntent = ComposeMessageActivity.createIntent(context, threadId);
@@ -783,7 +989,7 @@ public class MessagingNotification {
 
         return new NotificationInfo(isSms,
                 clickIntent, message, subject, ticker, timeMillis,
-                senderInfoName, attachmentBitmap, contact, attachmentType, threadId);
+                senderInfoName, attachmentUri, contact, attachmentType, threadId);
     }
 
     public static void cancelNotification(Context context, int notificationId) {
@@ -792,6 +998,9 @@ public class MessagingNotification {
 
         Log.d(TAG, "cancelNotification");
         nm.cancel(notificationId);
+        if (notificationId == NOTIFICATION_ID) {
+            sUnseenMessages.clearShown();
+        }
     }
 
     private static void updateDeliveryNotification(final Context context,
@@ -967,11 +1176,18 @@ public class MessagingNotification {
             // This sets the text for the collapsed form:
             noti.setContentText(mostRecentNotification.formatBigMessage(context));
 
-            if (mostRecentNotification.mAttachmentBitmap != null) {
+            // Only now that the picture will be shown, get its thumbnail. It comes from
+            // ThumbnailManager's caches when the message was viewed before.
+            Bitmap picture = null;
+            if (mostRecentNotification.mAttachmentUri != null) {
+                picture = MmsApp.getApplication().getThumbnailManager()
+                        .getThumbnailBlocking(mostRecentNotification.mAttachmentUri);
+            }
+            if (picture != null) {
                 // The message has a picture, show that
 
                 notification = new Notification.BigPictureStyle(noti)
-                    .bigPicture(mostRecentNotification.mAttachmentBitmap)
+                    .bigPicture(picture)
                     // This sets the text for the expanded picture form:
                     .setSummaryText(mostRecentNotification.formatPictureMessage(context))
                     .build();
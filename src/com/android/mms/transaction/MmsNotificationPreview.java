@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SqliteWrapper;
+import android.net.Uri;
+import android.provider.Telephony.Mms.Part;
+
+import com.android.mms.data.WorkingMessage;
+import com.google.android.mms.ContentType;
+
+/**
+ * What a new message notification shows for an MMS: the attachment type, the first
+ * text part and the first picture. It is read from the part table alone, without
+ * loading the PDU into a SlideshowModel. The picture is only referenced by its part
+ * uri, for ThumbnailManager to load if the notification ends up showing it.
+ */
+final class MmsNotificationPreview {
+    // This must be consistent with the column constants below.
+    private static final String[] PART_PROJECTION = new String[] {
+        Part._ID, Part.CONTENT_TYPE, Part.TEXT };
+
+    private static final int COLUMN_PART_ID      = 0;
+    private static final int COLUMN_CONTENT_TYPE = 1;
+    private static final int COLUMN_TEXT         = 2;
+
+    private static final String SMIL_PAR_TAG = "<par";
+
+    public final int mAttachmentType;
+    public final String mText;
+    public final Uri mPictureUri;
+
+    private MmsNotificationPreview(int attachmentType, String text, Uri pictureUri) {
+        mAttachmentType = attachmentType;
+        mText = text;
+        mPictureUri = pictureUri;
+    }
+
+    /**
+     * Read the preview of the message. Must not be called on the UI thread.
+     */
+    public static MmsNotificationPreview load(Context context, long msgId) {
+        Uri partsUri = Uri.parse("content://mms/" + msgId + "/part");
+        Cursor cursor = SqliteWrapper.query(context, context.getContentResolver(), partsUri,
+                PART_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return new MmsNotificationPreview(WorkingMessage.TEXT, null, null);
+        }
+
+        String smil = null;
+        String text = null;
+        long imagePartId = -1;
+        int imageCount = 0;
+        int videoCount = 0;
+        int audioCount = 0;
+        int textCount = 0;
+        try {
+            while (cursor.moveToNext()) {
+                String contentType = cursor.getString(COLUMN_CONTENT_TYPE);
+                if (contentType == null) {
+                    continue;
+                }
+                if (ContentType.APP_SMIL.equals(contentType)) {
+                    smil = cursor.getString(COLUMN_TEXT);
+                } else if (ContentType.TEXT_PLAIN.equals(contentType)) {
+                    if (text == null) {
+                        text = cursor.getString(COLUMN_TEXT);
+                    }
+                    textCount++;
+                } else if (ContentType.isImageType(contentType)) {
+                    if (imagePartId < 0) {
+                        imagePartId = cursor.getLong(COLUMN_PART_ID);
+                    }
+                    imageCount++;
+                } else if (ContentType.isVideoType(contentType)) {
+                    videoCount++;
+                } else if (ContentType.isAudioType(contentType)) {
+                    audioCount++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Each <par> of the SMIL is a slide. Without a SMIL part, assume a slide per
+        // visual part, the way SlideshowModel lays such messages out.
+        int slideCount = smil != null ? countSlides(smil)
+                : Math.max(Math.max(imageCount + videoCount, textCount),
+                        audioCount > 0 ? 1 : 0);
+
+        int attachmentType;
+        if (slideCount > 1) {
+            attachmentType = WorkingMessage.SLIDESHOW;
+        } else if (imageCount > 0) {
+            attachmentType = WorkingMessage.IMAGE;
+        } else if (videoCount > 0) {
+            attachmentType = WorkingMessage.VIDEO;
+        } else if (audioCount > 0) {
+            attachmentType = WorkingMessage.AUDIO;
+        } else {
+            attachmentType = WorkingMessage.TEXT;
+        }
+
+        Uri pictureUri = imagePartId >= 0 ?
+                Uri.parse("content://mms/part/" + imagePartId) : null;
+        return new MmsNotificationPreview(attachmentType, text, pictureUri);
+    }
+
+    private static int countSlides(String smil) {
+        String lower = smil.toLowerCase();
+        int count = 0;
+        int index = lower.indexOf(SMIL_PAR_TAG);
+        while (index >= 0) {
+            char next = index + SMIL_PAR_TAG.length() < lower.length() ?
+                    lower.charAt(index + SMIL_PAR_TAG.length()) : '>';
+            // Don't count <param> elements.
+            if (next == '>' || next == '/' || Character.isWhitespace(next)) {
+                count++;
+            }
+            index = lower.indexOf(SMIL_PAR_TAG, index + SMIL_PAR_TAG.length());
+        }
+        return count;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SqliteWrapper;
+import android.provider.Telephony.Mms;
+import android.util.Log;
+
+import com.android.mms.LogTag;
+
+/**
+ * An in-memory index of the content locations stored in the pdu table, which lets
+ * PushReceiver tell a resent M-Notification.ind from a new one without querying the
+ * provider for every push.
+ *
+ * Recently seen locations are kept exactly in an LRU and are reported as duplicates
+ * outright. Every stored location is also added to a bloom filter: a location the
+ * filter has never seen is new for sure. Only a location which is in the filter but
+ * no longer in the LRU needs the provider query. A resend of a notification which was
+ * deleted while its location is still in the LRU is rejected too. The index is built
+ * from the provider the first time it is used.
+ */
+public class NotificationIndex {
+    private static final String TAG = LogTag.TAG;
+    private static final boolean LOCAL_LOGV = false;
+
+    // The number of recent content locations remembered exactly.
+    static final int RECENT_LOCATIONS = 256;
+
+    // Bits per location the bloom filter is sized for, and the hashes per location.
+    // Together they keep false positives around 0.2%.
+    private static final int BITS_PER_LOCATION = 16;
+    private static final int HASH_COUNT = 6;
+    private static final int MIN_BLOOM_BITS = 1 << 15;
+
+    private static NotificationIndex sInstance;
+
+    private final LinkedHashMap<String, Boolean> mRecent =
+            new LinkedHashMap<String, Boolean>(RECENT_LOCATIONS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > RECENT_LOCATIONS;
+        }
+    };
+
+    private BitSet mBloom;
+    private int mBloomBits;
+    private int mBloomCapacity;
+    private int mBloomCount;
+
+    private int mRecentHits;
+    private int mBloomRejects;
+    private int mQueries;
+
+    private NotificationIndex() {
+    }
+
+    public static synchronized NotificationIndex getInstance() {
+        if (sInstance == null) {
+            sInstance = new NotificationIndex();
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return true if a notification with this content location was stored before.
+     */
+    public synchronized boolean isDuplicate(Context context, String location) {
+        ensureLoaded(context);
+
+        if (mRecent.containsKey(location)) {
+            mRecentHits++;
+            return true;
+        }
+        if (!mightContain(location)) {
+            mBloomRejects++;
+            return false;
+        }
+
+        mQueries++;
+        boolean duplicate = queryLocation(context, location);
+        if (duplicate) {
+            mRecent.put(location, Boolean.TRUE);
+        }
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "NotificationIndex: queried " + location + " duplicate=" + duplicate
+                    + " " + this);
+        }
+        return duplicate;
+    }
+
+    /**
+     * Record the content location of a notification which was just stored.
+     */
+    public synchronized void add(Context context, String location) {
+        ensureLoaded(context);
+        mRecent.put(location, Boolean.TRUE);
+        addToBloom(location);
+    }
+
+    /**
+     * Forget everything, so the index is rebuilt from the provider on next use.
+     */
+    public synchronized void reset() {
+        mRecent.clear();
+        mBloom = null;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "recentHits=" + mRecentHits + " bloomRejects=" + mBloomRejects +
+                " queries=" + mQueries + " locations=" + mBloomCount;
+    }
+
+    private void ensureLoaded(Context context) {
+        if (mBloom != null) {
+            return;
+        }
+        Cursor cursor = SqliteWrapper.query(context, context.getContentResolver(),
+                Mms.CONTENT_URI, new String[] { Mms.CONTENT_LOCATION },
+                Mms.CONTENT_LOCATION + " IS NOT NULL", null, Mms.DATE + " DESC");
+        int count = cursor != null ? cursor.getCount() : 0;
+        allocateBloom(count);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                String location = cursor.getString(0);
+                addToBloom(location);
+                if (cursor.getPosition() < RECENT_LOCATIONS) {
+                    mRecent.put(location, Boolean.TRUE);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "NotificationIndex: loaded " + count + " content locations");
+        }
+    }
+
+    private void allocateBloom(int count) {
+        // Leave room for as many new locations as there are already.
+        mBloomCapacity = Math.max(count * 2, MIN_BLOOM_BITS / BITS_PER_LOCATION);
+        mBloomBits = mBloomCapacity * BITS_PER_LOCATION;
+        mBloom = new BitSet(mBloomBits);
+        mBloomCount = 0;
+    }
+
+    private void addToBloom(String location) {
+        if (mBloomCount >= mBloomCapacity) {
+            // Too full to keep the false positive rate down, so grow it. The rebuild
+            // happens from the provider, which has every location added so far.
+            mBloom = null;
+            return;
+        }
+        int hash1 = location.hashCode();
+        int hash2 = secondaryHash(location);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            mBloom.set(bloomIndex(hash1, hash2, i));
+        }
+        mBloomCount++;
+    }
+
+    private boolean mightContain(String location) {
+        int hash1 = location.hashCode();
+        int hash2 = secondaryHash(location);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            if (!mBloom.get(bloomIndex(hash1, hash2, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Kirsch-Mitzenmacher double hashing: the i-th hash is hash1 + i * hash2.
+    private int bloomIndex(int hash1, int hash2, int i) {
+        return ((hash1 + i * hash2) & Integer.MAX_VALUE) % mBloomBits;
+    }
+
+    // FNV-1a over the chars, which is independent enough of String.hashCode().
+    private static int secondaryHash(String s) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x01000193;
+        }
+        // An even step would revisit the same bits when mBloomBits is even.
+        return hash | 1;
+    }
+
+    private static boolean queryLocation(Context context, String location) {
+        Cursor cursor = SqliteWrapper.query(context, context.getContentResolver(),
+                Mms.CONTENT_URI, new String[] { Mms._ID },
+                Mms.CONTENT_LOCATION + " = ?", new String[] { location }, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -37,6 +37,7 @@ import android.util.Log;
 import com.android.mms.LogTag;
 import com.android.mms.MmsApp;
 import com.android.mms.MmsConfig;
+import com.android.mms.data.Conversation;
 import com.android.mms.ui.MessagingPreferenceActivity;
 import com.android.mms.util.DownloadManager;
 import com.android.mms.util.Recycler;
@@ -201,6 +202,7 @@ public class NotificationTransaction extends Transaction implements Runnable {
                     // Delete obsolete threads
                     SqliteWrapper.delete(mContext, mContext.getContentResolver(),
                             Threads.OBSOLETE_THREADS_URI, null, null);
+                    Conversation.invalidateThreadIdCache();
 
                     // Notify observers with newly received MM.
                     mUri = uri;
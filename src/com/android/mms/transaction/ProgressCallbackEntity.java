@@ -23,7 +23,6 @@ import java.io.OutputStream;
 import org.apache.http.entity.ByteArrayEntity;
 
 import android.content.Context;
-import android.content.Intent;
 
 public class ProgressCallbackEntity extends ByteArrayEntity {
     private static final int DEFAULT_PIECE_SIZE = 4096;
@@ -51,9 +50,11 @@ public class ProgressCallbackEntity extends ByteArrayEntity {
             throw new IllegalArgumentException("Output stream may not be null");
         }
 
+        SendingProgressReporter reporter =
+                new SendingProgressReporter(mContext, mToken, mContent.length);
         boolean completed = false;
         try {
-            broadcastProgressIfNeeded(PROGRESS_START);
+            reporter.start();
 
             int pos = 0, totalLen = mContent.length;
             while (pos < totalLen) {
@@ -66,24 +67,15 @@ public class ProgressCallbackEntity extends ByteArrayEntity {
 
                 pos += len;
 
-                broadcastProgressIfNeeded(100 * pos / totalLen);
+                reporter.onBytesWritten(pos);
             }
 
-            broadcastProgressIfNeeded(PROGRESS_COMPLETE);
+            reporter.complete();
             completed = true;
         } finally {
             if (!completed) {
-                broadcastProgressIfNeeded(PROGRESS_ABORT);
+                reporter.abort();
             }
         }
     }
-
-    private void broadcastProgressIfNeeded(int progress) {
-        if (mToken > 0) {
-            Intent intent = new Intent(PROGRESS_STATUS_ACTION);
-            intent.putExtra("progress", progress);
-            intent.putExtra("token", mToken);
-            mContext.sendBroadcast(intent);
-        }
-    }
 }
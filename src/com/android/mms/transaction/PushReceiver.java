@@ -21,6 +21,14 @@ import static android.provider.Telephony.Sms.Intents.WAP_PUSH_DELIVER_ACTION;
 import static com.google.android.mms.pdu.PduHeaders.MESSAGE_TYPE_DELIVERY_IND;
 import static com.google.android.mms.pdu.PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND;
 import static com.google.android.mms.pdu.PduHeaders.MESSAGE_TYPE_READ_ORIG_IND;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.ContentValues;
@@ -30,8 +38,11 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SqliteWrapper;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.Mms.Inbox;
 import android.util.Log;
@@ -51,110 +62,113 @@ import com.google.android.mms.pdu.ReadOrigInd;
 
 /**
  * Receives Intent.WAP_PUSH_RECEIVED_ACTION intents and starts the
- * TransactionService by passing the push-data to it.
+ * TransactionService by passing the push-data to it. Pushes are stored in the order
+ * they arrive on a single background thread, in batches of up to MAX_BATCH.
  */
 public class PushReceiver extends BroadcastReceiver {
     private static final String TAG = LogTag.TAG;
     private static final boolean DEBUG = false;
     private static final boolean LOCAL_LOGV = false;
 
-    private class ReceivePushTask extends AsyncTask<Intent,Void,Void> {
-        private Context mContext;
-        public ReceivePushTask(Context context) {
-            mContext = context;
+    // The most pushes handled before TransactionService is started for them.
+    private static final int MAX_BATCH = 20;
+
+    // Past this many pushes held in memory, further pushes are written to files in
+    // SPILL_DIR until the queue drains, so a flood can't use memory without bound.
+    private static final int MAX_QUEUED = 50;
+
+    private static final String SPILL_DIR = "pushes";
+
+    private static final Object sQueueLock = new Object();
+    // Pushes held in memory, oldest first. They are all older than the spilled ones.
+    private static final ArrayList<QueuedPush> sQueue = new ArrayList<QueuedPush>();
+    // Pushes written to SPILL_DIR, oldest first.
+    private static final ArrayList<SpilledPush> sSpilled = new ArrayList<SpilledPush>();
+    private static int sSpillSequence;
+    private static Handler sPushHandler;
+    private static PowerManager.WakeLock sDrainWakeLock;
+    private static boolean sDraining;
+
+    // End-to-end latency of the pushes handled so far, from onReceive until the PDU is
+    // stored and TransactionService is started.
+    private static int sPushCount;
+    private static long sTotalLatency;
+    private static long sMaxLatency;
+
+    private static final class QueuedPush {
+        final byte[] mData;
+        final long mReceivedAt;
+
+        QueuedPush(byte[] data, long receivedAt) {
+            mData = data;
+            mReceivedAt = receivedAt;
         }
+    }
 
-        @Override
-        protected Void doInBackground(Intent... intents) {
-            Intent intent = intents[0];
-
-            // Get raw PDU push-data from the message and parse it
-            byte[] pushData = intent.getByteArrayExtra("data");
-            PduParser parser = new PduParser(
-                    pushData, PduParserUtil.shouldParseContentDisposition());
-            GenericPdu pdu = parser.parse();
-
-            if (null == pdu) {
-                Log.e(TAG, "Invalid PUSH data");
-                return null;
-            }
+    private static final class SpilledPush {
+        final File mFile;
+        final long mReceivedAt;
 
-            PduPersister p = PduPersister.getPduPersister(mContext);
-            ContentResolver cr = mContext.getContentResolver();
-            int type = pdu.getMessageType();
-            long threadId = -1;
+        SpilledPush(File file, long receivedAt) {
+            mFile = file;
+            mReceivedAt = receivedAt;
+        }
+    }
+
+    private static final class DrainQueueRunnable implements Runnable {
+        private final Context mContext;
+
+        DrainQueueRunnable(Context context) {
+            mContext = context;
+        }
 
+        @Override
+        public void run() {
             try {
-                switch (type) {
-                    case MESSAGE_TYPE_DELIVERY_IND:
-                    case MESSAGE_TYPE_READ_ORIG_IND: {
-                        threadId = findThreadId(mContext, pdu, type);
-                        if (threadId == -1) {
-                            // The associated SendReq isn't found, therefore skip
-                            // processing this PDU.
-                            break;
+                while (true) {
+                    ArrayList<QueuedPush> batch;
+                    ArrayList<SpilledPush> spilled = null;
+                    synchronized (sQueueLock) {
+                        if (!sQueue.isEmpty()) {
+                            int count = Math.min(sQueue.size(), MAX_BATCH);
+                            batch = new ArrayList<QueuedPush>(sQueue.subList(0, count));
+                            sQueue.subList(0, count).clear();
+                        } else if (!sSpilled.isEmpty()) {
+                            // Pushes arriving from now on are newer, and can be queued in
+                            // memory again while these are read back.
+                            int count = Math.min(sSpilled.size(), MAX_BATCH);
+                            spilled = new ArrayList<SpilledPush>(sSpilled.subList(0, count));
+                            sSpilled.subList(0, count).clear();
+                            batch = new ArrayList<QueuedPush>(count);
+                        } else {
+                            sDraining = false;
+                            return;
                         }
-
-                        Uri uri = p.persist(pdu, Inbox.CONTENT_URI, true,
-                                MessagingPreferenceActivity.getIsGroupMmsEnabled(mContext), null);
-                        // Update thread ID for ReadOrigInd & DeliveryInd.
-                        ContentValues values = new ContentValues(1);
-                        values.put(Mms.THREAD_ID, threadId);
-                        SqliteWrapper.update(mContext, cr, uri, values, null, null);
-                        break;
                     }
-                    case MESSAGE_TYPE_NOTIFICATION_IND: {
-                        NotificationInd nInd = (NotificationInd) pdu;
-
-                        if (MmsConfig.getTransIdEnabled()) {
-                            byte [] contentLocation = nInd.getContentLocation();
-                            if ('=' == contentLocation[contentLocation.length - 1]) {
-                                byte [] transactionId = nInd.getTransactionId();
-                                byte [] contentLocationWithId = new byte [contentLocation.length
-                                                                          + transactionId.length];
-                                System.arraycopy(contentLocation, 0, contentLocationWithId,
-                                        0, contentLocation.length);
-                                System.arraycopy(transactionId, 0, contentLocationWithId,
-                                        contentLocation.length, transactionId.length);
-                                nInd.setContentLocation(contentLocationWithId);
+                    if (spilled != null) {
+                        for (SpilledPush push : spilled) {
+                            byte[] data = readSpilledPush(push.mFile);
+                            if (data != null) {
+                                batch.add(new QueuedPush(data, push.mReceivedAt));
                             }
                         }
-
-                        if (!isDuplicateNotification(mContext, nInd)) {
-                            // Save the pdu. If we can start downloading the real pdu immediately,
-                            // don't allow persist() to create a thread for the notificationInd
-                            // because it causes UI jank.
-                            Uri uri = p.persist(pdu, Inbox.CONTENT_URI,
-                                    !NotificationTransaction.allowAutoDownload(),
-                                    MessagingPreferenceActivity.getIsGroupMmsEnabled(mContext),
-                                    null);
-
-                            // Start service to finish the notification transaction.
-                            Intent svc = new Intent(mContext, TransactionService.class);
-                            svc.putExtra(TransactionBundle.URI, uri.toString());
-                            svc.putExtra(TransactionBundle.TRANSACTION_TYPE,
-                                    Transaction.NOTIFICATION_TRANSACTION);
-                            mContext.startService(svc);
-                        } else if (LOCAL_LOGV) {
-                            Log.v(TAG, "Skip downloading duplicate message: "
-                                    + new String(nInd.getContentLocation()));
+                    }
+                    handleBatch(mContext, batch);
+                    if (spilled != null) {
+                        // Only now that their PDUs are stored, so a push isn't lost if
+                        // the process dies mid-batch. One stored but not yet deleted is
+                        // handled again on restore, and caught as a duplicate.
+                        for (SpilledPush push : spilled) {
+                            push.mFile.delete();
                         }
-                        break;
                     }
-                    default:
-                        Log.e(TAG, "Received unrecognized PDU.");
                 }
-            } catch (MmsException e) {
-                Log.e(TAG, "Failed to save the data from PUSH: type=" + type, e);
-            } catch (RuntimeException e) {
-                Log.e(TAG, "Unexpected RuntimeException.", e);
-            }
-
-            if (LOCAL_LOGV) {
-                Log.v(TAG, "PUSH Intent processed.");
+            } finally {
+                synchronized (sQueueLock) {
+                    sDraining = false;
+                }
+                sDrainWakeLock.release();
             }
-
-            return null;
         }
     }
 
@@ -172,7 +186,252 @@ public class PushReceiver extends BroadcastReceiver {
             PowerManager.WakeLock wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
                                             "MMS PushReceiver");
             wl.acquire(5000);
-            new ReceivePushTask(context).execute(intent);
+            enqueuePush(context.getApplicationContext(), intent.getByteArrayExtra("data"));
+        }
+    }
+
+    /**
+     * Queue the push for the PushReceiver thread, which handles pushes one at a time in
+     * the order they arrived. The broadcast itself is done once the push is queued.
+     */
+    private static void enqueuePush(Context context, byte[] data) {
+        synchronized (sQueueLock) {
+            if (sPushHandler == null) {
+                HandlerThread thread = new HandlerThread("PushReceiver",
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                sPushHandler = new Handler(thread.getLooper());
+                PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+                sDrainWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                        "MMS PushReceiver drain");
+                // Pushes spilled by an earlier process which didn't get to store them.
+                restoreSpilledPushes(context);
+            }
+
+            long now = SystemClock.elapsedRealtime();
+            if ((sQueue.size() >= MAX_QUEUED || !sSpilled.isEmpty()) && (data != null)
+                    && spillPush(context, data, now)) {
+                // Kept on disk until the pushes before it are stored.
+            } else {
+                sQueue.add(new QueuedPush(data, now));
+            }
+
+            if (sDraining) {
+                return;
+            }
+            sDraining = true;
+            // Released by the DrainQueueRunnable once the queue is empty.
+            sDrainWakeLock.acquire();
+            sPushHandler.post(new DrainQueueRunnable(context));
+        }
+    }
+
+    /**
+     * Write the push to SPILL_DIR and queue it there, after the pushes already spilled.
+     *
+     * @return false if it couldn't be written.
+     */
+    private static boolean spillPush(Context context, byte[] data, long receivedAt) {
+        // Named so that they sort in the order they arrived, even across processes.
+        File file = new File(context.getDir(SPILL_DIR, Context.MODE_PRIVATE),
+                String.format("%013d-%06d", System.currentTimeMillis(), sSpillSequence++));
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(data);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to spill a push to " + file, e);
+            file.delete();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        sSpilled.add(new SpilledPush(file, receivedAt));
+        return true;
+    }
+
+    private static void restoreSpilledPushes(Context context) {
+        File dir = context.getDir(SPILL_DIR, Context.MODE_PRIVATE);
+        String[] names = dir.list();
+        if (names == null || names.length == 0) {
+            return;
+        }
+        Arrays.sort(names);
+        long now = SystemClock.elapsedRealtime();
+        for (String name : names) {
+            sSpilled.add(new SpilledPush(new File(dir, name), now));
+        }
+        Log.i(TAG, "PushReceiver: restored " + names.length + " spilled pushes");
+    }
+
+    /**
+     * Read a spilled push back. The file is left for the caller to delete.
+     *
+     * @return the push data, or null if it couldn't be read.
+     */
+    private static byte[] readSpilledPush(File file) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < data.length) {
+                int count = in.read(data, offset, data.length - offset);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                offset += count;
+            }
+            return data;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read the spilled push " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Store the PDUs of a batch of pushes, then start TransactionService once for all
+     * the notifications among them.
+     */
+    private static void handleBatch(Context context, List<QueuedPush> batch) {
+        ArrayList<String> notificationUris = new ArrayList<String>(batch.size());
+        for (QueuedPush push : batch) {
+            handlePush(context, push.mData, notificationUris);
+        }
+
+        if (!notificationUris.isEmpty()) {
+            // Start service to finish the notification transactions.
+            Intent svc = new Intent(context, TransactionService.class);
+            if (notificationUris.size() == 1) {
+                svc.putExtra(TransactionBundle.URI, notificationUris.get(0));
+            } else {
+                svc.putExtra(TransactionBundle.URIS,
+                        notificationUris.toArray(new String[notificationUris.size()]));
+            }
+            svc.putExtra(TransactionBundle.TRANSACTION_TYPE,
+                    Transaction.NOTIFICATION_TRANSACTION);
+            context.startService(svc);
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long batchMax = 0;
+        synchronized (sQueueLock) {
+            for (QueuedPush push : batch) {
+                long latency = now - push.mReceivedAt;
+                batchMax = Math.max(batchMax, latency);
+                sTotalLatency += latency;
+                sMaxLatency = Math.max(sMaxLatency, latency);
+                sPushCount++;
+            }
+            if (LOCAL_LOGV || Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                Log.v(TAG, "PushReceiver: handled " + batch.size() + " pushes, " +
+                        notificationUris.size() + " notifications, max latency " + batchMax +
+                        " ms; overall " + sPushCount + " pushes, avg latency " +
+                        (sTotalLatency / sPushCount) + " ms, max " + sMaxLatency + " ms");
+            }
+        }
+    }
+
+    /**
+     * Parse and store the PDU of a push. The uri of a stored M-Notification.ind, which
+     * still needs its NotificationTransaction, is added to notificationUris.
+     */
+    private static void handlePush(Context context, byte[] pushData,
+            List<String> notificationUris) {
+        // Parse the raw PDU push-data of the message
+        PduParser parser = new PduParser(
+                pushData, PduParserUtil.shouldParseContentDisposition());
+        GenericPdu pdu = parser.parse();
+
+        if (null == pdu) {
+            Log.e(TAG, "Invalid PUSH data");
+            return;
+        }
+
+        PduPersister p = PduPersister.getPduPersister(context);
+        ContentResolver cr = context.getContentResolver();
+        int type = pdu.getMessageType();
+        long threadId = -1;
+
+        try {
+            switch (type) {
+                case MESSAGE_TYPE_DELIVERY_IND:
+                case MESSAGE_TYPE_READ_ORIG_IND: {
+                    threadId = findThreadId(context, pdu, type);
+                    if (threadId == -1) {
+                        // The associated SendReq isn't found, therefore skip
+                        // processing this PDU.
+                        break;
+                    }
+
+                    Uri uri = p.persist(pdu, Inbox.CONTENT_URI, true,
+                            MessagingPreferenceActivity.getIsGroupMmsEnabled(context), null);
+                    // Update thread ID for ReadOrigInd & DeliveryInd.
+                    ContentValues values = new ContentValues(1);
+                    values.put(Mms.THREAD_ID, threadId);
+                    SqliteWrapper.update(context, cr, uri, values, null, null);
+                    break;
+                }
+                case MESSAGE_TYPE_NOTIFICATION_IND: {
+                    NotificationInd nInd = (NotificationInd) pdu;
+
+                    if (MmsConfig.getTransIdEnabled()) {
+                        byte [] contentLocation = nInd.getContentLocation();
+                        if ('=' == contentLocation[contentLocation.length - 1]) {
+                            byte [] transactionId = nInd.getTransactionId();
+                            byte [] contentLocationWithId = new byte [contentLocation.length
+                                                                      + transactionId.length];
+                            System.arraycopy(contentLocation, 0, contentLocationWithId,
+                                    0, contentLocation.length);
+                            System.arraycopy(transactionId, 0, contentLocationWithId,
+                                    contentLocation.length, transactionId.length);
+                            nInd.setContentLocation(contentLocationWithId);
+                        }
+                    }
+
+                    if (!isDuplicateNotification(context, nInd)) {
+                        // Save the pdu. If we can start downloading the real pdu immediately,
+                        // don't allow persist() to create a thread for the notificationInd
+                        // because it causes UI jank.
+                        Uri uri = p.persist(pdu, Inbox.CONTENT_URI,
+                                !NotificationTransaction.allowAutoDownload(),
+                                MessagingPreferenceActivity.getIsGroupMmsEnabled(context),
+                                null);
+                        NotificationIndex.getInstance().add(context,
+                                new String(nInd.getContentLocation()));
+
+                        notificationUris.add(uri.toString());
+                    } else if (LOCAL_LOGV) {
+                        Log.v(TAG, "Skip downloading duplicate message: "
+                                + new String(nInd.getContentLocation()));
+                    }
+                    break;
+                }
+                default:
+                    Log.e(TAG, "Received unrecognized PDU.");
+            }
+        } catch (MmsException e) {
+            Log.e(TAG, "Failed to save the data from PUSH: type=" + type, e);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unexpected RuntimeException.", e);
+        }
+
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "PUSH Intent processed.");
         }
     }
 
@@ -217,22 +476,8 @@ public class PushReceiver extends BroadcastReceiver {
         byte[] rawLocation = nInd.getContentLocation();
         if (rawLocation != null) {
             String location = new String(rawLocation);
-            String selection = Mms.CONTENT_LOCATION + " = ?";
-            String[] selectionArgs = new String[] { location };
-            Cursor cursor = SqliteWrapper.query(
-                    context, context.getContentResolver(),
-                    Mms.CONTENT_URI, new String[] { Mms._ID },
-                    selection, selectionArgs, null);
-            if (cursor != null) {
-                try {
-                    if (cursor.getCount() > 0) {
-                        // We already received the same notification before.
-                        return true;
-                    }
-                } finally {
-                    cursor.close();
-                }
-            }
+            // The index only queries the provider when it can't tell on its own.
+            return NotificationIndex.getInstance().isDuplicate(context, location);
         }
         return false;
     }
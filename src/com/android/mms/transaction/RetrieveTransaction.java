@@ -43,7 +43,13 @@ import com.google.android.mms.pdu.PduParser;
 import com.google.android.mms.pdu.PduPersister;
 import com.google.android.mms.pdu.RetrieveConf;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * The RetrieveTransaction is responsible for retrieving multimedia
@@ -63,6 +69,8 @@ public class RetrieveTransaction extends Transaction implements Runnable {
     private static final boolean DEBUG = false;
     private static final boolean LOCAL_LOGV = false;
 
+    private static final String SPILL_FILE_PREFIX = "retrieve_conf";
+
     private final Uri mUri;
     private final String mContentLocation;
     private boolean mLocked;
@@ -134,7 +142,7 @@ public class RetrieveTransaction extends Transaction implements Runnable {
                     mUri, DownloadManager.STATE_DOWNLOADING);
 
             // Send GET request to MMSC and retrieve the response data.
-            byte[] resp = getPdu(mContentLocation);
+            byte[] resp = retrievePdu(mContentLocation);
 
             // Parse M-Retrieve.conf
             RetrieveConf retrieveConf = (RetrieveConf) new PduParser(
@@ -198,6 +206,41 @@ public class RetrieveTransaction extends Transaction implements Runnable {
         }
     }
 
+    /**
+     * Download the M-Retrieve.conf into a spill file in the cache directory
+     * and read it back into an array of exactly the received size. This avoids
+     * holding a buffer of MmsConfig.getMaxMessageSize() bytes plus a second
+     * copy of the body while the response is in flight.
+     */
+    private byte[] retrievePdu(String url) throws IOException, MmsException {
+        File pduFile = File.createTempFile(SPILL_FILE_PREFIX, null, mContext.getCacheDir());
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(pduFile));
+            try {
+                getPdu(url, out);
+            } finally {
+                out.close();
+            }
+
+            long length = pduFile.length();
+            if (length <= 0 || length > Integer.MAX_VALUE) {
+                throw new MmsException("Invalid M-Retrieve.conf length: " + length);
+            }
+            byte[] pdu = new byte[(int) length];
+            DataInputStream in = new DataInputStream(new FileInputStream(pduFile));
+            try {
+                in.readFully(pdu);
+            } finally {
+                in.close();
+            }
+            return pdu;
+        } finally {
+            if (!pduFile.delete()) {
+                Log.w(TAG, "Failed to delete " + pduFile);
+            }
+        }
+    }
+
     private static boolean isDuplicateMessage(Context context, RetrieveConf rc) {
         byte[] rawMessageId = rc.getMessageId();
         if (rawMessageId != null) {
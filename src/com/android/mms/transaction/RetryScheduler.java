@@ -19,16 +19,19 @@ package com.android.mms.transaction;
 
 import android.app.AlarmManager;
 import android.app.PendingIntent;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.sqlite.SqliteWrapper;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.MmsSms;
 import android.provider.Telephony.MmsSms.PendingMessages;
@@ -40,6 +43,11 @@ import com.android.mms.util.DownloadManager;
 import com.google.android.mms.pdu.PduHeaders;
 import com.google.android.mms.pdu.PduPersister;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
 public class RetryScheduler implements Observer {
     private static final String TAG = LogTag.TAG;
     private static final boolean DEBUG = false;
@@ -48,6 +56,10 @@ public class RetryScheduler implements Observer {
     private final Context mContext;
     private final ContentResolver mContentResolver;
 
+    // Failed messages collected between beginBatch() and endBatch().
+    private final ArrayList<Uri> mBatchedUris = new ArrayList<Uri>();
+    private int mBatchDepth;
+
     private RetryScheduler(Context context) {
         mContext = context;
         mContentResolver = context.getContentResolver();
@@ -86,14 +98,51 @@ public class RetryScheduler implements Observer {
                     TransactionState state = t.getState();
                     if (state.getState() == TransactionState.FAILED) {
                         Uri uri = state.getContentUri();
-                        if (uri != null) {
-                            scheduleRetry(uri);
+                        if (uri != null && !addToBatch(uri)) {
+                            scheduleRetries(Collections.singletonList(uri), false);
                         }
                     }
                 } finally {
                     t.detach(this);
                 }
             }
+        } finally {
+            if (!isBatching() && isConnected()) {
+                setRetryAlarm(mContext);
+            }
+        }
+    }
+
+    /**
+     * Start collecting failed transactions instead of scheduling their retries
+     * one at a time. The retries are scheduled together, with jittered
+     * exponential backoff, by the matching {@link #endBatch()}. Used when all
+     * the transactions of a connectivity window fail at once.
+     */
+    public void beginBatch() {
+        synchronized (mBatchedUris) {
+            mBatchDepth++;
+        }
+    }
+
+    /**
+     * Schedule the retries of the failed transactions collected since
+     * {@link #beginBatch()} in a single pass and set the retry alarm once.
+     */
+    public void endBatch() {
+        ArrayList<Uri> uris;
+        synchronized (mBatchedUris) {
+            if (mBatchDepth == 0 || --mBatchDepth > 0) {
+                return;
+            }
+            uris = new ArrayList<Uri>(mBatchedUris);
+            mBatchedUris.clear();
+        }
+
+        try {
+            if (!uris.isEmpty()) {
+                scheduleRetries(uris, true);
+            }
         } finally {
             if (isConnected()) {
                 setRetryAlarm(mContext);
@@ -101,177 +150,283 @@ public class RetryScheduler implements Observer {
         }
     }
 
-    private void scheduleRetry(Uri uri) {
-        long msgId = ContentUris.parseId(uri);
+    private boolean isBatching() {
+        synchronized (mBatchedUris) {
+            return mBatchDepth > 0;
+        }
+    }
+
+    private boolean addToBatch(Uri uri) {
+        synchronized (mBatchedUris) {
+            if (mBatchDepth == 0) {
+                return false;
+            }
+            if (!mBatchedUris.contains(uri)) {
+                mBatchedUris.add(uri);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The columns of a message which decide whether and how it is retried.
+     */
+    private static final class MessageStatus {
+        int mMessageBox;
+        int mResponseStatus;
+        long mThreadId;
+    }
+
+    private static final String[] STATUS_PROJECTION = new String[] {
+        Mms._ID,
+        Mms.MESSAGE_BOX,
+        Mms.RESPONSE_STATUS,
+        Mms.THREAD_ID
+    };
+
+    // The indexes of the columns which must be consistent with above STATUS_PROJECTION.
+    private static final int COLUMN_ID              = 0;
+    private static final int COLUMN_MESSAGE_BOX     = 1;
+    private static final int COLUMN_RESPONSE_STATUS = 2;
+    private static final int COLUMN_THREAD_ID       = 3;
+
+    /**
+     * Update the pending table for the failed messages with one query of the
+     * pending table, one query of their statuses and one batch of updates.
+     *
+     * @param jitter true to spread the retries with jittered exponential
+     *         backoff, false to use the DefaultRetryScheme.
+     */
+    private void scheduleRetries(List<Uri> uris, boolean jitter) {
+        HashMap<Long, Uri> uriById = new HashMap<Long, Uri>(uris.size());
+        StringBuilder ids = new StringBuilder();
+        for (Uri uri : uris) {
+            long msgId = ContentUris.parseId(uri);
+            if (uriById.put(msgId, uri) == null) {
+                if (ids.length() > 0) {
+                    ids.append(',');
+                }
+                ids.append(msgId);
+            }
+        }
+        String inIds = " IN (" + ids + ")";
+        int roundTrips = 0;
 
         Uri.Builder uriBuilder = PendingMessages.CONTENT_URI.buildUpon();
         uriBuilder.appendQueryParameter("protocol", "mms");
-        uriBuilder.appendQueryParameter("message", String.valueOf(msgId));
 
         Cursor cursor = SqliteWrapper.query(mContext, mContentResolver,
-                uriBuilder.build(), null, null, null, null);
+                uriBuilder.build(), null, PendingMessages.MSG_ID + inIds, null, null);
+        roundTrips++;
+        if (cursor == null) {
+            return;
+        }
 
-        if (cursor != null) {
-            try {
-                if ((cursor.getCount() == 1) && cursor.moveToFirst()) {
-                    int msgType = cursor.getInt(cursor.getColumnIndexOrThrow(
-                            PendingMessages.MSG_TYPE));
-
-                    int retryIndex = cursor.getInt(cursor.getColumnIndexOrThrow(
-                            PendingMessages.RETRY_INDEX)) + 1; // Count this time.
-
-                    // TODO Should exactly understand what was happened.
-                    int errorType = MmsSms.ERR_TYPE_GENERIC;
-
-                    DefaultRetryScheme scheme = new DefaultRetryScheme(mContext, retryIndex);
-
-                    ContentValues values = new ContentValues(4);
-                    long current = System.currentTimeMillis();
-                    boolean isRetryDownloading =
-                            (msgType == PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND);
-                    boolean retry = true;
-                    int respStatus = getResponseStatus(msgId);
-                    int errorString = 0;
-                    if (!isRetryDownloading) {
-                        // Send Transaction case
-                        switch (respStatus) {
-                            case PduHeaders.RESPONSE_STATUS_ERROR_SENDING_ADDRESS_UNRESOLVED:
-                                errorString = R.string.invalid_destination;
-                                break;
-                            case PduHeaders.RESPONSE_STATUS_ERROR_SERVICE_DENIED:
-                            case PduHeaders.RESPONSE_STATUS_ERROR_PERMANENT_SERVICE_DENIED:
-                                errorString = R.string.service_not_activated;
-                                break;
-                            case PduHeaders.RESPONSE_STATUS_ERROR_NETWORK_PROBLEM:
-                                errorString = R.string.service_network_problem;
-                                break;
-                            case PduHeaders.RESPONSE_STATUS_ERROR_TRANSIENT_MESSAGE_NOT_FOUND:
-                            case PduHeaders.RESPONSE_STATUS_ERROR_PERMANENT_MESSAGE_NOT_FOUND:
-                                errorString = R.string.service_message_not_found;
-                                break;
-                        }
-                        if (errorString != 0) {
-                            DownloadManager.getInstance().showErrorCodeToast(errorString);
-                            retry = false;
-                        }
-                    } else {
-                        // apply R880 IOT issue (Conformance 11.6 Retrieve Invalid Message)
-                        // Notification Transaction case
-                        respStatus = getRetrieveStatus(msgId);
-                        if (respStatus ==
-                                PduHeaders.RESPONSE_STATUS_ERROR_PERMANENT_MESSAGE_NOT_FOUND) {
-                            DownloadManager.getInstance().showErrorCodeToast(
-                                    R.string.service_message_not_found);
-                            SqliteWrapper.delete(mContext, mContext.getContentResolver(), uri,
-                                    null, null);
-                            retry = false;
-                            return;
-                        }
+        HashMap<Long, MessageStatus> statuses = new HashMap<Long, MessageStatus>(uris.size());
+        ArrayList<ContentProviderOperation> pendingOps =
+                new ArrayList<ContentProviderOperation>(uris.size());
+        ArrayList<ContentProviderOperation> mmsOps = new ArrayList<ContentProviderOperation>();
+        ArrayList<Long> downloadFailedThreads = new ArrayList<Long>();
+        boolean sendFailed = false;
+        int scheduled = 0;
+
+        try {
+            if (cursor.getCount() == 0) {
+                return;
+            }
+
+            // A message must have exactly one pending entry to be retried.
+            HashMap<Long, Integer> entries = new HashMap<Long, Integer>(uris.size());
+            int msgIdIndex = cursor.getColumnIndexOrThrow(PendingMessages.MSG_ID);
+            while (cursor.moveToNext()) {
+                long msgId = cursor.getLong(msgIdIndex);
+                Integer count = entries.get(msgId);
+                entries.put(msgId, count == null ? 1 : count + 1);
+            }
+
+            loadMessageStatuses(inIds, statuses);
+            roundTrips++;
+
+            long current = System.currentTimeMillis();
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                long msgId = cursor.getLong(msgIdIndex);
+                Uri uri = uriById.get(msgId);
+                if (uri == null || entries.get(msgId) != 1) {
+                    if (LOCAL_LOGV) {
+                        Log.v(TAG, "Cannot found correct pending status for: " + msgId);
                     }
-                    if ((retryIndex < scheme.getRetryLimit()) && retry) {
-                        long retryAt = current + scheme.getWaitingInterval();
+                    continue;
+                }
 
+                int msgType = cursor.getInt(cursor.getColumnIndexOrThrow(
+                        PendingMessages.MSG_TYPE));
+
+                int retryIndex = cursor.getInt(cursor.getColumnIndexOrThrow(
+                        PendingMessages.RETRY_INDEX)) + 1; // Count this time.
+
+                // TODO Should exactly understand what was happened.
+                int errorType = MmsSms.ERR_TYPE_GENERIC;
+
+                AbstractRetryScheme scheme = jitter
+                        ? new ExponentialBackoffRetryScheme(mContext, retryIndex)
+                        : new DefaultRetryScheme(mContext, retryIndex);
+
+                ContentValues values = new ContentValues(4);
+                boolean isRetryDownloading =
+                        (msgType == PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND);
+                boolean retry = true;
+                MessageStatus status = statuses.get(msgId);
+                int errorString = 0;
+                if (!isRetryDownloading) {
+                    // Send Transaction case
+                    int respStatus = getResponseStatus(status, Mms.MESSAGE_BOX_OUTBOX);
+                    if (respStatus != 0) {
+                        Log.e(TAG, "Response status is: " + respStatus);
+                    }
+                    switch (respStatus) {
+                        case PduHeaders.RESPONSE_STATUS_ERROR_SENDING_ADDRESS_UNRESOLVED:
+                            errorString = R.string.invalid_destination;
+                            break;
+                        case PduHeaders.RESPONSE_STATUS_ERROR_SERVICE_DENIED:
+                        case PduHeaders.RESPONSE_STATUS_ERROR_PERMANENT_SERVICE_DENIED:
+                            errorString = R.string.service_not_activated;
+                            break;
+                        case PduHeaders.RESPONSE_STATUS_ERROR_NETWORK_PROBLEM:
+                            errorString = R.string.service_network_problem;
+                            break;
+                        case PduHeaders.RESPONSE_STATUS_ERROR_TRANSIENT_MESSAGE_NOT_FOUND:
+                        case PduHeaders.RESPONSE_STATUS_ERROR_PERMANENT_MESSAGE_NOT_FOUND:
+                            errorString = R.string.service_message_not_found;
+                            break;
+                    }
+                    if (errorString != 0) {
+                        DownloadManager.getInstance().showErrorCodeToast(errorString);
+                        retry = false;
+                    }
+                } else {
+                    // apply R880 IOT issue (Conformance 11.6 Retrieve Invalid Message)
+                    // Notification Transaction case
+                    int respStatus = getResponseStatus(status, Mms.MESSAGE_BOX_INBOX);
+                    if (respStatus != 0) {
                         if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                            Log.v(TAG, "scheduleRetry: retry for " + uri + " is scheduled at "
-                                    + (retryAt - System.currentTimeMillis()) + "ms from now");
+                            Log.v(TAG, "Retrieve status is: " + respStatus);
                         }
+                    }
+                    if (respStatus ==
+                            PduHeaders.RESPONSE_STATUS_ERROR_PERMANENT_MESSAGE_NOT_FOUND) {
+                        DownloadManager.getInstance().showErrorCodeToast(
+                                R.string.service_message_not_found);
+                        mmsOps.add(ContentProviderOperation.newDelete(uri).build());
+                        continue;
+                    }
+                }
+                if ((retryIndex < scheme.getRetryLimit()) && retry) {
+                    long retryAt = current + scheme.getWaitingInterval();
 
-                        values.put(PendingMessages.DUE_TIME, retryAt);
+                    if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                        Log.v(TAG, "scheduleRetry: retry for " + uri + " is scheduled at "
+                                + (retryAt - System.currentTimeMillis()) + "ms from now");
+                    }
 
-                        if (isRetryDownloading) {
-                            // Downloading process is transiently failed.
-                            DownloadManager.getInstance().markState(
-                                    uri, DownloadManager.STATE_TRANSIENT_FAILURE);
+                    values.put(PendingMessages.DUE_TIME, retryAt);
+                    scheduled++;
+
+                    if (isRetryDownloading) {
+                        // Downloading process is transiently failed.
+                        DownloadManager.getInstance().markState(
+                                uri, DownloadManager.STATE_TRANSIENT_FAILURE);
+                    }
+                } else {
+                    errorType = MmsSms.ERR_TYPE_GENERIC_PERMANENT;
+                    if (isRetryDownloading) {
+                        if (status != null && status.mThreadId > 0) {
+                            downloadFailedThreads.add(status.mThreadId);
                         }
+
+                        DownloadManager.getInstance().markState(
+                                uri, DownloadManager.STATE_PERMANENT_FAILURE);
                     } else {
-                        errorType = MmsSms.ERR_TYPE_GENERIC_PERMANENT;
-                        if (isRetryDownloading) {
-                            Cursor c = SqliteWrapper.query(mContext, mContext.getContentResolver(), uri,
-                                    new String[] { Mms.THREAD_ID }, null, null, null);
-
-                            long threadId = -1;
-                            if (c != null) {
-                                try {
-                                    if (c.moveToFirst()) {
-                                        threadId = c.getLong(0);
-                                    }
-                                } finally {
-                                    c.close();
-                                }
-                            }
-
-                            if (threadId != -1) {
-                                // Downloading process is permanently failed.
-                                MessagingNotification.notifyDownloadFailed(mContext, threadId);
-                            }
-
-                            DownloadManager.getInstance().markState(
-                                    uri, DownloadManager.STATE_PERMANENT_FAILURE);
-                        } else {
-                            // Mark the failed message as unread.
-                            ContentValues readValues = new ContentValues(1);
-                            readValues.put(Mms.READ, 0);
-                            SqliteWrapper.update(mContext, mContext.getContentResolver(),
-                                    uri, readValues, null, null);
-                            MessagingNotification.notifySendFailed(mContext, true);
-                        }
+                        // Mark the failed message as unread.
+                        mmsOps.add(ContentProviderOperation.newUpdate(uri)
+                                .withValue(Mms.READ, 0)
+                                .build());
+                        sendFailed = true;
                     }
-
-                    values.put(PendingMessages.ERROR_TYPE,  errorType);
-                    values.put(PendingMessages.RETRY_INDEX, retryIndex);
-                    values.put(PendingMessages.LAST_TRY,    current);
-
-                    int columnIndex = cursor.getColumnIndexOrThrow(
-                            PendingMessages._ID);
-                    long id = cursor.getLong(columnIndex);
-                    SqliteWrapper.update(mContext, mContentResolver,
-                            PendingMessages.CONTENT_URI,
-                            values, PendingMessages._ID + "=" + id, null);
-                } else if (LOCAL_LOGV) {
-                    Log.v(TAG, "Cannot found correct pending status for: " + msgId);
                 }
-            } finally {
-                cursor.close();
-            }
-        }
-    }
 
-    private int getResponseStatus(long msgID) {
-        int respStatus = 0;
-        Cursor cursor = SqliteWrapper.query(mContext, mContentResolver,
-                Mms.Outbox.CONTENT_URI, null, Mms._ID + "=" + msgID, null, null);
-        try {
-            if (cursor.moveToFirst()) {
-                respStatus = cursor.getInt(cursor.getColumnIndexOrThrow(Mms.RESPONSE_STATUS));
+                values.put(PendingMessages.ERROR_TYPE,  errorType);
+                values.put(PendingMessages.RETRY_INDEX, retryIndex);
+                values.put(PendingMessages.LAST_TRY,    current);
+
+                int columnIndex = cursor.getColumnIndexOrThrow(
+                        PendingMessages._ID);
+                long id = cursor.getLong(columnIndex);
+                pendingOps.add(ContentProviderOperation.newUpdate(PendingMessages.CONTENT_URI)
+                        .withValues(values)
+                        .withSelection(PendingMessages._ID + "=" + id, null)
+                        .build());
             }
         } finally {
             cursor.close();
         }
-        if (respStatus != 0) {
-            Log.e(TAG, "Response status is: " + respStatus);
+
+        roundTrips += applyBatch(PendingMessages.CONTENT_URI.getAuthority(), pendingOps);
+        roundTrips += applyBatch(Mms.CONTENT_URI.getAuthority(), mmsOps);
+
+        for (long threadId : downloadFailedThreads) {
+            // Downloading process is permanently failed.
+            MessagingNotification.notifyDownloadFailed(mContext, threadId);
+        }
+        if (sendFailed) {
+            MessagingNotification.notifySendFailed(mContext, true);
+        }
+
+        if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            Log.v(TAG, "scheduleRetries: " + scheduled + " of " + uriById.size()
+                    + " retries scheduled in " + roundTrips + " provider round-trips");
         }
-        return respStatus;
     }
 
-    // apply R880 IOT issue (Conformance 11.6 Retrieve Invalid Message)
-    private int getRetrieveStatus(long msgID) {
-        int retrieveStatus = 0;
+    private void loadMessageStatuses(String inIds, HashMap<Long, MessageStatus> statuses) {
         Cursor cursor = SqliteWrapper.query(mContext, mContentResolver,
-                Mms.Inbox.CONTENT_URI, null, Mms._ID + "=" + msgID, null, null);
+                Mms.CONTENT_URI, STATUS_PROJECTION, Mms._ID + inIds, null, null);
+        if (cursor == null) {
+            return;
+        }
         try {
-            if (cursor.moveToFirst()) {
-                retrieveStatus = cursor.getInt(cursor.getColumnIndexOrThrow(
-                            Mms.RESPONSE_STATUS));
+            while (cursor.moveToNext()) {
+                MessageStatus status = new MessageStatus();
+                status.mMessageBox = cursor.getInt(COLUMN_MESSAGE_BOX);
+                status.mResponseStatus = cursor.getInt(COLUMN_RESPONSE_STATUS);
+                status.mThreadId = cursor.getLong(COLUMN_THREAD_ID);
+                statuses.put(cursor.getLong(COLUMN_ID), status);
             }
         } finally {
             cursor.close();
         }
-        if (retrieveStatus != 0) {
-            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                Log.v(TAG, "Retrieve status is: " + retrieveStatus);
-            }
+    }
+
+    private static int getResponseStatus(MessageStatus status, int messageBox) {
+        return (status != null && status.mMessageBox == messageBox)
+                ? status.mResponseStatus : 0;
+    }
+
+    /**
+     * @return the number of provider round-trips made.
+     */
+    private int applyBatch(String authority, ArrayList<ContentProviderOperation> ops) {
+        if (ops.isEmpty()) {
+            return 0;
+        }
+        try {
+            mContentResolver.applyBatch(authority, ops);
+        } catch (RemoteException e) {
+            Log.e(TAG, "applyBatch failed for " + authority, e);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "applyBatch failed for " + authority, e);
         }
-        return retrieveStatus;
+        return 1;
     }
 
     public static void setRetryAlarm(Context context) {
@@ -110,8 +110,17 @@ public class SendTransaction extends Transaction implements Runnable {
 
             // Pack M-Send.req, send it, retrieve confirmation data, and parse it
             long tokenKey = ContentUris.parseId(mSendReqURI);
-            byte[] response = sendPdu(SendingProgressTokenManager.get(tokenKey),
-                                      new PduComposer(mContext, sendReq).make());
+            long token = SendingProgressTokenManager.get(tokenKey);
+            // Stream the parts from storage when possible so that large
+            // attachments are not held in memory twice while sending.
+            StreamingSendReqEntity entity = StreamingSendReqEntity.create(
+                    mContext, token, sendReq);
+            byte[] response;
+            if (entity != null) {
+                response = sendPdu(token, entity);
+            } else {
+                response = sendPdu(token, new PduComposer(mContext, sendReq).make());
+            }
             SendingProgressTokenManager.remove(tokenKey);
 
             if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.mms.LogTag;
+import com.android.mms.util.SendingProgressTokenManager;
+
+/**
+ * Reports the upload progress of one HTTP entity. Intermediate progress is
+ * throttled so that an update is only delivered when both MIN_INTERVAL_MS have
+ * passed and the progress moved by MIN_PROGRESS_DELTA percent since the last
+ * one; start, abort and completion are always delivered.
+ *
+ * Progress goes to the in-process listeners of SendingProgressTokenManager.
+ * A PROGRESS_STATUS_ACTION broadcast is only sent when nobody in-process is
+ * listening for the token.
+ */
+class SendingProgressReporter {
+    private static final String TAG = LogTag.TRANSACTION;
+
+    private static final long MIN_INTERVAL_MS = 250;
+    private static final int MIN_PROGRESS_DELTA = 5;
+
+    private final Context mContext;
+    private final long mToken;
+    private final long mTotalBytes;
+
+    private int mLastProgress = ProgressCallbackEntity.PROGRESS_START;
+    private long mLastReportTime;
+    private long mBytesWritten;
+    private int mListenerUpdates;
+    private int mBroadcasts;
+
+    SendingProgressReporter(Context context, long token, long totalBytes) {
+        mContext = context;
+        mToken = token;
+        mTotalBytes = totalBytes;
+    }
+
+    void start() {
+        mBytesWritten = 0;
+        report(ProgressCallbackEntity.PROGRESS_START);
+    }
+
+    void onBytesWritten(long bytesWritten) {
+        mBytesWritten = bytesWritten;
+        if (mTotalBytes <= 0) {
+            return;
+        }
+        int progress = (int) (100 * bytesWritten / mTotalBytes);
+        if (progress >= ProgressCallbackEntity.PROGRESS_COMPLETE) {
+            // Completion is reported by complete() once everything is flushed.
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (progress - mLastProgress < MIN_PROGRESS_DELTA
+                || now - mLastReportTime < MIN_INTERVAL_MS) {
+            return;
+        }
+        report(progress);
+    }
+
+    void complete() {
+        report(ProgressCallbackEntity.PROGRESS_COMPLETE);
+        logStats("complete");
+    }
+
+    void abort() {
+        report(ProgressCallbackEntity.PROGRESS_ABORT);
+        logStats("abort");
+    }
+
+    private void report(int progress) {
+        if (mToken <= 0) {
+            return;
+        }
+        mLastProgress = progress;
+        mLastReportTime = SystemClock.elapsedRealtime();
+
+        if (SendingProgressTokenManager.notifyProgress(mToken, progress)) {
+            mListenerUpdates++;
+            return;
+        }
+
+        Intent intent = new Intent(ProgressCallbackEntity.PROGRESS_STATUS_ACTION);
+        intent.putExtra("progress", progress);
+        intent.putExtra("token", mToken);
+        mContext.sendBroadcast(intent);
+        mBroadcasts++;
+    }
+
+    private void logStats(String reason) {
+        if (mToken > 0 && Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+            float megabytes = mBytesWritten / (1024f * 1024f);
+            Log.v(TAG, "SendingProgressReporter " + reason + ": token=" + mToken
+                    + " bytes=" + mBytesWritten
+                    + " listenerUpdates=" + mListenerUpdates
+                    + " broadcasts=" + mBroadcasts
+                    + (megabytes > 0 ? " updatesPerMB="
+                            + ((mListenerUpdates + mBroadcasts) / megabytes) : ""));
+        }
+    }
+}
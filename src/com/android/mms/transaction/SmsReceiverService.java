@@ -20,18 +20,28 @@ package com.android.mms.transaction;
 import static android.content.Intent.ACTION_BOOT_COMPLETED;
 import static android.provider.Telephony.Sms.Intents.SMS_DELIVER_ACTION;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 import android.app.Activity;
 import android.app.Service;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SqliteWrapper;
 import android.net.Uri;
 import android.os.Handler;
@@ -40,6 +50,8 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.Telephony.Sms;
 import android.provider.Telephony.Sms.Inbox;
 import android.provider.Telephony.Sms.Intents;
@@ -73,7 +85,6 @@ public class SmsReceiverService extends Service {
 
     private ServiceHandler mServiceHandler;
     private Looper mServiceLooper;
-    private boolean mSending;
 
     public static final String MESSAGE_SENT_ACTION =
         "com.android.mms.transaction.MESSAGE_SENT";
@@ -105,7 +116,41 @@ public class SmsReceiverService extends Service {
     private static final int SEND_COLUMN_BODY       = 3;
     private static final int SEND_COLUMN_STATUS     = 4;
 
-    private int mResultCode;
+    private static final String[] ID_PROJECTION = new String[] { Sms._ID };
+
+    // The columns which tell whether a message of a failed batch was stored.
+    private static final String[] STORED_MATCH_COLUMNS = new String[] {
+        Inbox.ADDRESS, Inbox.DATE, Inbox.DATE_SENT, Inbox.BODY
+    };
+
+    // The number of queued rows fetched by one query of the queued box.
+    private static final int SEND_PAGE_SIZE = 20;
+
+    // Messages handed to SmsManager whose last part hasn't reported back yet.
+    private final HashSet<Uri> mOutstanding = new HashSet<Uri>();
+
+    // Queued messages fetched by the last page query but not sent yet, oldest first.
+    private final LinkedList<QueuedSms> mSendQueue = new LinkedList<QueuedSms>();
+
+    // Set when a send failed for lack of service. The queued box isn't drained until
+    // service comes back, or messages would be sent only to be queued again.
+    private boolean mWaitingForService;
+
+    // Send pipeline metrics, reset whenever the pipeline drains.
+    private long mPipelineStartTime;
+    private int mSubmittedCount;
+    private int mCompletedCount;
+    private int mMaxOccupancy;
+    private long mOccupancySum;
+    private int mOccupancySamples;
+
+    // The most received messages stored by one burst.
+    private static final int MAX_RECEIVE_BURST = 50;
+
+    // SMS_DELIVER_ACTION intents which were started but not stored yet, in order.
+    // An intent stored as part of an earlier burst is no longer in the queue
+    // when its own handler message comes up.
+    private final ArrayList<Intent> mReceiveQueue = new ArrayList<Intent>();
 
     @Override
     public void onCreate() {
@@ -135,11 +180,17 @@ public class SmsReceiverService extends Service {
         }
         // Temporarily removed for this duplicate message track down.
 
-        mResultCode = intent != null ? intent.getIntExtra("result", 0) : 0;
+        int resultCode = intent != null ? intent.getIntExtra("result", 0) : 0;
 
-        if (mResultCode != 0) {
-            Log.v(TAG, "onStart: #" + startId + " mResultCode: " + mResultCode +
-                    " = " + translateResultCode(mResultCode));
+        if (resultCode != 0) {
+            Log.v(TAG, "onStart: #" + startId + " resultCode: " + resultCode +
+                    " = " + translateResultCode(resultCode));
+        }
+
+        if (intent != null && SMS_DELIVER_ACTION.equals(intent.getAction())) {
+            synchronized (mReceiveQueue) {
+                mReceiveQueue.add(intent);
+            }
         }
 
         Message msg = mServiceHandler.obtainMessage();
@@ -184,6 +235,25 @@ public class SmsReceiverService extends Service {
         return null;
     }
 
+    /**
+     * A row of the queued box, as read by fetchQueuedPage().
+     */
+    private static final class QueuedSms {
+        final Uri mUri;
+        final String mAddress;
+        final String mBody;
+        final long mThreadId;
+        final boolean mRequestReport;
+
+        QueuedSms(Uri uri, String address, String body, long threadId, boolean requestReport) {
+            mUri = uri;
+            mAddress = address;
+            mBody = body;
+            mThreadId = threadId;
+            mRequestReport = requestReport;
+        }
+    }
+
     private final class ServiceHandler extends Handler {
         public ServiceHandler(Looper looper) {
             super(looper);
@@ -212,7 +282,7 @@ public class SmsReceiverService extends Service {
                 if (MESSAGE_SENT_ACTION.equals(intent.getAction())) {
                     handleSmsSent(intent, error);
                 } else if (SMS_DELIVER_ACTION.equals(action)) {
-                    handleSmsReceived(intent, error);
+                    handleSmsReceivedOrBurst(intent, error);
                 } else if (ACTION_BOOT_COMPLETED.equals(action)) {
                     handleBootCompleted();
                 } else if (TelephonyIntents.ACTION_SERVICE_STATE_CHANGED.equals(action)) {
@@ -233,73 +303,85 @@ public class SmsReceiverService extends Service {
         // If service just returned, start sending out the queued messages
         ServiceState serviceState = ServiceState.newFromBundle(intent.getExtras());
         if (serviceState.getState() == ServiceState.STATE_IN_SERVICE) {
+            synchronized (this) {
+                mWaitingForService = false;
+            }
             sendFirstQueuedMessage();
         }
     }
 
     private void handleSendMessage() {
-        if (!mSending) {
-            sendFirstQueuedMessage();
+        synchronized (this) {
+            if (mOutstanding.size() >= MmsConfig.getSmsSendWindow()) {
+                // The window is full, the next send result will refill it.
+                return;
+            }
         }
+        sendFirstQueuedMessage();
     }
 
     private void handleSendInactiveMessage() {
         // Inactive messages includes all messages in outbox and queued box.
         moveOutboxMessagesToQueuedBox();
+        synchronized (this) {
+            // The prefetched page no longer matches the queued box.
+            mSendQueue.clear();
+        }
         sendFirstQueuedMessage();
     }
 
+    /**
+     * Send queued messages, oldest first, until MmsConfig.getSmsSendWindow()
+     * messages are outstanding to SmsManager or the queued box is empty.
+     * Nothing is sent while waiting for service to come back.
+     */
     public synchronized void sendFirstQueuedMessage() {
+        if (mWaitingForService) {
+            if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                Log.v(TAG, "sendFirstQueuedMessage: waiting for service");
+            }
+            return;
+        }
         boolean success = true;
-        // get all the queued messages from the database
-        final Uri uri = Uri.parse("content://sms/queued");
-        ContentResolver resolver = getContentResolver();
-        Cursor c = SqliteWrapper.query(this, resolver, uri,
-                        SEND_PROJECTION, null, null, "date ASC");   // date ASC so we send out in
-                                                                    // same order the user tried
-                                                                    // to send messages.
-        if (c != null) {
+        int window = MmsConfig.getSmsSendWindow();
+        if (!mSendQueue.isEmpty() && (mOutstanding.size() < window)) {
+            // Left over from an earlier page, so some may have been deleted or moved since.
+            dropNoLongerQueued();
+        }
+        while (mOutstanding.size() < window) {
+            if (mSendQueue.isEmpty() && !fetchQueuedPage()) {
+                break;
+            }
+            QueuedSms queued = mSendQueue.removeFirst();
+            Uri msgUri = queued.mUri;
+
+            SmsMessageSender sender = new SmsSingleRecipientSender(this,
+                    queued.mAddress, queued.mBody, queued.mThreadId, queued.mRequestReport,
+                    msgUri);
+
+            if (LogTag.DEBUG_SEND ||
+                    LogTag.VERBOSE ||
+                    Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
+                Log.v(TAG, "sendFirstQueuedMessage " + msgUri +
+                        ", address: " + queued.mAddress +
+                        ", threadId: " + queued.mThreadId +
+                        ", outstanding: " + mOutstanding.size());
+            }
+
             try {
-                if (c.moveToFirst()) {
-                    String msgText = c.getString(SEND_COLUMN_BODY);
-                    String address = c.getString(SEND_COLUMN_ADDRESS);
-                    int threadId = c.getInt(SEND_COLUMN_THREAD_ID);
-                    int status = c.getInt(SEND_COLUMN_STATUS);
-
-                    int msgId = c.getInt(SEND_COLUMN_ID);
-                    Uri msgUri = ContentUris.withAppendedId(Sms.CONTENT_URI, msgId);
-
-                    SmsMessageSender sender = new SmsSingleRecipientSender(this,
-                            address, msgText, threadId, status == Sms.STATUS_PENDING,
-                            msgUri);
-
-                    if (LogTag.DEBUG_SEND ||
-                            LogTag.VERBOSE ||
-                            Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
-                        Log.v(TAG, "sendFirstQueuedMessage " + msgUri +
-                                ", address: " + address +
-                                ", threadId: " + threadId);
-                    }
-
-                    try {
-                        sender.sendMessage(SendingProgressTokenManager.NO_TOKEN);;
-                        mSending = true;
-                    } catch (MmsException e) {
-                        Log.e(TAG, "sendFirstQueuedMessage: failed to send message " + msgUri
-                                + ", caught ", e);
-                        mSending = false;
-                        messageFailedToSend(msgUri, SmsManager.RESULT_ERROR_GENERIC_FAILURE);
-                        success = false;
-                        // Sending current message fails. Try to send more pending messages
-                        // if there is any.
-                        sendBroadcast(new Intent(SmsReceiverService.ACTION_SEND_MESSAGE,
-                                null,
-                                this,
-                                SmsReceiver.class));
-                    }
+                sender.sendMessage(SendingProgressTokenManager.NO_TOKEN);
+                if (mOutstanding.isEmpty() && mSubmittedCount == 0) {
+                    mPipelineStartTime = SystemClock.elapsedRealtime();
                 }
-            } finally {
-                c.close();
+                mOutstanding.add(msgUri);
+                mSubmittedCount++;
+                sampleOccupancy();
+            } catch (MmsException e) {
+                Log.e(TAG, "sendFirstQueuedMessage: failed to send message " + msgUri
+                        + ", caught ", e);
+                messageFailedToSend(msgUri, SmsManager.RESULT_ERROR_GENERIC_FAILURE);
+                success = false;
+                // Sending current message fails. Carry on with the rest of the queue.
             }
         }
         if (success) {
@@ -307,20 +389,139 @@ public class SmsReceiverService extends Service {
             // be notified of any service changes any longer.
             unRegisterForServiceStateChanges();
         }
+        if (mOutstanding.isEmpty() && mSendQueue.isEmpty()) {
+            logSendMetrics();
+        }
+    }
+
+    /**
+     * Fetch the next page of the queued box into mSendQueue, skipping messages
+     * which are already outstanding.
+     *
+     * @return true if at least one message was fetched.
+     */
+    private boolean fetchQueuedPage() {
+        final Uri uri = Uri.parse("content://sms/queued");
+        ContentResolver resolver = getContentResolver();
+        // date ASC so we send out in same order the user tried to send messages.
+        // Outstanding messages are normally in the outbox, but may have been moved
+        // back by handleSendInactiveMessage(), so leave room to skip them.
+        Cursor c = SqliteWrapper.query(this, resolver, uri, SEND_PROJECTION, null, null,
+                "date ASC LIMIT " + (SEND_PAGE_SIZE + mOutstanding.size()));
+        if (c == null) {
+            return false;
+        }
+        try {
+            while (c.moveToNext()) {
+                Uri msgUri = ContentUris.withAppendedId(Sms.CONTENT_URI,
+                        c.getLong(SEND_COLUMN_ID));
+                if (mOutstanding.contains(msgUri)) {
+                    continue;
+                }
+                mSendQueue.add(new QueuedSms(msgUri,
+                        c.getString(SEND_COLUMN_ADDRESS),
+                        c.getString(SEND_COLUMN_BODY),
+                        c.getLong(SEND_COLUMN_THREAD_ID),
+                        c.getInt(SEND_COLUMN_STATUS) == Sms.STATUS_PENDING));
+            }
+        } finally {
+            c.close();
+        }
+        return !mSendQueue.isEmpty();
+    }
+
+    /**
+     * Drop the messages of mSendQueue which are no longer in the queued box, with a
+     * single query for the whole page.
+     */
+    private void dropNoLongerQueued() {
+        StringBuilder selection = new StringBuilder();
+        selection.append(Sms.TYPE).append('=').append(Sms.MESSAGE_TYPE_QUEUED)
+                .append(" AND ").append(Sms._ID).append(" IN (");
+        for (QueuedSms queued : mSendQueue) {
+            selection.append(ContentUris.parseId(queued.mUri)).append(',');
+        }
+        selection.setCharAt(selection.length() - 1, ')');
+
+        Cursor c = SqliteWrapper.query(this, getContentResolver(), Sms.CONTENT_URI,
+                ID_PROJECTION, selection.toString(), null, null);
+        if (c == null) {
+            // Can't tell, leave it to the send path.
+            return;
+        }
+        HashSet<Long> queuedIds = new HashSet<Long>();
+        try {
+            while (c.moveToNext()) {
+                queuedIds.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        Iterator<QueuedSms> iter = mSendQueue.iterator();
+        while (iter.hasNext()) {
+            if (!queuedIds.contains(ContentUris.parseId(iter.next().mUri))) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * The last part of an outstanding message reported back, so it no longer
+     * takes up a slot in the send window.
+     */
+    private synchronized void onMessageCompleted(Uri uri) {
+        if (mOutstanding.remove(uri)) {
+            mCompletedCount++;
+            sampleOccupancy();
+        }
+    }
+
+    private synchronized void waitForService() {
+        mWaitingForService = true;
+        mSendQueue.clear();
+    }
+
+    private void sampleOccupancy() {
+        int occupancy = mOutstanding.size();
+        mMaxOccupancy = Math.max(mMaxOccupancy, occupancy);
+        mOccupancySum += occupancy;
+        mOccupancySamples++;
+    }
+
+    private void logSendMetrics() {
+        if (mSubmittedCount == 0) {
+            return;
+        }
+        long elapsed = Math.max(SystemClock.elapsedRealtime() - mPipelineStartTime, 1);
+        Log.d(TAG, "SMS send pipeline drained: submitted " + mSubmittedCount +
+                " completed " + mCompletedCount +
+                " in " + elapsed + " ms (" + (mCompletedCount * 1000f / elapsed) + " msg/s)" +
+                ", window " + MmsConfig.getSmsSendWindow() +
+                " occupancy avg " + ((float) mOccupancySum / Math.max(mOccupancySamples, 1)) +
+                " max " + mMaxOccupancy);
+        mSubmittedCount = 0;
+        mCompletedCount = 0;
+        mMaxOccupancy = 0;
+        mOccupancySum = 0;
+        mOccupancySamples = 0;
     }
 
     private void handleSmsSent(Intent intent, int error) {
         Uri uri = intent.getData();
-        mSending = false;
+        // Several sends can be outstanding, so the result comes with each one.
+        int resultCode = intent.getIntExtra("result", 0);
         boolean sendNextMsg = intent.getBooleanExtra(EXTRA_MESSAGE_SENT_SEND_NEXT, false);
+        if (sendNextMsg) {
+            onMessageCompleted(uri);
+        }
 
         if (LogTag.DEBUG_SEND) {
             Log.v(TAG, "handleSmsSent uri: " + uri + " sendNextMsg: " + sendNextMsg +
-                    " mResultCode: " + mResultCode +
-                    " = " + translateResultCode(mResultCode) + " error: " + error);
+                    " resultCode: " + resultCode +
+                    " = " + translateResultCode(resultCode) + " error: " + error);
         }
 
-        if (mResultCode == Activity.RESULT_OK) {
+        if (resultCode == Activity.RESULT_OK) {
             if (LogTag.DEBUG_SEND || Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                 Log.v(TAG, "handleSmsSent move message to sent folder uri: " + uri);
             }
@@ -333,8 +534,8 @@ public class SmsReceiverService extends Service {
 
             // Update the notification for failed messages since they may be deleted.
             MessagingNotification.nonBlockingUpdateSendFailedNotification(this);
-        } else if ((mResultCode == SmsManager.RESULT_ERROR_RADIO_OFF) ||
-                (mResultCode == SmsManager.RESULT_ERROR_NO_SERVICE)) {
+        } else if ((resultCode == SmsManager.RESULT_ERROR_RADIO_OFF) ||
+                (resultCode == SmsManager.RESULT_ERROR_NO_SERVICE)) {
             if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                 Log.v(TAG, "handleSmsSent: no service, queuing message w/ uri: " + uri);
             }
@@ -342,7 +543,9 @@ public class SmsReceiverService extends Service {
             // when the status of the connection/radio changes, we can try to send the
             // queued up messages.
             registerForServiceStateChanges();
-            // We couldn't send the message, put in the queue to retry later.
+            // We couldn't send the message, put in the queue to retry later. Stop
+            // sending until service returns, then fetch the queued box again.
+            waitForService();
             Sms.moveMessageToFolder(this, uri, Sms.MESSAGE_TYPE_QUEUED, error);
             mToastHandler.post(new Runnable() {
                 public void run() {
@@ -350,8 +553,8 @@ public class SmsReceiverService extends Service {
                             Toast.LENGTH_SHORT).show();
                 }
             });
-        } else if (mResultCode == SmsManager.RESULT_ERROR_FDN_CHECK_FAILURE) {
-            messageFailedToSend(uri, mResultCode);
+        } else if (resultCode == SmsManager.RESULT_ERROR_FDN_CHECK_FAILURE) {
+            messageFailedToSend(uri, resultCode);
             mToastHandler.post(new Runnable() {
                 public void run() {
                     Toast.makeText(SmsReceiverService.this, getString(R.string.fdn_check_failure),
@@ -374,6 +577,157 @@ public class SmsReceiverService extends Service {
         MessagingNotification.notifySendFailed(getApplicationContext(), true);
     }
 
+    /**
+     * Store the received message. If more received messages are already
+     * queued behind it, drain them and store them all as one burst.
+     */
+    private void handleSmsReceivedOrBurst(Intent intent, int error) {
+        ArrayList<Intent> burst;
+        synchronized (mReceiveQueue) {
+            int index = mReceiveQueue.indexOf(intent);
+            if (index < 0) {
+                // Already stored by an earlier burst.
+                return;
+            }
+            if (index != 0 || mReceiveQueue.size() == 1) {
+                mReceiveQueue.remove(index);
+                burst = null;
+            } else {
+                int count = Math.min(mReceiveQueue.size(), MAX_RECEIVE_BURST);
+                burst = new ArrayList<Intent>(mReceiveQueue.subList(0, count));
+                mReceiveQueue.subList(0, count).clear();
+            }
+        }
+        if (burst == null) {
+            handleSmsReceived(intent, error);
+        } else {
+            handleSmsReceivedBurst(burst);
+        }
+    }
+
+    /**
+     * Store a burst of received messages: thread ids are resolved once per
+     * address, the messages are inserted with a single applyBatch, and the
+     * recycler, widget and notification are updated once for the burst.
+     */
+    private void handleSmsReceivedBurst(List<Intent> intents) {
+        long start = SystemClock.elapsedRealtime();
+        HashMap<String, Long> threadIdCache = new HashMap<String, Long>();
+        ArrayList<ContentValues> inserts = new ArrayList<ContentValues>(intents.size());
+        HashSet<Long> threadIds = new HashSet<Long>();
+
+        for (Intent intent : intents) {
+            int error = intent.getIntExtra("errorCode", 0);
+            SmsMessage[] msgs = Intents.getMessagesFromIntent(intent);
+            String format = intent.getStringExtra("format");
+            SmsMessage sms = msgs[0];
+
+            if (sms.getMessageClass() == SmsMessage.MessageClass.CLASS_0) {
+                displayClassZeroMessage(this, sms, format);
+            } else if (sms.isReplace()) {
+                // Rare enough to go through the regular path.
+                Uri messageUri = replaceMessage(this, msgs, error);
+                if (messageUri != null) {
+                    threadIds.add(MessagingNotification.getSmsThreadId(this, messageUri));
+                }
+            } else {
+                ContentValues values = extractStoreValues(this, msgs, error, threadIdCache);
+                inserts.add(values);
+                Long threadId = values.getAsLong(Sms.THREAD_ID);
+                if (threadId != null) {
+                    threadIds.add(threadId);
+                }
+            }
+        }
+
+        if (!inserts.isEmpty()) {
+            ArrayList<ContentProviderOperation> ops =
+                    new ArrayList<ContentProviderOperation>(inserts.size());
+            for (ContentValues values : inserts) {
+                ops.add(ContentProviderOperation.newInsert(Inbox.CONTENT_URI)
+                        .withValues(values)
+                        .build());
+            }
+            try {
+                getContentResolver().applyBatch(Inbox.CONTENT_URI.getAuthority(), ops);
+            } catch (RemoteException e) {
+                Log.e(TAG, "handleSmsReceivedBurst: applyBatch failed, inserting the rest one by one", e);
+                insertNotStored(inserts);
+            } catch (OperationApplicationException e) {
+                Log.e(TAG, "handleSmsReceivedBurst: applyBatch failed, inserting the rest one by one", e);
+                insertNotStored(inserts);
+            } catch (SQLiteException e) {
+                // E.g. the disk is full. Each insert below reports it on its own.
+                Log.e(TAG, "handleSmsReceivedBurst: applyBatch failed, inserting the rest one by one", e);
+                insertNotStored(inserts);
+            }
+        }
+
+        // Now make sure we're not over the limit in stored messages
+        for (long threadId : threadIds) {
+            Recycler.getSmsRecycler().deleteOldMessagesByThreadId(this, threadId);
+        }
+        MmsWidgetProvider.notifyDatasetChanged(this);
+
+        if (!threadIds.isEmpty()) {
+            long threadId = threadIds.size() == 1 ?
+                    threadIds.iterator().next() : MessagingNotification.THREAD_ALL;
+            // Called off of the UI thread so ok to block.
+            MessagingNotification.blockingUpdateNewMessageIndicator(this, threadId, false);
+        }
+
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.d(TAG, "handleSmsReceivedBurst: stored " + inserts.size() + " of "
+                + intents.size() + " messages in " + threadIds.size() + " threads, "
+                + elapsed + " ms");
+    }
+
+    /**
+     * Insert the messages of a failed batch one by one. The batch isn't applied in a
+     * transaction, so the messages before the failing one may already be stored. It
+     * stops at the first failure, so those are skipped up to the first message which
+     * isn't found.
+     */
+    private void insertNotStored(List<ContentValues> inserts) {
+        ContentResolver resolver = getContentResolver();
+        int first = 0;
+        while ((first < inserts.size()) && isStored(resolver, inserts.get(first))) {
+            first++;
+        }
+        for (int i = first; i < inserts.size(); i++) {
+            SqliteWrapper.insert(this, resolver, Inbox.CONTENT_URI, inserts.get(i));
+        }
+    }
+
+    private boolean isStored(ContentResolver resolver, ContentValues values) {
+        StringBuilder selection = new StringBuilder();
+        ArrayList<String> selectionArgs = new ArrayList<String>(4);
+        for (String column : STORED_MATCH_COLUMNS) {
+            if (selection.length() > 0) {
+                selection.append(" AND ");
+            }
+            // A null can't be bound as an argument.
+            String value = values.getAsString(column);
+            if (value == null) {
+                selection.append(column).append(" IS NULL");
+            } else {
+                selection.append(column).append("=?");
+                selectionArgs.add(value);
+            }
+        }
+        Cursor c = SqliteWrapper.query(this, resolver, Inbox.CONTENT_URI, ID_PROJECTION,
+                selection.toString(), selectionArgs.toArray(new String[selectionArgs.size()]),
+                null);
+        if (c == null) {
+            return false;
+        }
+        try {
+            return c.getCount() > 0;
+        } finally {
+            c.close();
+        }
+    }
+
     private void handleSmsReceived(Intent intent, int error) {
         SmsMessage[] msgs = Intents.getMessagesFromIntent(intent);
         String format = intent.getStringExtra("format");
@@ -552,6 +906,29 @@ public class SmsReceiverService extends Service {
 //    private static int count = 0;
 
     private Uri storeMessage(Context context, SmsMessage[] msgs, int error) {
+        ContentValues values = extractStoreValues(context, msgs, error, null);
+        Long threadId = values.getAsLong(Sms.THREAD_ID);
+
+        ContentResolver resolver = context.getContentResolver();
+
+        Uri insertedUri = SqliteWrapper.insert(context, resolver, Inbox.CONTENT_URI, values);
+
+        // Now make sure we're not over the limit in stored messages
+        Recycler.getSmsRecycler().deleteOldMessagesByThreadId(context, threadId);
+        MmsWidgetProvider.notifyDatasetChanged(context);
+
+        return insertedUri;
+    }
+
+    /**
+     * Build the content values to store a received message, including its
+     * thread id.
+     *
+     * @param threadIdCache If not null, thread ids already resolved for an
+     *         address are taken from it, and new ones are added to it.
+     */
+    private ContentValues extractStoreValues(Context context, SmsMessage[] msgs, int error,
+            Map<String, Long> threadIdCache) {
         SmsMessage sms = msgs[0];
 
         // Store the message in the content provider.
@@ -603,19 +980,17 @@ public class SmsReceiverService extends Service {
         }
 
         if (((threadId == null) || (threadId == 0)) && (address != null)) {
-            threadId = Conversation.getOrCreateThreadId(context, address);
+            threadId = threadIdCache != null ? threadIdCache.get(address) : null;
+            if (threadId == null) {
+                threadId = Conversation.getOrCreateThreadId(context, address);
+                if (threadIdCache != null) {
+                    threadIdCache.put(address, threadId);
+                }
+            }
             values.put(Sms.THREAD_ID, threadId);
         }
 
-        ContentResolver resolver = context.getContentResolver();
-
-        Uri insertedUri = SqliteWrapper.insert(context, resolver, Inbox.CONTENT_URI, values);
-
-        // Now make sure we're not over the limit in stored messages
-        Recycler.getSmsRecycler().deleteOldMessagesByThreadId(context, threadId);
-        MmsWidgetProvider.notifyDatasetChanged(context);
-
-        return insertedUri;
+        return values;
     }
 
     /**
@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.util.Log;
+
+import com.android.mms.LogTag;
+import com.google.android.mms.pdu.PduBody;
+import com.google.android.mms.pdu.PduComposer;
+import com.google.android.mms.pdu.PduPart;
+import com.google.android.mms.pdu.SendReq;
+
+/**
+ * An HttpEntity which writes an M-Send.req without holding the whole PDU in
+ * memory. The message headers and the headers of every part are composed in
+ * memory by PduComposer; the data of each part is streamed from its content
+ * Uri while the entity is written to the socket.
+ *
+ * PduComposer only produces complete PDUs, so the layout is found by composing
+ * the message twice with small placeholder data of two different lengths. The
+ * composed PDUs are identical up to the data length of the first part, and
+ * from there on every part entry can be walked forward.
+ */
+public class StreamingSendReqEntity extends AbstractHttpEntity {
+    private static final String TAG = LogTag.TRANSACTION;
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final int DEFAULT_PIECE_SIZE = 4096;
+
+    // uintvar(1) is 0x01 and uintvar(128) is 0x81 0x00, so the two composed
+    // PDUs always differ at the first byte of the first data length.
+    private static final int SHORT_PLACEHOLDER_LENGTH = 1;
+    private static final int LONG_PLACEHOLDER_LENGTH = 128;
+
+    private final Context mContext;
+    private final long mToken;
+    private final byte[] mHead;
+    private final byte[][] mPartHeaders;
+    private final PduPart[] mParts;
+    private final long[] mPartLengths;
+    private final long mContentLength;
+
+    private StreamingSendReqEntity(Context context, long token, byte[] head,
+            byte[][] partHeaders, PduPart[] parts, long[] partLengths) {
+        mContext = context;
+        mToken = token;
+        mHead = head;
+        mPartHeaders = partHeaders;
+        mParts = parts;
+        mPartLengths = partLengths;
+
+        long length = head.length;
+        for (int i = 0; i < parts.length; i++) {
+            length += partHeaders[i].length + partLengths[i];
+        }
+        mContentLength = length;
+
+        setContentType("application/vnd.wap.mms-message");
+    }
+
+    /**
+     * Create a streaming entity for the given M-Send.req.
+     *
+     * @param token The token to identify the sending progress.
+     * @return The entity, or null if the PDU could not be laid out for streaming,
+     *         in which case the caller should compose it with PduComposer.
+     */
+    public static StreamingSendReqEntity create(Context context, long token, SendReq sendReq) {
+        PduBody body = sendReq.getBody();
+        if (body == null || body.getPartsNum() == 0) {
+            return null;
+        }
+
+        try {
+            byte[] shortPdu = composeWithPlaceholders(context, sendReq, SHORT_PLACEHOLDER_LENGTH);
+            byte[] longPdu = composeWithPlaceholders(context, sendReq, LONG_PLACEHOLDER_LENGTH);
+            if (shortPdu == null || longPdu == null) {
+                return null;
+            }
+
+            int pos = 0;
+            int max = Math.min(shortPdu.length, longPdu.length);
+            while (pos < max && shortPdu[pos] == longPdu[pos]) {
+                pos++;
+            }
+            // pos is the data length of the first part. The header length in front
+            // of it ends with a byte below 0x80, as does the part count before it.
+            int start = pos - 1;
+            while (start > 0 && (shortPdu[start - 1] & 0x80) != 0) {
+                start--;
+            }
+            if (start <= 0) {
+                return null;
+            }
+
+            int partsNum = body.getPartsNum();
+            byte[] head = new byte[start];
+            System.arraycopy(shortPdu, 0, head, 0, start);
+            byte[][] partHeaders = new byte[partsNum][];
+            PduPart[] parts = new PduPart[partsNum];
+            long[] partLengths = new long[partsNum];
+
+            int[] cursor = new int[] { start };
+            for (int i = 0; i < partsNum; i++) {
+                long headerLength = readUintvar(shortPdu, cursor);
+                long placeholderLength = readUintvar(shortPdu, cursor);
+                int headerStart = cursor[0];
+                if (placeholderLength != SHORT_PLACEHOLDER_LENGTH
+                        || headerStart + headerLength + placeholderLength > shortPdu.length) {
+                    return null;
+                }
+
+                parts[i] = body.getPart(i);
+                partLengths[i] = getPartLength(context, parts[i]);
+
+                byte[] encodedHeaderLength = encodeUintvar(headerLength);
+                byte[] encodedDataLength = encodeUintvar(partLengths[i]);
+                byte[] partHeader = new byte[encodedHeaderLength.length
+                        + encodedDataLength.length + (int) headerLength];
+                System.arraycopy(encodedHeaderLength, 0, partHeader, 0,
+                        encodedHeaderLength.length);
+                System.arraycopy(encodedDataLength, 0, partHeader, encodedHeaderLength.length,
+                        encodedDataLength.length);
+                System.arraycopy(shortPdu, headerStart, partHeader,
+                        encodedHeaderLength.length + encodedDataLength.length,
+                        (int) headerLength);
+                partHeaders[i] = partHeader;
+
+                cursor[0] = headerStart + (int) headerLength + (int) placeholderLength;
+            }
+            if (cursor[0] != shortPdu.length) {
+                Log.w(TAG, "StreamingSendReqEntity: unexpected trailing data, not streaming");
+                return null;
+            }
+
+            return new StreamingSendReqEntity(context, token, head, partHeaders, parts,
+                    partLengths);
+        } catch (IOException e) {
+            Log.e(TAG, "StreamingSendReqEntity: failed to lay out PDU", e);
+            return null;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "StreamingSendReqEntity: failed to lay out PDU", e);
+            return null;
+        }
+    }
+
+    private static byte[] composeWithPlaceholders(Context context, SendReq sendReq,
+            int placeholderLength) {
+        PduBody body = sendReq.getBody();
+        PduBody placeholderBody = new PduBody();
+        for (int i = 0; i < body.getPartsNum(); i++) {
+            placeholderBody.addPart(copyPartHeaders(body.getPart(i), placeholderLength));
+        }
+
+        sendReq.setBody(placeholderBody);
+        try {
+            return new PduComposer(context, sendReq).make();
+        } finally {
+            sendReq.setBody(body);
+        }
+    }
+
+    private static PduPart copyPartHeaders(PduPart part, int placeholderLength) {
+        PduPart copy = new PduPart();
+        if (part.getContentType() != null) {
+            copy.setContentType(part.getContentType());
+        }
+        if (part.getCharset() != 0) {
+            copy.setCharset(part.getCharset());
+        }
+        if (part.getContentId() != null) {
+            copy.setContentId(part.getContentId());
+        }
+        if (part.getContentLocation() != null) {
+            copy.setContentLocation(part.getContentLocation());
+        }
+        if (part.getContentDisposition() != null) {
+            copy.setContentDisposition(part.getContentDisposition());
+        }
+        if (part.getContentTransferEncoding() != null) {
+            copy.setContentTransferEncoding(part.getContentTransferEncoding());
+        }
+        if (part.getName() != null) {
+            copy.setName(part.getName());
+        }
+        if (part.getFilename() != null) {
+            copy.setFilename(part.getFilename());
+        }
+        copy.setData(new byte[placeholderLength]);
+        return copy;
+    }
+
+    private static long getPartLength(Context context, PduPart part) throws IOException {
+        byte[] data = part.getData();
+        if (data != null) {
+            return data.length;
+        }
+
+        Uri uri = part.getDataUri();
+        if (uri == null) {
+            throw new IOException("Part has neither data nor Uri");
+        }
+        ContentResolver resolver = context.getContentResolver();
+        AssetFileDescriptor afd = resolver.openAssetFileDescriptor(uri, "r");
+        if (afd != null) {
+            try {
+                long length = afd.getLength();
+                if (length != AssetFileDescriptor.UNKNOWN_LENGTH) {
+                    return length;
+                }
+            } finally {
+                afd.close();
+            }
+        }
+
+        // The provider doesn't know the size, count it without buffering.
+        long length = 0;
+        byte[] buffer = new byte[DEFAULT_PIECE_SIZE];
+        InputStream in = openPart(resolver, uri);
+        try {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                length += len;
+            }
+        } finally {
+            in.close();
+        }
+        return length;
+    }
+
+    private static InputStream openPart(ContentResolver resolver, Uri uri)
+            throws FileNotFoundException {
+        InputStream in = resolver.openInputStream(uri);
+        if (in == null) {
+            throw new FileNotFoundException("Cannot open " + uri);
+        }
+        return in;
+    }
+
+    private static long readUintvar(byte[] pdu, int[] cursor) throws IOException {
+        long value = 0;
+        int pos = cursor[0];
+        while (pos < pdu.length) {
+            int b = pdu[pos++] & 0xFF;
+            value = (value << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0) {
+                cursor[0] = pos;
+                return value;
+            }
+        }
+        throw new IOException("Truncated uintvar at " + cursor[0]);
+    }
+
+    private static byte[] encodeUintvar(long value) {
+        int length = 1;
+        for (long v = value >>> 7; v != 0; v >>>= 7) {
+            length++;
+        }
+        byte[] encoded = new byte[length];
+        for (int i = length - 1; i >= 0; i--) {
+            encoded[i] = (byte) ((value & 0x7F) | (i == length - 1 ? 0 : 0x80));
+            value >>>= 7;
+        }
+        return encoded;
+    }
+
+    @Override
+    public long getContentLength() {
+        return mContentLength;
+    }
+
+    /**
+     * @return a new stream over the same bytes writeTo() writes, with the data of
+     *         each part read from its content Uri as the stream is read.
+     */
+    @Override
+    public InputStream getContent() {
+        return new ContentInputStream();
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    @Override
+    public void writeTo(final OutputStream outstream) throws IOException {
+        if (outstream == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+
+        SendingProgressReporter reporter =
+                new SendingProgressReporter(mContext, mToken, mContentLength);
+        boolean completed = false;
+        try {
+            reporter.start();
+
+            long written = write(outstream, mHead, 0, reporter);
+            byte[] buffer = new byte[DEFAULT_PIECE_SIZE];
+            ContentResolver resolver = mContext.getContentResolver();
+            for (int i = 0; i < mParts.length; i++) {
+                written = write(outstream, mPartHeaders[i], written, reporter);
+
+                byte[] data = mParts[i].getData();
+                if (data != null) {
+                    written = write(outstream, data, written, reporter);
+                    continue;
+                }
+
+                long partWritten = 0;
+                InputStream in = openPart(resolver, mParts[i].getDataUri());
+                try {
+                    int len;
+                    while ((len = in.read(buffer)) != -1) {
+                        partWritten += len;
+                        if (partWritten > mPartLengths[i]) {
+                            break;
+                        }
+                        outstream.write(buffer, 0, len);
+                        outstream.flush();
+                        written += len;
+                        reporter.onBytesWritten(written);
+                    }
+                } finally {
+                    in.close();
+                }
+                if (partWritten != mPartLengths[i]) {
+                    throw new IOException("Part " + mParts[i].getDataUri()
+                            + " changed size while sending");
+                }
+            }
+
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "StreamingSendReqEntity: wrote " + written + " bytes");
+            }
+            reporter.complete();
+            completed = true;
+        } finally {
+            if (!completed) {
+                reporter.abort();
+            }
+        }
+    }
+
+    private long write(OutputStream outstream, byte[] content, long written,
+            SendingProgressReporter reporter) throws IOException {
+        int pos = 0, totalLen = content.length;
+        while (pos < totalLen) {
+            int len = Math.min(totalLen - pos, DEFAULT_PIECE_SIZE);
+            outstream.write(content, pos, len);
+            outstream.flush();
+
+            pos += len;
+            written += len;
+            reporter.onBytesWritten(written);
+        }
+        return written;
+    }
+
+    /**
+     * Reads the head, then the header and data of each part in turn.
+     */
+    private class ContentInputStream extends InputStream {
+        // The piece being read: 0 is the head, then 2i + 1 is the header of part i
+        // and 2i + 2 its data.
+        private int mPiece;
+        private InputStream mIn = new ByteArrayInputStream(mHead);
+        // The bytes of the current part data still to come, or -1 for a header.
+        private long mRemaining = -1;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            while (mIn != null) {
+                int max = mRemaining >= 0 ? (int) Math.min(count, mRemaining) : count;
+                int len = max > 0 ? mIn.read(buffer, offset, max) : -1;
+                if (len != -1) {
+                    if (mRemaining >= 0) {
+                        mRemaining -= len;
+                    }
+                    return len;
+                }
+                if (mRemaining > 0) {
+                    throw new IOException("Part " + mParts[(mPiece - 1) / 2].getDataUri()
+                            + " changed size while sending");
+                }
+                nextPiece();
+            }
+            return -1;
+        }
+
+        private void nextPiece() throws IOException {
+            mIn.close();
+            mIn = null;
+            mPiece++;
+            if (mPiece > 2 * mParts.length) {
+                return;
+            }
+            int part = (mPiece - 1) / 2;
+            if (mPiece % 2 == 1) {
+                mIn = new ByteArrayInputStream(mPartHeaders[part]);
+                mRemaining = -1;
+            } else {
+                byte[] data = mParts[part].getData();
+                mIn = data != null ? new ByteArrayInputStream(data)
+                        : openPart(mContext.getContentResolver(), mParts[part].getDataUri());
+                mRemaining = mPartLengths[part];
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mIn != null) {
+                mIn.close();
+                mIn = null;
+            }
+        }
+    }
+}
@@ -18,9 +18,12 @@
 package com.android.mms.transaction;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
+import org.apache.http.HttpEntity;
+
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.Uri;
@@ -180,6 +183,34 @@ public abstract class Transaction extends Observable {
                 mTransactionSettings.getProxyPort());
     }
 
+    /**
+     * A common method to send a PDU to MMSC from an entity which writes the
+     * PDU itself, e.g. streaming its parts from storage.
+     *
+     * @param token The token to identify the sending progress.
+     * @param entity The entity which produces the data of the PDU.
+     * @return A byte array which contains the response data.
+     *         If an HTTP error code is returned, an IOException will be thrown.
+     * @throws IOException if any error occurred on network interface or
+     *         an HTTP error code(>=400) returned from the server.
+     * @throws MmsException if entity is null.
+     */
+    protected byte[] sendPdu(long token, HttpEntity entity) throws IOException, MmsException {
+        if (entity == null) {
+            throw new MmsException();
+        }
+
+        String mmscUrl = mTransactionSettings.getMmscUrl();
+        ensureRouteToHost(mmscUrl, mTransactionSettings);
+        return HttpUtils.httpConnection(
+                mContext, token,
+                mmscUrl,
+                entity,
+                mTransactionSettings.isProxySet(),
+                mTransactionSettings.getProxyAddress(),
+                mTransactionSettings.getProxyPort());
+    }
+
     /**
      * A common method to retrieve a PDU from MMSC.
      *
@@ -199,6 +230,23 @@ public abstract class Transaction extends Observable {
                 mTransactionSettings.getProxyPort());
     }
 
+    /**
+     * A common method to retrieve a PDU from MMSC without buffering it in memory.
+     *
+     * @param url The URL of the message which we are going to retrieve.
+     * @param out The stream the data of the PDU is written to.
+     * @throws IOException if any error occurred on network interface or
+     *         an HTTP error code(>=400) returned from the server.
+     */
+    protected void getPdu(String url, OutputStream out) throws IOException {
+        ensureRouteToHost(url, mTransactionSettings);
+        HttpUtils.httpConnection(
+                mContext, url, out,
+                mTransactionSettings.isProxySet(),
+                mTransactionSettings.getProxyAddress(),
+                mTransactionSettings.getProxyPort());
+    }
+
     /**
      * Make sure that a network route exists to allow us to reach the host in the
      * supplied URL, and to the MMS proxy host as well, if a proxy is used.
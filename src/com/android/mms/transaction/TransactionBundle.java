@@ -63,6 +63,13 @@ public class TransactionBundle {
      */
     public static final String URI = "uri";
 
+    /**
+     * Key of the URIs of a batch of transactions of the same type.
+     * Used by PushReceiver to start the NotificationTransactions of several
+     * M-Notification.ind at once.
+     */
+    public static final String URIS = "uris";
+
     /**
      * This is the real Bundle to be sent to the TransactionService upon calling
      * startService.
@@ -336,9 +336,23 @@ public class TransactionService extends Service implements Observer {
             if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                 Log.v(TAG, "onNewIntent: launch transaction...");
             }
-            // For launching NotificationTransaction and test purpose.
-            TransactionBundle args = new TransactionBundle(intent.getExtras());
-            launchTransaction(serviceId, args, noNetwork);
+            String[] uris = intent.getStringArrayExtra(TransactionBundle.URIS);
+            if (uris != null) {
+                // A batch of NotificationTransactions from PushReceiver.
+                int type = intent.getIntExtra(TransactionBundle.TRANSACTION_TYPE,
+                        Transaction.NOTIFICATION_TRANSACTION);
+                if (noNetwork) {
+                    onNetworkUnavailable(serviceId, type);
+                } else {
+                    for (String uri : uris) {
+                        launchTransaction(serviceId, new TransactionBundle(type, uri), false);
+                    }
+                }
+            } else {
+                // For launching NotificationTransaction and test purpose.
+                TransactionBundle args = new TransactionBundle(intent.getExtras());
+                launchTransaction(serviceId, args, noNetwork);
+            }
         }
     }
 
@@ -791,6 +805,18 @@ public class TransactionService extends Service implements Observer {
         }
 
         public void markAllPendingTransactionsAsFailed() {
+            // Every pending transaction fails at once, let RetryScheduler
+            // schedule their retries in a single pass.
+            RetryScheduler scheduler = RetryScheduler.getInstance(TransactionService.this);
+            scheduler.beginBatch();
+            try {
+                markPendingTransactionsAsFailed();
+            } finally {
+                scheduler.endBatch();
+            }
+        }
+
+        private void markPendingTransactionsAsFailed() {
             synchronized (mProcessing) {
                 while (mPending.size() != 0) {
                     Transaction transaction = mPending.remove(0);
@@ -21,7 +21,6 @@ import static android.content.res.Configuration.KEYBOARDHIDDEN_NO;
 import static com.android.mms.transaction.ProgressCallbackEntity.PROGRESS_ABORT;
 import static com.android.mms.transaction.ProgressCallbackEntity.PROGRESS_COMPLETE;
 import static com.android.mms.transaction.ProgressCallbackEntity.PROGRESS_START;
-import static com.android.mms.transaction.ProgressCallbackEntity.PROGRESS_STATUS_ACTION;
 import static com.android.mms.ui.MessageListAdapter.COLUMN_ID;
 import static com.android.mms.ui.MessageListAdapter.COLUMN_MSG_TYPE;
 import static com.android.mms.ui.MessageListAdapter.PROJECTION;
@@ -45,7 +44,6 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.ProgressDialog;
 import android.content.ActivityNotFoundException;
-import android.content.BroadcastReceiver;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.ContentResolver;
@@ -55,7 +53,6 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.database.Cursor;
@@ -1168,8 +1165,10 @@ public class ComposeMessageActivity extends Activity
         // the DB when it really has been deleted. Here we try and notice that situation and
         // clear out the thread_id. Later on, when Conversation.ensureThreadId() is called, we'll
         // create a new thread if necessary.
+        long threadId = 0;
         synchronized(mConversation) {
             if (mConversation.getMessageCount() <= 1) {
+                threadId = mConversation.getThreadId();
                 mConversation.clearThreadId();
                 MessagingNotification.setCurrentlyDisplayedThreadId(
                     MessagingNotification.THREAD_NONE);
@@ -1179,6 +1178,10 @@ public class ComposeMessageActivity extends Activity
         Uri uri = ContentUris.withAppendedId(Sms.CONTENT_URI, msgItem.mMsgId);
         SqliteWrapper.delete(ComposeMessageActivity.this,
                 mContentResolver, uri, null, null);
+        if (threadId > 0) {
+            // The thread may have gone with the message, see above.
+            Conversation.invalidateThreadIdCache(threadId);
+        }
 
         mWorkingMessage.setText(msgItem.mBody);
     }
@@ -1688,31 +1691,33 @@ public class ComposeMessageActivity extends Activity
         startActivity(intent);
     }
 
-    private final IntentFilter mHttpProgressFilter = new IntentFilter(PROGRESS_STATUS_ACTION);
-
-    private final BroadcastReceiver mHttpProgressReceiver = new BroadcastReceiver() {
+    // Registered for every token since the thread id of mConversation can
+    // change while the activity is started.
+    private final SendingProgressTokenManager.ProgressListener mHttpProgressListener =
+            new SendingProgressTokenManager.ProgressListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if (PROGRESS_STATUS_ACTION.equals(intent.getAction())) {
-                long token = intent.getLongExtra("token",
-                                    SendingProgressTokenManager.NO_TOKEN);
-                if (token != mConversation.getThreadId()) {
-                    return;
-                }
+        public void onProgress(final long token, final int progress) {
+            // Called on the sending thread.
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (token != mConversation.getThreadId()) {
+                        return;
+                    }
 
-                int progress = intent.getIntExtra("progress", 0);
-                switch (progress) {
-                    case PROGRESS_START:
-                        setProgressBarVisibility(true);
-                        break;
-                    case PROGRESS_ABORT:
-                    case PROGRESS_COMPLETE:
-                        setProgressBarVisibility(false);
-                        break;
-                    default:
-                        setProgress(100 * progress);
+                    switch (progress) {
+                        case PROGRESS_START:
+                            setProgressBarVisibility(true);
+                            break;
+                        case PROGRESS_ABORT:
+                        case PROGRESS_COMPLETE:
+                            setProgressBarVisibility(false);
+                            break;
+                        default:
+                            setProgress(100 * progress);
+                    }
                 }
-            }
+            });
         }
     };
 
@@ -2123,8 +2128,9 @@ public class ComposeMessageActivity extends Activity
 
         initFocus();
 
-        // Register a BroadcastReceiver to listen on HTTP I/O process.
-        registerReceiver(mHttpProgressReceiver, mHttpProgressFilter);
+        // Register a listener on HTTP I/O process.
+        SendingProgressTokenManager.addProgressListener(SendingProgressTokenManager.NO_TOKEN,
+                mHttpProgressListener);
 
         // figure out whether we need to show the keyboard or not.
         // if there is draft to be loaded for 'mConversation', we'll show the keyboard;
@@ -2345,8 +2351,9 @@ public class ComposeMessageActivity extends Activity
         // in which case we should set 'mShouldLoadDraft' to false.
         mShouldLoadDraft = true;
 
-        // Cleanup the BroadcastReceiver.
-        unregisterReceiver(mHttpProgressReceiver);
+        // Cleanup the HTTP progress listener.
+        SendingProgressTokenManager.removeProgressListener(SendingProgressTokenManager.NO_TOKEN,
+                mHttpProgressListener);
     }
 
     @Override
@@ -4240,6 +4247,8 @@ public class ComposeMessageActivity extends Activity
                         // If we just deleted the last message, reset the saved id.
                         mLastMessageId = 0;
                     }
+                    // The provider drops the thread along with its only message.
+                    Conversation.invalidateThreadIdCache(mConversation.getThreadId());
                     // Update the notification for new messages since they
                     // may be deleted.
                     MessagingNotification.nonBlockingUpdateNewMessageIndicator(
@@ -181,6 +181,10 @@ public class MessageItem {
             // Initialize the time stamp to "" instead of null
             mTimestamp = "";
             mMmsStatus = cursor.getInt(columnsMap.mColumnMmsStatus);
+            if (mMessageType == PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND) {
+                // The provider may not have the state the download was just marked with.
+                mMmsStatus = DownloadManager.getInstance().getState(mMessageUri, mMmsStatus);
+            }
             mAttachmentType = cursor.getInt(columnsMap.mColumnMmsTextOnly) != 0 ?
                     WorkingMessage.TEXT : ATTACHMENT_TYPE_NOT_LOADED;
 
@@ -17,7 +17,13 @@
 
 package com.android.mms.util;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import android.content.BroadcastReceiver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -42,6 +48,7 @@ import com.android.internal.telephony.TelephonyProperties;
 import com.android.mms.LogTag;
 import com.android.mms.R;
 import com.android.mms.data.Contact;
+import com.android.mms.data.Conversation;
 import com.android.mms.ui.MessagingPreferenceActivity;
 import com.google.android.mms.MmsException;
 import com.google.android.mms.pdu.EncodedStringValue;
@@ -64,8 +71,24 @@ public class DownloadManager {
     // TransactionService will skip downloading Mms if auto-download is off
     public static final int STATE_SKIP_RETRYING     = 0x89;
 
+    // The number of message download states kept in memory.
+    private static final int STATE_CACHE_SIZE = 256;
+
     private final Context mContext;
     private final Handler mHandler;
+
+    // The download state of recently seen notifications, keyed by message id. It is
+    // authoritative: markState() updates it at once and writes the state through to the
+    // provider on mWriteExecutor, in the order the states were marked. A message not in
+    // it is looked up in the provider.
+    private final LinkedHashMap<Long, Integer> mStates =
+            new LinkedHashMap<Long, Integer>(STATE_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest) {
+            return size() > STATE_CACHE_SIZE;
+        }
+    };
+    private final ExecutorService mWriteExecutor = Executors.newSingleThreadExecutor();
     private final SharedPreferences mPreferences;
     private boolean mAutoDownload;
 
@@ -141,10 +164,20 @@ public class DownloadManager {
 
         if (sInstance != null) {
             Log.w(TAG, "Already initialized.");
+            sInstance.release();
         }
         sInstance = new DownloadManager(context);
     }
 
+    /**
+     * Stop listening for changes. The states already marked are still written.
+     */
+    private void release() {
+        mPreferences.unregisterOnSharedPreferenceChangeListener(mPreferencesChangeListener);
+        mContext.unregisterReceiver(mRoamingStateListener);
+        mWriteExecutor.shutdown();
+    }
+
     public static DownloadManager getInstance() {
         if (sInstance == null) {
             throw new IllegalStateException("Uninitialized.");
@@ -191,43 +224,73 @@ public class DownloadManager {
         return teleMgr.isNetworkRoaming(subId);
     }
 
+    /**
+     * Set the download state of the message. getState() sees the new state at once,
+     * and it is written to the provider in the background.
+     *
+     * Whether the notification has expired is only known once it is loaded for the
+     * write. Until then, getState() reports STATE_DOWNLOADING or STATE_PRE_DOWNLOADING
+     * for an expired notification, which is then deleted and its state forgotten.
+     */
     public void markState(final Uri uri, int state) {
+        // Notify user if downloading permanently failed.
+        if (state == STATE_PERMANENT_FAILURE) {
+            mHandler.post(new Runnable() {
+                public void run() {
+                    try {
+                        Toast.makeText(mContext, getMessage(uri),
+                                Toast.LENGTH_LONG).show();
+                    } catch (MmsException e) {
+                        Log.e(TAG, e.getMessage(), e);
+                    }
+                }
+            });
+        } else if (!mAutoDownload) {
+            state |= DEFERRED_MASK;
+        }
+
+        long msgId = getMessageId(uri);
+        if (msgId >= 0) {
+            synchronized (mStates) {
+                mStates.put(msgId, state);
+            }
+        }
+
+        final int status = state;
+        mWriteExecutor.execute(new Runnable() {
+            public void run() {
+                writeState(uri, status);
+            }
+        });
+    }
+
+    private void writeState(Uri uri, int state) {
         // Notify user if the message has expired.
         try {
             NotificationInd nInd = (NotificationInd) PduPersister.getPduPersister(mContext)
                     .load(uri);
+            int downloadState = state & ~DEFERRED_MASK;
             if ((nInd.getExpiry() < System.currentTimeMillis() / 1000L)
-                    && (state == STATE_DOWNLOADING || state == STATE_PRE_DOWNLOADING)) {
+                    && (downloadState == STATE_DOWNLOADING
+                            || downloadState == STATE_PRE_DOWNLOADING)) {
                 mHandler.post(new Runnable() {
                     public void run() {
                         Toast.makeText(mContext, R.string.service_message_not_found,
                                 Toast.LENGTH_LONG).show();
                     }
                 });
+                forgetState(uri);
                 SqliteWrapper.delete(mContext, mContext.getContentResolver(), uri, null, null);
+                // The notification may have been the last message of its thread.
+                Conversation.invalidateThreadIdCache();
                 return;
             }
         } catch(MmsException e) {
             Log.e(TAG, e.getMessage(), e);
+            forgetState(uri);
             return;
         }
 
-        // Notify user if downloading permanently failed.
-        if (state == STATE_PERMANENT_FAILURE) {
-            mHandler.post(new Runnable() {
-                public void run() {
-                    try {
-                        Toast.makeText(mContext, getMessage(uri),
-                                Toast.LENGTH_LONG).show();
-                    } catch (MmsException e) {
-                        Log.e(TAG, e.getMessage(), e);
-                    }
-                }
-            });
-        } else if (!mAutoDownload) {
-            state |= DEFERRED_MASK;
-        }
-
         // Use the STATUS field to store the state of downloading process
         // because it's useless for M-Notification.ind.
         ContentValues values = new ContentValues(1);
@@ -266,13 +329,32 @@ public class DownloadManager {
     }
 
     public int getState(Uri uri) {
+        long msgId = getMessageId(uri);
+        if (msgId >= 0) {
+            synchronized (mStates) {
+                Integer state = mStates.get(msgId);
+                if (state != null) {
+                    return state & ~DEFERRED_MASK;
+                }
+            }
+        }
+
         Cursor cursor = SqliteWrapper.query(mContext, mContext.getContentResolver(),
                             uri, new String[] {Mms.STATUS}, null, null, null);
 
         if (cursor != null) {
             try {
                 if (cursor.moveToFirst()) {
-                    return cursor.getInt(0) & ~DEFERRED_MASK;
+                    int state = cursor.getInt(0);
+                    if (msgId >= 0) {
+                        synchronized (mStates) {
+                            // A state marked meanwhile is newer than the one read.
+                            if (!mStates.containsKey(msgId)) {
+                                mStates.put(msgId, state);
+                            }
+                        }
+                    }
+                    return state & ~DEFERRED_MASK;
                 }
             } finally {
                 cursor.close();
@@ -280,4 +362,45 @@ public class DownloadManager {
         }
         return STATE_UNSTARTED;
     }
+
+    /**
+     * Like getState(Uri), for a caller which already read the STATUS column of the
+     * message. The state is taken from memory if it was marked since, and from the
+     * column otherwise, without querying the provider.
+     *
+     * @return the state of the message, including DEFERRED_MASK.
+     */
+    public int getState(Uri uri, int status) {
+        long msgId = getMessageId(uri);
+        if (msgId < 0) {
+            return status;
+        }
+        synchronized (mStates) {
+            Integer state = mStates.get(msgId);
+            if (state != null) {
+                return state;
+            }
+            mStates.put(msgId, status);
+        }
+        return status;
+    }
+
+    private void forgetState(Uri uri) {
+        long msgId = getMessageId(uri);
+        if (msgId >= 0) {
+            synchronized (mStates) {
+                mStates.remove(msgId);
+            }
+        }
+    }
+
+    private static long getMessageId(Uri uri) {
+        try {
+            return ContentUris.parseId(uri);
+        } catch (NumberFormatException e) {
+            return -1;
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
 }
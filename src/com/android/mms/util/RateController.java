@@ -17,6 +17,8 @@
 
 package com.android.mms.util;
 
+import java.util.ArrayList;
+
 import com.android.mms.LogTag;
 
 import android.content.BroadcastReceiver;
@@ -25,7 +27,11 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SqliteWrapper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.provider.Telephony.Mms.Rate;
 import android.util.Log;
 
@@ -37,6 +43,9 @@ public class RateController {
     private static final int RATE_LIMIT = 100;
     private static final long ONE_HOUR = 1000 * 60 * 60;
 
+    // How long sent times are held in memory before they are written to the Rate table.
+    private static final long PERSIST_DELAY = 5000;
+
     private static final int NO_ANSWER  = 0;
     private static final int ANSWER_YES = 1;
     private static final int ANSWER_NO  = 2;
@@ -53,6 +62,24 @@ public class RateController {
     private final Context mContext;
     private int mAnswer;
 
+    // The last RATE_LIMIT sent times, oldest at mSentHead once the ring is full. The
+    // Rate table only keeps them across restarts, and is read once to fill the ring.
+    private final Object mSentLock = new Object();
+    private final long[] mSentTimes = new long[RATE_LIMIT];
+    private int mSentHead;
+    private int mSentCount;
+    private boolean mSentLoaded;
+
+    // Sent times not written to the Rate table yet.
+    private final ArrayList<Long> mUnpersisted = new ArrayList<Long>();
+    private Handler mPersistHandler;
+
+    private final Runnable mPersistRunnable = new Runnable() {
+        public void run() {
+            persistSentTimes();
+        }
+    };
+
     private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -94,27 +121,85 @@ public class RateController {
     }
 
     public final void update() {
-        ContentValues values = new ContentValues(1);
-        values.put(Rate.SENT_TIME, System.currentTimeMillis());
-        SqliteWrapper.insert(mContext, mContext.getContentResolver(),
-                             Rate.CONTENT_URI, values);
+        long now = System.currentTimeMillis();
+        synchronized (mSentLock) {
+            loadSentTimes();
+            addSentTime(now);
+            mUnpersisted.add(now);
+            if (mPersistHandler == null) {
+                HandlerThread thread = new HandlerThread("RateController",
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                mPersistHandler = new Handler(thread.getLooper());
+            }
+            if (mUnpersisted.size() == 1) {
+                mPersistHandler.postDelayed(mPersistRunnable, PERSIST_DELAY);
+            }
+        }
     }
 
     public final boolean isLimitSurpassed() {
+        long oneHourAgo = System.currentTimeMillis() - ONE_HOUR;
+        synchronized (mSentLock) {
+            loadSentTimes();
+            // The limit is reached when even the oldest of the last RATE_LIMIT
+            // messages was sent within the hour.
+            return mSentCount >= RATE_LIMIT && mSentTimes[mSentHead] > oneHourAgo;
+        }
+    }
+
+    private void addSentTime(long time) {
+        if (mSentCount < RATE_LIMIT) {
+            mSentTimes[(mSentHead + mSentCount) % RATE_LIMIT] = time;
+            mSentCount++;
+        } else {
+            mSentTimes[mSentHead] = time;
+            mSentHead = (mSentHead + 1) % RATE_LIMIT;
+        }
+    }
+
+    // Must be called with mSentLock held.
+    private void loadSentTimes() {
+        if (mSentLoaded) {
+            return;
+        }
+        mSentLoaded = true;
+
         long oneHourAgo = System.currentTimeMillis() - ONE_HOUR;
         Cursor c = SqliteWrapper.query(mContext, mContext.getContentResolver(),
-                Rate.CONTENT_URI, new String[] { "COUNT(*) AS rate" },
-                Rate.SENT_TIME + ">" + oneHourAgo, null, null);
+                Rate.CONTENT_URI, new String[] { Rate.SENT_TIME },
+                Rate.SENT_TIME + ">" + oneHourAgo, null, Rate.SENT_TIME + " ASC");
         if (c != null) {
             try {
-                if (c.moveToFirst()) {
-                    return c.getInt(0) >= RATE_LIMIT;
+                while (c.moveToNext()) {
+                    addSentTime(c.getLong(0));
                 }
             } finally {
                 c.close();
             }
         }
-        return false;
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "Loaded " + mSentCount + " sent times within the hour");
+        }
+    }
+
+    private void persistSentTimes() {
+        ContentValues[] rows;
+        synchronized (mSentLock) {
+            rows = new ContentValues[mUnpersisted.size()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = new ContentValues(1);
+                rows[i].put(Rate.SENT_TIME, mUnpersisted.get(i));
+            }
+            mUnpersisted.clear();
+        }
+        if (rows.length > 0) {
+            try {
+                mContext.getContentResolver().bulkInsert(Rate.CONTENT_URI, rows);
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Failed to persist " + rows.length + " sent times", e);
+            }
+        }
     }
 
     synchronized public boolean isAllowedByUser() {
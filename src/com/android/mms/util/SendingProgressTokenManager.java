@@ -19,6 +19,7 @@ package com.android.mms.util;
 
 import com.android.mms.LogTag;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 
 import android.util.Log;
@@ -29,10 +30,21 @@ public class SendingProgressTokenManager {
     private static final boolean LOCAL_LOGV = false;
     private static final HashMap<Object, Long> TOKEN_POOL;
 
+    private static final HashMap<Long, ArrayList<ProgressListener>> LISTENERS;
+
     public static final long NO_TOKEN = -1L;
 
     static {
         TOKEN_POOL = new HashMap<Object, Long>();
+        LISTENERS = new HashMap<Long, ArrayList<ProgressListener>>();
+    }
+
+    /**
+     * Receives sending progress in-process, without a system broadcast.
+     * Callbacks are made on the sending thread.
+     */
+    public interface ProgressListener {
+        void onProgress(long token, int progress);
     }
 
     synchronized public static long get(Object key) {
@@ -56,4 +68,60 @@ public class SendingProgressTokenManager {
         }
         TOKEN_POOL.remove(key);
     }
+
+    /**
+     * Register a listener for the sending progress of the given token.
+     * Listeners registered for NO_TOKEN receive the progress of every token.
+     */
+    synchronized public static void addProgressListener(long token, ProgressListener listener) {
+        ArrayList<ProgressListener> listeners = LISTENERS.get(token);
+        if (listeners == null) {
+            listeners = new ArrayList<ProgressListener>(1);
+            LISTENERS.put(token, listeners);
+        }
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    synchronized public static void removeProgressListener(long token,
+            ProgressListener listener) {
+        ArrayList<ProgressListener> listeners = LISTENERS.get(token);
+        if (listeners != null) {
+            listeners.remove(listener);
+            if (listeners.isEmpty()) {
+                LISTENERS.remove(token);
+            }
+        }
+    }
+
+    /**
+     * Deliver progress to the listeners registered for the token.
+     *
+     * @return true if at least one listener received the progress.
+     */
+    public static boolean notifyProgress(long token, int progress) {
+        ArrayList<ProgressListener> targets = null;
+        synchronized (SendingProgressTokenManager.class) {
+            ArrayList<ProgressListener> listeners = LISTENERS.get(token);
+            if (listeners != null) {
+                targets = new ArrayList<ProgressListener>(listeners);
+            }
+            listeners = LISTENERS.get(NO_TOKEN);
+            if (listeners != null) {
+                if (targets == null) {
+                    targets = new ArrayList<ProgressListener>(listeners);
+                } else {
+                    targets.addAll(listeners);
+                }
+            }
+        }
+        if (targets == null) {
+            return false;
+        }
+        for (ProgressListener listener : targets) {
+            listener.onProgress(token, progress);
+        }
+        return true;
+    }
 }
@@ -120,6 +120,27 @@ public class ThumbnailManager extends BackgroundLoaderManager {
         return getThumbnail(uri, true, callback);
     }
 
+    /**
+     * getThumbnailBlocking loads the thumbnail of an image on the calling thread, from
+     * the on-disk cache when it's there and otherwise by a sampled decode of the image,
+     * which is then added to the on-disk cache. It must not be called on the UI thread.
+     * @param uri the uri of the image
+     * @return the thumbnail, or null if the image couldn't be decoded
+     */
+    public Bitmap getThumbnailBlocking(Uri uri) {
+        if (uri == null) {
+            throw new NullPointerException();
+        }
+        try {
+            return new ThumbnailTask(uri, false).getBitmap(false);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Couldn't load bitmap for " + uri, e);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "Couldn't load bitmap for " + uri, e);
+        }
+        return null;
+    }
+
     private ItemLoadedFuture getThumbnail(Uri uri, boolean isVideo,
             final ItemLoadedCallback<ImageLoaded> callback) {
         if (uri == null) {
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.dom;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mms.dom.smil.SmilDocumentImpl;
+
+/**
+ * Checks the sibling links of NodeImpl, the live lists of NodeListImpl and the
+ * attribute order of NamedNodeMapImpl across changes to the tree.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.dom.NodeImplTests mms
+ */
+@SmallTest
+public class NodeImplTests extends AndroidTestCase {
+    private DocumentImpl mDocument;
+    private Element mParent;
+    private Element mA;
+    private Element mB;
+    private Element mC;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDocument = new SmilDocumentImpl();
+        mParent = mDocument.createElement("par");
+        mA = mDocument.createElement("img");
+        mB = mDocument.createElement("text");
+        mC = mDocument.createElement("audio");
+        mDocument.appendChild(mParent);
+        mParent.appendChild(mA);
+        mParent.appendChild(mB);
+        mParent.appendChild(mC);
+    }
+
+    public void testAppendChild() {
+        assertChildren(mParent, mA, mB, mC);
+
+        // Appending a child again moves it to the end.
+        mParent.appendChild(mA);
+        assertChildren(mParent, mB, mC, mA);
+
+        // Appending it to another parent takes it out of the first one.
+        Element other = mDocument.createElement("par");
+        other.appendChild(mB);
+        assertChildren(mParent, mC, mA);
+        assertChildren(other, mB);
+        assertSame(other, mB.getParentNode());
+    }
+
+    public void testRemoveChild() {
+        mParent.removeChild(mB);
+        assertChildren(mParent, mA, mC);
+        assertNull(mB.getParentNode());
+        assertNull(mB.getPreviousSibling());
+        assertNull(mB.getNextSibling());
+
+        mParent.removeChild(mA);
+        mParent.removeChild(mC);
+        assertChildren(mParent);
+        assertFalse(mParent.hasChildNodes());
+
+        try {
+            mParent.removeChild(mA);
+            fail("Removed a node which is not a child");
+        } catch (DOMException e) {
+            assertEquals(DOMException.NOT_FOUND_ERR, e.code);
+        }
+    }
+
+    public void testReplaceChild() {
+        Element d = mDocument.createElement("video");
+        assertSame(mB, mParent.replaceChild(d, mB));
+        assertChildren(mParent, mA, d, mC);
+        assertNull(mB.getParentNode());
+
+        // Replacing with a sibling moves the sibling.
+        mParent.replaceChild(mC, mA);
+        assertChildren(mParent, mC, d);
+    }
+
+    public void testLiveNodeLists() {
+        NodeList children = mParent.getChildNodes();
+        NodeList texts = mParent.getElementsByTagName("text");
+        assertEquals(3, children.getLength());
+        assertEquals(1, texts.getLength());
+
+        mParent.appendChild(mDocument.createElement("text"));
+        assertEquals(4, children.getLength());
+        assertEquals(2, texts.getLength());
+
+        mParent.removeChild(mB);
+        assertEquals(3, children.getLength());
+        assertEquals(1, texts.getLength());
+        assertSame(mC, children.item(1));
+        assertNull(children.item(3));
+    }
+
+    public void testAttributes() {
+        mA.setAttribute("src", "a.jpg");
+        mA.setAttribute("region", "Image");
+        mA.setAttribute("dur", "5s");
+        mA.setAttribute("begin", "0");
+        mA.setAttribute("end", "4s");
+
+        // Setting an attribute again keeps its place.
+        mA.setAttribute("region", "Text");
+
+        NamedNodeMap attributes = mA.getAttributes();
+        String[] names = new String[] { "src", "region", "dur", "begin", "end" };
+        assertEquals(names.length, attributes.getLength());
+        for (int i = 0; i < names.length; i++) {
+            assertEquals(names[i], attributes.item(i).getNodeName());
+        }
+        assertEquals("Text", mA.getAttribute("region"));
+        assertEquals("", mA.getAttribute("fill"));
+        assertNull(attributes.item(names.length));
+
+        Attr removed = (Attr) attributes.removeNamedItem("dur");
+        assertEquals("5s", removed.getValue());
+        assertEquals(4, attributes.getLength());
+        assertEquals("begin", attributes.item(2).getNodeName());
+        assertFalse(mA.hasAttribute("dur"));
+    }
+
+    private static void assertChildren(Node parent, Node... children) {
+        Node previous = null;
+        Node child = parent.getFirstChild();
+        for (Node expected : children) {
+            assertSame(expected, child);
+            assertSame(previous, child.getPreviousSibling());
+            assertSame(parent, child.getParentNode());
+            previous = child;
+            child = child.getNextSibling();
+        }
+        assertNull(child);
+        assertSame(previous, parent.getLastChild());
+    }
+}
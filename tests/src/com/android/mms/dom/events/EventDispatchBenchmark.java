@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.dom.events;
+
+import java.util.ArrayList;
+
+import org.w3c.dom.events.Event;
+import org.w3c.dom.events.EventListener;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.mms.dom.smil.SmilMediaElementImpl;
+import com.android.mms.dom.smil.SmilParElementImpl;
+
+/**
+ * Checks which listeners EventTargetImpl calls for an event, including for events
+ * dispatched more than once, and logs the dispatch throughput with the listeners a
+ * slideshow registers on a media element.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.dom.events.EventDispatchBenchmark mms
+ */
+@LargeTest
+public class EventDispatchBenchmark extends AndroidTestCase {
+    private static final String TAG = "EventDispatchBenchmark";
+
+    private static final int DISPATCHES = 100000;
+
+    private static final String[] TYPES = new String[] {
+        SmilMediaElementImpl.SMIL_MEDIA_START_EVENT,
+        SmilMediaElementImpl.SMIL_MEDIA_END_EVENT,
+        SmilMediaElementImpl.SMIL_MEDIA_PAUSE_EVENT,
+        SmilMediaElementImpl.SMIL_MEDIA_SEEK_EVENT,
+        SmilParElementImpl.SMIL_SLIDE_START_EVENT,
+        SmilParElementImpl.SMIL_SLIDE_END_EVENT,
+    };
+
+    private static class RecordingListener implements EventListener {
+        final ArrayList<String> mTypes = new ArrayList<String>();
+
+        public void handleEvent(Event evt) {
+            mTypes.add(evt.getType());
+        }
+    }
+
+    public void testListenersByType() {
+        EventTargetImpl target = new EventTargetImpl(null);
+        RecordingListener start = new RecordingListener();
+        RecordingListener both = new RecordingListener();
+        RecordingListener capture = new RecordingListener();
+        target.addEventListener(TYPES[0], start, false);
+        target.addEventListener(TYPES[0], both, false);
+        target.addEventListener(TYPES[1], both, false);
+        target.addEventListener(TYPES[0], capture, true);
+        // Added twice, called once.
+        target.addEventListener(TYPES[1], both, false);
+
+        target.dispatchEvent(newEvent(TYPES[0]));
+        target.dispatchEvent(newEvent(TYPES[1]));
+        target.dispatchEvent(newEvent(TYPES[2]));
+        assertEquals(1, start.mTypes.size());
+        assertEquals(2, both.mTypes.size());
+        assertEquals(TYPES[1], both.mTypes.get(1));
+        assertEquals(0, capture.mTypes.size());
+
+        target.removeEventListener(TYPES[0], both, false);
+        target.dispatchEvent(newEvent(TYPES[0]));
+        assertEquals(2, start.mTypes.size());
+        assertEquals(2, both.mTypes.size());
+    }
+
+    public void testListenerRemovedDuringDispatch() {
+        final EventTargetImpl target = new EventTargetImpl(null);
+        final RecordingListener second = new RecordingListener();
+        EventListener first = new EventListener() {
+            public void handleEvent(Event evt) {
+                target.removeEventListener(TYPES[0], this, false);
+            }
+        };
+        target.addEventListener(TYPES[0], first, false);
+        target.addEventListener(TYPES[0], second, false);
+
+        // The dispatch in progress still reaches every listener it started with.
+        target.dispatchEvent(newEvent(TYPES[0]));
+        assertEquals(1, second.mTypes.size());
+        target.dispatchEvent(newEvent(TYPES[0]));
+        assertEquals(2, second.mTypes.size());
+    }
+
+    public void testReusedEvent() {
+        EventTargetImpl target = new EventTargetImpl(null);
+        EventListener preventing = new EventListener() {
+            public void handleEvent(Event evt) {
+                evt.stopPropagation();
+                evt.preventDefault();
+            }
+        };
+        target.addEventListener(TYPES[0], preventing, false);
+        RecordingListener recording = new RecordingListener();
+        EventTargetImpl other = new EventTargetImpl(null);
+        other.addEventListener(TYPES[0], recording, false);
+
+        // What a listener did to the event doesn't carry over to its next dispatch.
+        EventImpl event = newEvent(TYPES[0]);
+        assertTrue(target.dispatchEvent(event));
+        assertFalse(other.dispatchEvent(event));
+        assertEquals(1, recording.mTypes.size());
+    }
+
+    public void testDispatchThroughput() {
+        EventTargetImpl target = new EventTargetImpl(null);
+        for (int i = 0; i < TYPES.length; i++) {
+            target.addEventListener(TYPES[i], new EventListener() {
+                public void handleEvent(Event evt) {
+                    // Only the dispatch is measured.
+                }
+            }, false);
+        }
+
+        EventImpl[] events = new EventImpl[TYPES.length];
+        for (int i = 0; i < TYPES.length; i++) {
+            events[i] = newEvent(TYPES[i]);
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < DISPATCHES; i++) {
+            target.dispatchEvent(newEvent(TYPES[i % TYPES.length]));
+        }
+        long newEventTime = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < DISPATCHES; i++) {
+            target.dispatchEvent(events[i % TYPES.length]);
+        }
+        long reusedEventTime = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, DISPATCHES + " dispatches to " + TYPES.length + " listeners: new events "
+                + newEventTime + " ms, reused events " + reusedEventTime + " ms");
+    }
+
+    private static EventImpl newEvent(String type) {
+        EventImpl event = new EventImpl();
+        event.initEvent(type, false, false);
+        return event;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.dom.smil;
+
+import org.w3c.dom.smil.ElementTime;
+import org.w3c.dom.smil.SMILDocument;
+import org.w3c.dom.smil.SMILElement;
+import org.w3c.dom.smil.SMILParElement;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.mms.dom.smil.parser.SmilXmlParser;
+
+/**
+ * Checks that the timing values ElementTimeImpl caches follow changes to the document,
+ * and logs the time SmilPlayer takes to build the timeline of a long slideshow with
+ * and without those values cached.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.dom.smil.ElementTimeBenchmark mms
+ */
+@LargeTest
+public class ElementTimeBenchmark extends AndroidTestCase {
+    private static final String TAG = "ElementTimeBenchmark";
+
+    private static final int SLIDES = 100;
+    private static final int ITERATIONS = 50;
+
+    public void testAttributeChanges() throws Exception {
+        SMILDocument document = parse("<smil><head/><body><par>"
+                + "<img src=\"a.jpg\" dur=\"2s\"/><text src=\"a.txt\" begin=\"1s\"/>"
+                + "</par></body></smil>");
+        SMILParElement par = (SMILParElement) document.getBody().getFirstChild();
+        ElementTime img = (ElementTime) par.getFirstChild();
+
+        assertEquals(2f, par.getDur());
+        assertEquals(2.0, par.getEnd().item(0).getResolvedOffset());
+        assertSame(par.getEnd(), par.getEnd());
+
+        // Through the element of the child.
+        img.setDur(4);
+        assertEquals(4f, img.getDur());
+        assertEquals(4f, par.getDur());
+        assertEquals(4.0, par.getEnd().item(0).getResolvedOffset());
+
+        // Through the attribute itself.
+        ((SMILElement) img).getAttributeNode("dur").setValue("3000ms");
+        assertEquals(3f, par.getDur());
+
+        // Through the tree.
+        SMILElement audio = (SMILElement) document.createElement("audio");
+        par.appendChild(audio);
+        assertEquals(-1f, par.getDur());
+        par.removeChild(audio);
+        assertEquals(3f, par.getDur());
+
+        // Through the fillDefault of the parent.
+        ElementTime text = (ElementTime) par.getLastChild();
+        assertEquals(ElementTime.FILL_FREEZE, text.getFill());
+        par.setFillDefault(ElementTime.FILL_REMOVE);
+        assertEquals(ElementTime.FILL_REMOVE, text.getFill());
+    }
+
+    public void testTimelineTime() throws Exception {
+        StringBuilder smil = new StringBuilder("<smil><head/><body>");
+        for (int i = 0; i < SLIDES; i++) {
+            smil.append("<par><img src=\"").append(i).append(".jpg\" dur=\"4500ms\"/>")
+                    .append("<text src=\"").append(i).append(".txt\" begin=\"0.5s\" end=\"4s\"/>")
+                    .append("<audio src=\"").append(i).append(".amr\" dur=\"00:05.25\"/>")
+                    .append("</par>");
+        }
+        smil.append("</body></smil>");
+        SMILDocument document = parse(smil.toString());
+        SMILElement body = document.getBody();
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            // Drops every cached value.
+            body.setAttribute("title", Integer.toString(i));
+            SmilPlayer.getTimeline((ElementTime) document, 0, Long.MAX_VALUE);
+        }
+        long parseTime = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            SmilPlayer.getTimeline((ElementTime) document, 0, Long.MAX_VALUE);
+        }
+        long cachedTime = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, ITERATIONS + " timelines of " + SLIDES + " slides: parsed " + parseTime
+                + " ms, cached " + cachedTime + " ms");
+    }
+
+    private static SMILDocument parse(String document) throws Exception {
+        return new SmilXmlParser().parse(document.getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.dom.smil;
+
+import java.util.ArrayList;
+
+import org.w3c.dom.smil.ElementTime;
+import org.w3c.dom.smil.SMILDocument;
+import org.w3c.dom.smil.SMILParElement;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mms.dom.smil.parser.SmilXmlParser;
+
+/**
+ * Checks that SmilTimeline holds the same entries as the TimelineEntry list SmilPlayer
+ * builds it from, and that its slide lookups agree with a scan of those entries.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.dom.smil.SmilTimelineTests mms
+ */
+@SmallTest
+public class SmilTimelineTests extends AndroidTestCase {
+    private static final String[] DOCUMENTS = new String[] {
+        // Slides with text, image and audio of their own durations.
+        "<smil><head><layout><root-layout width=\"320\" height=\"480\"/>"
+                + "<region id=\"Image\" left=\"0\" top=\"0\" width=\"320\" height=\"320\"/>"
+                + "<region id=\"Text\" left=\"0\" top=\"320\" width=\"320\" height=\"160\"/>"
+                + "</layout></head><body>"
+                + "<par dur=\"5000ms\"><img src=\"a.jpg\" region=\"Image\"/>"
+                + "<text src=\"a.txt\" region=\"Text\"/></par>"
+                + "<par dur=\"3s\"><text src=\"b.txt\" region=\"Text\" begin=\"1s\"/>"
+                + "<audio src=\"b.amr\" dur=\"7s\"/></par>"
+                + "<par dur=\"2.5s\"><img src=\"c.jpg\" region=\"Image\" end=\"1s\"/></par>"
+                + "</body></smil>",
+
+        // A single slide without durations.
+        "<smil><body><par><text src=\"t.txt\"/></par></body></smil>",
+
+        // No slides.
+        "<smil><head/><body/></smil>",
+    };
+
+    public void testSameEntries() throws Exception {
+        for (String document : DOCUMENTS) {
+            ElementTime root = parse(document);
+            ArrayList<SmilPlayer.TimelineEntry> entries =
+                    SmilPlayer.getTimeline(root, 0, Long.MAX_VALUE);
+            SmilTimeline timeline = new SmilTimeline(entries);
+
+            assertEquals(entries.size(), timeline.size());
+            for (int i = 0; i < entries.size(); i++) {
+                SmilPlayer.TimelineEntry entry = entries.get(i);
+                assertEquals(entry.getOffsetTime(), timeline.mOffsets[i]);
+                assertEquals(entry.getAction(), timeline.mActions[i]);
+                assertSame(entry.getElement(), timeline.mElements[i]);
+            }
+
+            double endOffset = entries.isEmpty() ? 0
+                    : entries.get(entries.size() - 1).getOffsetTime();
+            assertEquals(endOffset, timeline.getEndOffset());
+        }
+    }
+
+    public void testSlideLookups() throws Exception {
+        for (String document : DOCUMENTS) {
+            ElementTime root = parse(document);
+            ArrayList<SmilPlayer.TimelineEntry> entries =
+                    SmilPlayer.getTimeline(root, 0, Long.MAX_VALUE);
+            SmilTimeline timeline = new SmilTimeline(entries);
+
+            for (int i = 0; i < entries.size(); i++) {
+                assertEquals(isBeginOfSlide(entries.get(i)), timeline.isBeginOfSlide(i));
+
+                int next = -1;
+                for (int j = i; j < entries.size(); j++) {
+                    if (isBeginOfSlide(entries.get(j))) {
+                        next = j;
+                        break;
+                    }
+                }
+                assertEquals(next, timeline.nextSlideBegin(i));
+
+                int previous = -1;
+                for (int j = i; j >= 0; j--) {
+                    if (isBeginOfSlide(entries.get(j))) {
+                        previous = j;
+                        break;
+                    }
+                }
+                assertEquals(previous, timeline.previousSlideBegin(i));
+            }
+        }
+    }
+
+    public void testTimelineIsBuiltOnce() throws Exception {
+        ElementTime root = parse(DOCUMENTS[0]);
+        assertSame(SmilPlayer.getCompiledTimeline(root), SmilPlayer.getCompiledTimeline(root));
+    }
+
+    public void testTimelineIsBuiltAgainAfterChange() throws Exception {
+        ElementTime root = parse(DOCUMENTS[0]);
+        SmilTimeline timeline = SmilPlayer.getCompiledTimeline(root);
+        SMILParElement par = (SMILParElement) ((SMILDocument) root).getBody().getFirstChild();
+        par.setDur(8);
+        SmilTimeline changed = SmilPlayer.getCompiledTimeline(root);
+        assertNotSame(timeline, changed);
+        assertEquals(timeline.size(), changed.size());
+        assertTrue(changed.getEndOffset() > timeline.getEndOffset());
+    }
+
+    private static boolean isBeginOfSlide(SmilPlayer.TimelineEntry entry) {
+        return (entry.getAction() == SmilTimeline.ACTION_BEGIN)
+                && (entry.getElement() instanceof SmilParElementImpl);
+    }
+
+    private static ElementTime parse(String document) throws Exception {
+        return new SmilXmlParser().parse(document.getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.dom.smil.parser;
+
+import org.w3c.dom.smil.SMILDocument;
+import org.w3c.dom.smil.SMILMediaElement;
+import org.w3c.dom.smil.SMILParElement;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Checks that the documents a SmilDocumentTemplate builds serialize to the same SMIL
+ * as a fresh parse of the document the template was made from.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.dom.smil.parser.SmilDocumentTemplateTests mms
+ */
+@SmallTest
+public class SmilDocumentTemplateTests extends AndroidTestCase {
+    private static final String[] DOCUMENTS = new String[] {
+        // Layout, regions, timing and media of every kind.
+        "<smil><head><layout><root-layout width=\"320\" height=\"480\"/>"
+                + "<region id=\"Image\" left=\"0\" top=\"0\" width=\"320\" height=\"320\""
+                + " fit=\"meet\"/>"
+                + "<region id=\"Text\" left=\"0\" top=\"320\" width=\"320\" height=\"160\"/>"
+                + "</layout></head><body>"
+                + "<par dur=\"5000ms\"><img src=\"a.jpg\" region=\"Image\"/>"
+                + "<text src=\"a &amp; b.txt\" region=\"Text\"/></par>"
+                + "<par dur=\"3s\"><video src=\"b.3gp\" region=\"Image\" begin=\"1\"/>"
+                + "<audio src=\"b.amr\" dur=\"7s\"/></par>"
+                + "</body></smil>",
+
+        // No head, so the parser adds one.
+        "<smil><body><par><text src=\"t.txt\"/></par></body></smil>",
+
+        // No slides.
+        "<smil><head/><body/></smil>",
+    };
+
+    public void testSameAsParse() throws Exception {
+        for (String document : DOCUMENTS) {
+            SMILDocument parsed = parse(document);
+            SmilDocumentTemplate template = new SmilDocumentTemplate(parsed);
+            String expected = serialize(parse(document));
+
+            assertEquals(expected, serialize(template.newDocument()));
+            // Building a document leaves the template as it was.
+            assertEquals(expected, serialize(template.newDocument()));
+        }
+    }
+
+    public void testNewDocumentsAreIndependent() throws Exception {
+        SmilDocumentTemplate template = new SmilDocumentTemplate(parse(DOCUMENTS[0]));
+        SMILDocument first = template.newDocument();
+        SMILDocument second = template.newDocument();
+
+        SMILParElement par = (SMILParElement) first.getBody().getFirstChild();
+        par.setDur(9);
+        ((SMILMediaElement) par.getFirstChild()).setSrc("changed.jpg");
+
+        assertEquals(serialize(parse(DOCUMENTS[0])), serialize(second));
+        SMILParElement secondPar = (SMILParElement) second.getBody().getFirstChild();
+        assertEquals("a.jpg", ((SMILMediaElement) secondPar.getFirstChild()).getSrc());
+        assertEquals(5f, secondPar.getDur());
+    }
+
+    private static SMILDocument parse(String document) throws Exception {
+        return new SmilXmlParser().parse(document.getBytes("UTF-8"));
+    }
+
+    private static String serialize(SMILDocument document) throws Exception {
+        return new String(SmilXmlSerializer.serialize(document), "UTF-8");
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.dom.smil.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.w3c.dom.smil.SMILDocument;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Compares SmilPullParser with the SAX parser over SMIL parts in the forms sent by
+ * handsets and MMSCs: both must build the same document, and the time of each is
+ * logged.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.dom.smil.parser.SmilParserBenchmark mms
+ */
+@LargeTest
+public class SmilParserBenchmark extends AndroidTestCase {
+    private static final String TAG = "SmilParserBenchmark";
+
+    private static final int ITERATIONS = 500;
+
+    private static final String[] CORPUS = new String[] {
+        // As written by this app.
+        "<smil><head><layout><root-layout width=\"320px\" height=\"480px\"/>"
+                + "<region id=\"Image\" left=\"0\" top=\"0\" width=\"320px\" height=\"320px\""
+                + " fit=\"meet\"/><region id=\"Text\" left=\"0\" top=\"320\" width=\"320px\""
+                + " height=\"160px\" fit=\"meet\"/></layout></head><body>"
+                + "<par dur=\"5000ms\"><img src=\"IMG_0001.jpg\" region=\"Image\"/>"
+                + "<text src=\"text_0.txt\" region=\"Text\"/></par>"
+                + "<par dur=\"8000ms\"><text src=\"text_1.txt\" region=\"Text\"/>"
+                + "<audio src=\"rec.amr\" dur=\"7500ms\"/></par></body></smil>",
+
+        // Declaration, DOCTYPE, namespace, comments and pretty printing.
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n"
+                + "<!DOCTYPE smil PUBLIC \"-//W3C//DTD SMIL 2.0//EN\""
+                + " \"http://www.w3.org/2001/SMIL20/SMIL20.dtd\">\r\n"
+                + "<smil xmlns=\"http://www.w3.org/2001/SMIL20/Language\">\r\n"
+                + "  <head>\r\n    <layout>\r\n"
+                + "      <root-layout backgroundColor=\"#FFFFFF\" width=\"176\" height=\"144\"/>\r\n"
+                + "      <region id=\"Image\" width=\"100%\" height=\"67%\" left=\"0%\" top=\"0%\"/>\r\n"
+                + "      <region id=\"Text\" width=\"100%\" height=\"33%\" left=\"0%\" top=\"67%\"/>\r\n"
+                + "    </layout>\r\n  </head>\r\n  <body>\r\n"
+                + "    <!-- slide 1 -->\r\n"
+                + "    <par dur=\"4s\">\r\n      <img src=\"cid:image1\" region=\"Image\"/>\r\n"
+                + "      <text src=\"cid:text1\" region=\"Text\"/>\r\n    </par>\r\n"
+                + "    <par dur=\"4s\">\r\n      <video src=\"clip.3gp\" region=\"Image\""
+                + " begin=\"0s\" end=\"3.5s\"/>\r\n    </par>\r\n  </body>\r\n</smil>\r\n",
+
+        // Upper case tags, single quotes and escaped file names.
+        "<SMIL><HEAD><LAYOUT><ROOT-LAYOUT WIDTH='240' HEIGHT='320'/>"
+                + "<REGION id='Image' left='0' top='0' width='240' height='240'/>"
+                + "</LAYOUT></HEAD><BODY><PAR dur='10s'>"
+                + "<IMG src='Tom &amp; Jerry.jpg' region='Image'/>"
+                + "<REF src='card.vcf'/></PAR></BODY></SMIL>",
+    };
+
+    private byte[][] mCorpus;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCorpus = new byte[CORPUS.length][];
+        for (int i = 0; i < CORPUS.length; i++) {
+            mCorpus[i] = CORPUS[i].getBytes("UTF-8");
+        }
+    }
+
+    /**
+     * Every document of the corpus takes the pull parser path and comes out the same
+     * as from the SAX parser.
+     */
+    public void testSameDocuments() throws Exception {
+        SmilXmlParser parser = new SmilXmlParser();
+        for (byte[] data : mCorpus) {
+            assertNotNull(SmilPullParser.parse(data));
+            assertEquals(serialize(parser.parse(new ByteArrayInputStream(data))),
+                    serialize(parser.parse(data)));
+        }
+    }
+
+    /**
+     * Constructs outside of the subset fall back to the SAX parser.
+     */
+    public void testFallback() throws Exception {
+        String internalSubset = "<!DOCTYPE smil [<!ENTITY pic \"a.jpg\">]>"
+                + "<smil><body><par><img src=\"&pic;\"/></par></body></smil>";
+        byte[] data = internalSubset.getBytes("UTF-8");
+        assertNull(SmilPullParser.parse(data));
+
+        SMILDocument document = new SmilXmlParser().parse(data);
+        assertNotNull(document.getBody());
+    }
+
+    public void testParseTime() throws Exception {
+        SmilXmlParser parser = new SmilXmlParser();
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (byte[] data : mCorpus) {
+                new SmilXmlParser().parse(new ByteArrayInputStream(data));
+            }
+        }
+        long saxTime = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (byte[] data : mCorpus) {
+                parser.parse(data);
+            }
+        }
+        long pullTime = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, ITERATIONS + " x " + mCorpus.length + " documents: SAX " + saxTime
+                + " ms, pull " + pullTime + " ms");
+    }
+
+    private static String serialize(SMILDocument document) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SmilXmlSerializer.serialize(document, out);
+        return out.toString();
+    }
+}
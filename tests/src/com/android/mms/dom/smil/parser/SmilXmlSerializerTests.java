@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.dom.smil.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.w3c.dom.smil.SMILDocument;
+import org.w3c.dom.smil.SMILMediaElement;
+import org.w3c.dom.smil.SMILParElement;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mms.dom.smil.SmilDocumentImpl;
+
+/**
+ * Checks the UTF-8 bytes SmilXmlSerializer writes, and that a serialized document
+ * parses back to the same attribute values.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.dom.smil.parser.SmilXmlSerializerTests mms
+ */
+@SmallTest
+public class SmilXmlSerializerTests extends AndroidTestCase {
+    // ASCII, two, three and four byte characters, and every escaped character.
+    private static final String SRC = "Tom & Jerry <été> \"中\" '😀'.jpg";
+
+    public void testSerialize() throws Exception {
+        SMILDocument document = newDocument();
+        String expected = "<smil><head/><body><par dur=\"5000ms\">"
+                + "<img src=\"Tom &amp; Jerry &lt;été&gt; &quot;中&quot;"
+                + " &apos;😀&apos;.jpg\"/></par></body></smil>";
+
+        byte[] data = SmilXmlSerializer.serialize(document);
+        assertTrue(Arrays.equals(expected.getBytes("UTF-8"), data));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SmilXmlSerializer.serialize(document, out);
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+    public void testParseSerialized() throws Exception {
+        byte[] data = SmilXmlSerializer.serialize(newDocument());
+        SMILDocument document = new SmilXmlParser().parse(data);
+        SMILParElement par = (SMILParElement) document.getBody().getFirstChild();
+        SMILMediaElement img = (SMILMediaElement) par.getFirstChild();
+        assertEquals(SRC, img.getSrc());
+        assertEquals(5f, par.getDur());
+    }
+
+    private static SMILDocument newDocument() {
+        SMILDocument document = new SmilDocumentImpl();
+        document.getBody();
+        SMILParElement par = (SMILParElement) document.createElement("par");
+        par.setDur(5);
+        SMILMediaElement img = (SMILMediaElement) document.createElement("img");
+        img.setSrc(SRC);
+        par.appendChild(img);
+        document.getBody().appendChild(par);
+        return document;
+    }
+}
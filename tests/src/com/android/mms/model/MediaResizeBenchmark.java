@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.model;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.mms.MmsConfig;
+import com.google.android.mms.pdu.PduPart;
+
+/**
+ * Checks how MediaResizePlanner shares out a byte budget, and logs the time it takes to
+ * resize the photos of a 10 photo message one at a time and on its pool.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.model.MediaResizeBenchmark mms
+ */
+@LargeTest
+public class MediaResizeBenchmark extends AndroidTestCase {
+    private static final String TAG = "MediaResizeBenchmark";
+
+    private static final int PHOTOS = 10;
+    private static final int PHOTO_WIDTH = 2048;
+    private static final int PHOTO_HEIGHT = 1536;
+
+    private final ArrayList<File> mFiles = new ArrayList<File>();
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mFiles) {
+            file.delete();
+        }
+        super.tearDown();
+    }
+
+    public void testAllocate() {
+        // Nothing known, equal shares.
+        assertAllocation(300, new int[] { 0, 0, 0 }, null, new int[] { 100, 100, 100 });
+
+        // What a small media leaves goes to the others.
+        assertAllocation(300, new int[] { 50, 0, 400 }, null, new int[] { 50, 125, 125 });
+
+        // Which can make another one fit.
+        assertAllocation(300, new int[] { 40, 80, 0, 0 }, null, new int[] { 40, 80, 90, 90 });
+
+        // Media which is done gets nothing.
+        assertAllocation(100, new int[] { 0, 500, 0 }, new boolean[] { true, false, true },
+                new int[] { 50, 0, 50 });
+    }
+
+    public void testResizeTime() throws Exception {
+        ArrayList<MediaModel> photos = new ArrayList<MediaModel>();
+        Random random = new Random(0);
+        for (int i = 0; i < PHOTOS; i++) {
+            photos.add(new ImageModel(getContext(), Uri.fromFile(createPhoto(i, random)), null));
+        }
+        int budget = MmsConfig.getMaxMessageSize() - SlideshowModel.SLIDESHOW_SLOP;
+
+        ExecutorService sequential = Executors.newSingleThreadExecutor();
+        long start = SystemClock.elapsedRealtime();
+        PduPart[] sequentialParts = new MediaResizePlanner(sequential).resize(photos, budget);
+        long sequentialTime = SystemClock.elapsedRealtime() - start;
+        sequential.shutdown();
+
+        start = SystemClock.elapsedRealtime();
+        PduPart[] parts = new MediaResizePlanner().resize(photos, budget);
+        long pooledTime = SystemClock.elapsedRealtime() - start;
+
+        assertTotalSize(budget, sequentialParts);
+        assertTotalSize(budget, parts);
+
+        Log.i(TAG, "Resized " + PHOTOS + " photos of " + PHOTO_WIDTH + "x" + PHOTO_HEIGHT
+                + " to " + budget + " bytes: one at a time " + sequentialTime
+                + " ms, pooled " + pooledTime + " ms");
+    }
+
+    private File createPhoto(int index, Random random) throws Exception {
+        // Random blocks, so the photo doesn't compress to nothing.
+        Bitmap bitmap = Bitmap.createBitmap(PHOTO_WIDTH, PHOTO_HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint();
+        for (int y = 0; y < PHOTO_HEIGHT; y += 32) {
+            for (int x = 0; x < PHOTO_WIDTH; x += 32) {
+                paint.setColor(0xff000000 | random.nextInt(0x1000000));
+                canvas.drawRect(x, y, x + 32, y + 32, paint);
+            }
+        }
+
+        File file = new File(getContext().getCacheDir(), "resize" + index + ".jpg");
+        mFiles.add(file);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 95, out);
+        } finally {
+            out.close();
+        }
+        bitmap.recycle();
+        return file;
+    }
+
+    private static void assertAllocation(int budget, int[] sizes, boolean[] pending,
+            int[] expected) {
+        if (pending == null) {
+            pending = new boolean[sizes.length];
+            Arrays.fill(pending, true);
+        }
+        int[] limits = MediaResizePlanner.allocate(budget, sizes, pending);
+        assertTrue(Arrays.toString(limits), Arrays.equals(expected, limits));
+    }
+
+    private static void assertTotalSize(int budget, PduPart[] parts) {
+        int total = 0;
+        for (PduPart part : parts) {
+            // Every photo is too big to send as it is.
+            assertNotNull(part);
+            total += part.getData().length;
+        }
+        assertTrue(total <= budget);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.model;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+
+import org.w3c.dom.smil.SMILDocument;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.mms.dom.smil.parser.SmilXmlSerializer;
+import com.google.android.mms.pdu.CharacterSets;
+
+/**
+ * Checks that SmilHelper.updateSlide() leaves a document the same as one made again
+ * from the slideshow, regions of the layout included.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.model.SmilHelperTests mms
+ */
+@MediumTest
+public class SmilHelperTests extends AndroidTestCase {
+    private final ArrayList<File> mFiles = new ArrayList<File>();
+
+    private SlideshowModel mSlideshow;
+    private LayoutModel mLayout;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSlideshow = SlideshowModel.createNew(getContext());
+        mLayout = mSlideshow.getLayout();
+
+        // Text only, then text and an image.
+        SlideModel first = new SlideModel(mSlideshow);
+        first.add(createText("first"));
+        mSlideshow.add(first);
+
+        SlideModel second = new SlideModel(mSlideshow);
+        second.add(createText("second"));
+        second.add(createImage("second"));
+        mSlideshow.add(second);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : mFiles) {
+            file.delete();
+        }
+        super.tearDown();
+    }
+
+    public void testUpdateSlide() throws Exception {
+        SMILDocument document = SmilHelper.getDocument(mSlideshow);
+
+        // Change one slide.
+        SlideModel first = mSlideshow.get(0);
+        first.setDuration(8000);
+        assertUpdated(document, 0);
+
+        // Add media, which uses a region the slide didn't.
+        first.add(createImage("first"));
+        assertUpdated(document, 0);
+
+        // Remove the media of a region from every slide, so the region goes.
+        first.removeImage();
+        assertUpdated(document, 0);
+        mSlideshow.get(1).removeImage();
+        assertUpdated(document, 1);
+    }
+
+    private void assertUpdated(SMILDocument document, int index) throws Exception {
+        assertTrue(SmilHelper.updateSlide(document, mSlideshow, index));
+        assertEquals(serialize(SmilHelper.getDocument(mSlideshow)), serialize(document));
+    }
+
+    private TextModel createText(String name) {
+        return new TextModel(getContext(), "text/plain", name + ".txt",
+                CharacterSets.UTF_8, name.getBytes(), mLayout.getTextRegion());
+    }
+
+    private ImageModel createImage(String name) throws Exception {
+        File file = new File(getContext().getCacheDir(), name + ".png");
+        mFiles.add(file);
+        Bitmap bitmap = Bitmap.createBitmap(64, 48, Bitmap.Config.ARGB_8888);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } finally {
+            out.close();
+        }
+        bitmap.recycle();
+        return new ImageModel(getContext(), "image/png", name + ".png", Uri.fromFile(file),
+                mLayout.getImageRegion());
+    }
+
+    private static String serialize(SMILDocument document) throws Exception {
+        return new String(SmilXmlSerializer.serialize(document), "UTF-8");
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import java.util.List;
+
+import android.database.Cursor;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.provider.Telephony.Mms;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.google.android.mms.pdu.PduHeaders;
+
+/**
+ * End-to-end throughput of the PushReceiver -> TransactionService -> HttpUtils
+ * -> PduPersister pipeline against a StubMmsc on the loopback interface.
+ *
+ * The device needs a connected MMS APN without a proxy and auto-retrieve
+ * enabled, since the downloads go through the regular MMS connectivity.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.transaction.MmsThroughputTest mms
+ */
+@LargeTest
+public class MmsThroughputTest extends AndroidTestCase {
+    private static final String TAG = "MmsThroughputTest";
+
+    private static final int BURST_SIZE = 50;
+    private static final int SENDER_COUNT = 5;
+    private static final long TIMEOUT_MS = 5 * 60 * 1000;
+    private static final long POLL_INTERVAL_MS = 250;
+
+    private StubMmsc mMmsc;
+    private WapPushGenerator mGenerator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMmsc = new StubMmsc();
+        mGenerator = new WapPushGenerator(getContext(), mMmsc);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().getContentResolver().delete(Mms.CONTENT_URI,
+                Mms.CONTENT_LOCATION + " LIKE ?", new String[] { mMmsc.getBaseUrl() + "%" });
+        mMmsc.shutdown();
+        super.tearDown();
+    }
+
+    /**
+     * A burst of pushes with no network latency.
+     */
+    public void testPushBurst() {
+        runBurst("burst", 0, 0f, 0);
+    }
+
+    /**
+     * A burst of pushes from a slow, flaky MMSC which also resends notifications.
+     */
+    public void testPushBurstWithLatencyAndErrors() {
+        runBurst("flaky", 200, 0.1f, 10);
+    }
+
+    private void runBurst(String tag, long latencyMs, float errorRate, int duplicateEvery) {
+        mMmsc.setLatency(latencyMs);
+        mMmsc.setErrorRate(errorRate);
+        tag = tag + "-" + System.currentTimeMillis();
+
+        long heapBefore = getUsedHeap();
+        long start = SystemClock.elapsedRealtime();
+        List<String> ids = mGenerator.deliverBurst(tag, BURST_SIZE, SENDER_COUNT, 0,
+                duplicateEvery);
+        long delivered = SystemClock.elapsedRealtime();
+
+        long peakHeap = heapBefore;
+        int retrieved = 0;
+        while (SystemClock.elapsedRealtime() - start < TIMEOUT_MS) {
+            retrieved = countRetrieved();
+            peakHeap = Math.max(peakHeap, getUsedHeap());
+            if (retrieved >= ids.size()) {
+                break;
+            }
+            SystemClock.sleep(POLL_INTERVAL_MS);
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        long totalQueueDelay = 0;
+        long maxQueueDelay = 0;
+        int fetched = 0;
+        for (String id : ids) {
+            long firstRetrieve = mMmsc.getFirstRetrieveTime(id);
+            if (firstRetrieve > 0) {
+                long delay = firstRetrieve - start;
+                totalQueueDelay += delay;
+                maxQueueDelay = Math.max(maxQueueDelay, delay);
+                fetched++;
+            }
+        }
+
+        Log.i(TAG, tag + ": " + retrieved + "/" + ids.size() + " messages in " + elapsed + " ms"
+                + " (" + (retrieved * 1000f / Math.max(elapsed, 1)) + " msg/s)"
+                + ", push delivery " + (delivered - start) + " ms"
+                + ", queueing delay avg " + (fetched > 0 ? totalQueueDelay / fetched : -1)
+                + " ms max " + maxQueueDelay + " ms"
+                + ", MMSC gets " + mMmsc.getRetrieveCount()
+                + " errors " + mMmsc.getErrorCount()
+                + ", heap growth peak " + ((peakHeap - heapBefore) / 1024) + " KB");
+
+        assertEquals("Not every message was retrieved", ids.size(), retrieved);
+    }
+
+    private int countRetrieved() {
+        Cursor cursor = getContext().getContentResolver().query(Mms.CONTENT_URI,
+                new String[] { Mms._ID },
+                Mms.CONTENT_LOCATION + " LIKE ? AND " + Mms.MESSAGE_TYPE + " = ?",
+                new String[] { mMmsc.getBaseUrl() + "%",
+                        String.valueOf(PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF) },
+                null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory() + Debug.getNativeHeapAllocatedSize();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import java.util.List;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.provider.Telephony.Mms;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.google.android.mms.pdu.PduHeaders;
+
+/**
+ * Replays a burst of WAP pushes in which the carrier resends some notifications, and
+ * compares NotificationIndex lookups with the provider query they replace.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.transaction.PushDuplicateBenchmark mms
+ */
+@LargeTest
+public class PushDuplicateBenchmark extends AndroidTestCase {
+    private static final String TAG = "PushDuplicateBenchmark";
+
+    private static final int BURST_SIZE = 100;
+    private static final int DUPLICATE_EVERY = 4;
+    private static final int LOOKUPS = 1000;
+    private static final long TIMEOUT_MS = 60 * 1000;
+    private static final long SETTLE_MS = 2000;
+
+    private StubMmsc mMmsc;
+    private WapPushGenerator mGenerator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMmsc = new StubMmsc();
+        // Fail every download so the notifications stay in the pdu table to be counted.
+        mMmsc.setErrorRate(1f);
+        mGenerator = new WapPushGenerator(getContext(), mMmsc);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().getContentResolver().delete(Mms.CONTENT_URI,
+                Mms.CONTENT_LOCATION + " LIKE ?", new String[] { mMmsc.getBaseUrl() + "%" });
+        NotificationIndex.getInstance().reset();
+        mMmsc.shutdown();
+        super.tearDown();
+    }
+
+    /**
+     * Every unique notification is stored once, and none of the resent ones.
+     */
+    public void testBurstWithDuplicates() {
+        String tag = "dup-" + System.currentTimeMillis();
+        long start = SystemClock.elapsedRealtime();
+        List<String> ids = mGenerator.deliverBurst(tag, BURST_SIZE, 5, 0, DUPLICATE_EVERY);
+
+        int stored = 0;
+        while (SystemClock.elapsedRealtime() - start < TIMEOUT_MS) {
+            stored = countStored();
+            if (stored >= ids.size()) {
+                break;
+            }
+            SystemClock.sleep(100);
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        // Give any duplicate which slipped through the time to show up.
+        SystemClock.sleep(SETTLE_MS);
+        stored = countStored();
+
+        Log.i(TAG, "stored " + stored + " of " + BURST_SIZE + " pushes (" + ids.size()
+                + " unique) in " + elapsed + " ms, index " + NotificationIndex.getInstance());
+        assertEquals(ids.size(), stored);
+    }
+
+    /**
+     * Lookup cost of the index against the provider query, for a mix of new and
+     * already stored content locations.
+     */
+    public void testLookupCost() {
+        String tag = "lookup-" + System.currentTimeMillis();
+        List<String> ids = mGenerator.deliverBurst(tag, BURST_SIZE, 5, 0, 0);
+        long start = SystemClock.elapsedRealtime();
+        while (countStored() < ids.size()
+                && SystemClock.elapsedRealtime() - start < TIMEOUT_MS) {
+            SystemClock.sleep(100);
+        }
+
+        NotificationIndex index = NotificationIndex.getInstance();
+        index.reset();
+        long loadStart = SystemClock.elapsedRealtime();
+        index.isDuplicate(getContext(), mMmsc.getContentLocation(ids.get(0)));
+        long loadTime = SystemClock.elapsedRealtime() - loadStart;
+
+        int duplicates = 0;
+        long indexStart = SystemClock.elapsedRealtime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (index.isDuplicate(getContext(), locationFor(tag, ids, i))) {
+                duplicates++;
+            }
+        }
+        long indexTime = SystemClock.elapsedRealtime() - indexStart;
+
+        int queried = 0;
+        long queryStart = SystemClock.elapsedRealtime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            if (queryLocation(locationFor(tag, ids, i))) {
+                queried++;
+            }
+        }
+        long queryTime = SystemClock.elapsedRealtime() - queryStart;
+
+        Log.i(TAG, LOOKUPS + " lookups: index " + indexTime + " ms (load " + loadTime
+                + " ms, " + index + "), provider " + queryTime + " ms");
+        assertEquals(queried, duplicates);
+    }
+
+    /**
+     * A location recently added is a duplicate without a query. Once it has left the LRU,
+     * only the bloom filter has it, and the provider decides: here it was never stored.
+     */
+    public void testBloomOnlyHitIsConfirmed() {
+        String tag = "bloom-" + System.currentTimeMillis();
+        String location = mMmsc.getContentLocation(tag);
+        NotificationIndex index = NotificationIndex.getInstance();
+        index.add(getContext(), location);
+        assertTrue(index.isDuplicate(getContext(), location));
+
+        for (int i = 0; i < NotificationIndex.RECENT_LOCATIONS; i++) {
+            index.add(getContext(), mMmsc.getContentLocation(tag + "-" + i));
+        }
+        assertFalse(index.isDuplicate(getContext(), location));
+    }
+
+    // Alternate between stored and never seen content locations.
+    private String locationFor(String tag, List<String> ids, int i) {
+        return (i % 2 == 0) ? mMmsc.getContentLocation(ids.get(i % ids.size()))
+                : mMmsc.getContentLocation(tag + "-new-" + i);
+    }
+
+    private boolean queryLocation(String location) {
+        Cursor cursor = getContext().getContentResolver().query(Mms.CONTENT_URI,
+                new String[] { Mms._ID }, Mms.CONTENT_LOCATION + " = ?",
+                new String[] { location }, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int countStored() {
+        Cursor cursor = getContext().getContentResolver().query(Mms.CONTENT_URI,
+                new String[] { Mms._ID },
+                Mms.CONTENT_LOCATION + " LIKE ? AND " + Mms.MESSAGE_TYPE + " = ?",
+                new String[] { mMmsc.getBaseUrl() + "%",
+                        String.valueOf(PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND) },
+                null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
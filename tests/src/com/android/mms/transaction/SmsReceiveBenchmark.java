@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import static android.provider.Telephony.Sms.Intents.SMS_DELIVER_ACTION;
+
+import java.io.ByteArrayOutputStream;
+
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.provider.Telephony.Sms;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Receive throughput of SmsReceiverService for a flood of synthetic
+ * SMS-DELIVER intents, as seen during alerts or OTP bursts.
+ *
+ * Mms must be the default SMS app for SmsReceiverService to store messages.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.transaction.SmsReceiveBenchmark mms
+ */
+@LargeTest
+public class SmsReceiveBenchmark extends AndroidTestCase {
+    private static final String TAG = "SmsReceiveBenchmark";
+
+    private static final String ADDRESS_PREFIX = "+1555000";
+    private static final int MESSAGE_COUNT = 200;
+    private static final int SENDER_COUNT = 10;
+    private static final long TIMEOUT_MS = 2 * 60 * 1000;
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().getContentResolver().delete(Sms.CONTENT_URI,
+                Sms.ADDRESS + " LIKE ?", new String[] { ADDRESS_PREFIX + "%" });
+        super.tearDown();
+    }
+
+    public void testReceiveFlood() {
+        int before = countReceived();
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            String address = ADDRESS_PREFIX + String.format("%04d", i % SENDER_COUNT);
+            Intent intent = new Intent(SMS_DELIVER_ACTION);
+            intent.setClass(getContext(), SmsReceiverService.class);
+            intent.putExtra("pdus", new Object[] { makeDeliverPdu(address, "Flood " + i) });
+            intent.putExtra("format", "3gpp");
+            getContext().startService(intent);
+        }
+
+        int received = 0;
+        while (SystemClock.elapsedRealtime() - start < TIMEOUT_MS) {
+            received = countReceived() - before;
+            if (received >= MESSAGE_COUNT) {
+                break;
+            }
+            SystemClock.sleep(100);
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "received " + received + " messages in " + elapsed + " ms ("
+                + (received * 1000f / Math.max(elapsed, 1)) + " msg/s)");
+        assertEquals(MESSAGE_COUNT, received);
+    }
+
+    private int countReceived() {
+        Cursor cursor = getContext().getContentResolver().query(Sms.Inbox.CONTENT_URI,
+                new String[] { Sms._ID }, Sms.ADDRESS + " LIKE ?",
+                new String[] { ADDRESS_PREFIX + "%" }, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Build a 3GPP SMS-DELIVER PDU with a 7-bit body. The body must only use
+     * characters common to ASCII and the GSM default alphabet.
+     */
+    private static byte[] makeDeliverPdu(String address, String body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x00);                // No SMSC address.
+        out.write(0x04);                // SMS-DELIVER, no more messages to send.
+
+        String digits = address.startsWith("+") ? address.substring(1) : address;
+        out.write(digits.length());
+        out.write(address.startsWith("+") ? 0x91 : 0x81);
+        for (int i = 0; i < digits.length(); i += 2) {
+            int low = digits.charAt(i) - '0';
+            int high = i + 1 < digits.length() ? digits.charAt(i + 1) - '0' : 0x0F;
+            out.write((high << 4) | low);
+        }
+
+        out.write(0x00);                // Protocol identifier.
+        out.write(0x00);                // GSM 7-bit default alphabet.
+        byte[] timestamp = new byte[] { 0x31, 0x01, 0x01, 0x21, 0x00, 0x00, 0x00 };
+        out.write(timestamp, 0, timestamp.length);
+
+        out.write(body.length());       // User data length in septets.
+        int accumulator = 0;
+        int bits = 0;
+        for (int i = 0; i < body.length(); i++) {
+            accumulator |= (body.charAt(i) & 0x7F) << bits;
+            bits += 7;
+            while (bits >= 8) {
+                out.write(accumulator & 0xFF);
+                accumulator >>>= 8;
+                bits -= 8;
+            }
+        }
+        if (bits > 0) {
+            out.write(accumulator & 0xFF);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.mms.pdu.GenericPdu;
+import com.google.android.mms.pdu.PduParser;
+import com.google.android.mms.pdu.SendReq;
+
+/**
+ * A stand-in MMSC listening on the loopback interface. It accepts M-Send.req
+ * POSTs and answers with M-Send.conf, and serves a generated M-Retrieve.conf
+ * for every GET of RETRIEVE_PATH + transaction id. Latency and HTTP errors can
+ * be injected to model a slow or flaky carrier.
+ */
+public class StubMmsc {
+    private static final String TAG = "StubMmsc";
+
+    public static final String RETRIEVE_PATH = "/retrieve/";
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final Random mRandom = new Random();
+
+    private volatile long mLatencyMs;
+    private volatile float mErrorRate;
+
+    private final AtomicInteger mSendCount = new AtomicInteger();
+    private final AtomicInteger mRetrieveCount = new AtomicInteger();
+    private final AtomicInteger mErrorCount = new AtomicInteger();
+    // Transaction id -> elapsed realtime of the first GET for it.
+    private final ConcurrentHashMap<String, Long> mFirstRetrieveTimes =
+            new ConcurrentHashMap<String, Long>();
+
+    public StubMmsc() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    public String getContentLocation(String transactionId) {
+        return getBaseUrl() + RETRIEVE_PATH + transactionId;
+    }
+
+    /**
+     * Delay every response by latencyMs.
+     */
+    public void setLatency(long latencyMs) {
+        mLatencyMs = latencyMs;
+    }
+
+    /**
+     * Answer the given fraction of requests, between 0 and 1, with HTTP 500.
+     */
+    public void setErrorRate(float errorRate) {
+        mErrorRate = errorRate;
+    }
+
+    public int getSendCount() {
+        return mSendCount.get();
+    }
+
+    public int getRetrieveCount() {
+        return mRetrieveCount.get();
+    }
+
+    public int getErrorCount() {
+        return mErrorCount.get();
+    }
+
+    /**
+     * @return the elapsed realtime of the first GET for the transaction id,
+     *         or -1 if it wasn't retrieved yet.
+     */
+    public long getFirstRetrieveTime(String transactionId) {
+        Long time = mFirstRetrieveTimes.get(transactionId);
+        return time != null ? time : -1;
+    }
+
+    public void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close failed", e);
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (!mServerSocket.isClosed()) {
+                    Log.w(TAG, "accept failed", e);
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            String requestLine = readLine(in);
+            if (requestLine == null) {
+                return;
+            }
+            int contentLength = 0;
+            String line;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && "content-length".equalsIgnoreCase(
+                        line.substring(0, colon).trim())) {
+                    contentLength = Integer.parseInt(line.substring(colon + 1).trim());
+                }
+            }
+            byte[] body = new byte[contentLength];
+            new DataInputStream(in).readFully(body);
+
+            if (mLatencyMs > 0) {
+                SystemClock.sleep(mLatencyMs);
+            }
+
+            OutputStream out = socket.getOutputStream();
+            if (mErrorRate > 0 && mRandom.nextFloat() < mErrorRate) {
+                mErrorCount.incrementAndGet();
+                writeResponse(out, 500, "Injected Error", new byte[0]);
+                return;
+            }
+
+            String[] parts = requestLine.split(" ");
+            if (parts.length >= 2 && "POST".equals(parts[0])) {
+                writeResponse(out, 200, "OK", handleSend(body));
+            } else if (parts.length >= 2 && "GET".equals(parts[0])
+                    && parts[1].startsWith(RETRIEVE_PATH)) {
+                writeResponse(out, 200, "OK",
+                        handleRetrieve(parts[1].substring(RETRIEVE_PATH.length())));
+            } else {
+                writeResponse(out, 404, "Not Found", new byte[0]);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "request failed", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    private byte[] handleSend(byte[] body) {
+        mSendCount.incrementAndGet();
+        GenericPdu pdu = new PduParser(body, false).parse();
+        byte[] transactionId = (pdu instanceof SendReq) ?
+                ((SendReq) pdu).getTransactionId() : null;
+        if (transactionId == null) {
+            // Acknowledgements and read reports just need a 200.
+            return new byte[0];
+        }
+        return TestPduEncoder.makeSendConf(transactionId, "stub-" + new String(transactionId));
+    }
+
+    private byte[] handleRetrieve(String transactionId) {
+        mRetrieveCount.incrementAndGet();
+        mFirstRetrieveTimes.putIfAbsent(transactionId, SystemClock.elapsedRealtime());
+        return TestPduEncoder.makeRetrieveConf("stub-" + transactionId, "+15555550100",
+                "Stub MMSC message " + transactionId);
+    }
+
+    private static void writeResponse(OutputStream out, int code, String reason, byte[] body)
+            throws IOException {
+        String head = "HTTP/1.1 " + code + " " + reason + "\r\n"
+                + "Content-Type: application/vnd.wap.mms-message\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        out.write(head.getBytes());
+        out.write(body);
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        if (c == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString();
+    }
+}
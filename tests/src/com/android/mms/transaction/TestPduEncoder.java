@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Encodes the few PDUs a carrier sends to the handset (M-Notification.ind,
+ * M-Send.conf and M-Retrieve.conf), which PduComposer can't produce.
+ * Only the fields needed by PduParser are written.
+ */
+public class TestPduEncoder {
+    private static final int MESSAGE_TYPE = 0x8C;
+    private static final int TRANSACTION_ID = 0x98;
+    private static final int MMS_VERSION = 0x8D;
+    private static final int MESSAGE_ID = 0x8B;
+    private static final int DATE = 0x85;
+    private static final int FROM = 0x89;
+    private static final int MESSAGE_CLASS = 0x8A;
+    private static final int MESSAGE_SIZE = 0x8E;
+    private static final int EXPIRY = 0x88;
+    private static final int CONTENT_LOCATION = 0x83;
+    private static final int RESPONSE_STATUS = 0x92;
+    private static final int CONTENT_TYPE = 0x84;
+
+    private static final int MESSAGE_TYPE_SEND_CONF = 0x81;
+    private static final int MESSAGE_TYPE_NOTIFICATION_IND = 0x82;
+    private static final int MESSAGE_TYPE_RETRIEVE_CONF = 0x84;
+    private static final int MMS_VERSION_1_2 = 0x92;
+    private static final int MESSAGE_CLASS_PERSONAL = 0x80;
+    private static final int RESPONSE_STATUS_OK = 0x80;
+    private static final int ADDRESS_PRESENT_TOKEN = 0x80;
+    private static final int RELATIVE_TOKEN = 0x81;
+    private static final int CONTENT_TYPE_MULTIPART_MIXED = 0xA3;
+    private static final int CONTENT_TYPE_TEXT_PLAIN = 0x83;
+    private static final int PARAMETER_CHARSET = 0x81;
+    private static final int CHARSET_UTF8 = 0xEA;
+
+    private TestPduEncoder() {
+    }
+
+    public static byte[] makeNotificationInd(String transactionId, String from,
+            String contentLocation, long messageSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MESSAGE_TYPE);
+        out.write(MESSAGE_TYPE_NOTIFICATION_IND);
+        out.write(TRANSACTION_ID);
+        writeTextString(out, transactionId);
+        out.write(MMS_VERSION);
+        out.write(MMS_VERSION_1_2);
+        writeFrom(out, from);
+        out.write(MESSAGE_CLASS);
+        out.write(MESSAGE_CLASS_PERSONAL);
+        out.write(MESSAGE_SIZE);
+        writeLongInteger(out, messageSize);
+        out.write(EXPIRY);
+        ByteArrayOutputStream expiry = new ByteArrayOutputStream();
+        expiry.write(RELATIVE_TOKEN);
+        writeLongInteger(expiry, 7 * 24 * 60 * 60);
+        writeValueLength(out, expiry.size());
+        out.write(expiry.toByteArray(), 0, expiry.size());
+        out.write(CONTENT_LOCATION);
+        writeTextString(out, contentLocation);
+        return out.toByteArray();
+    }
+
+    public static byte[] makeSendConf(byte[] transactionId, String messageId) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MESSAGE_TYPE);
+        out.write(MESSAGE_TYPE_SEND_CONF);
+        out.write(TRANSACTION_ID);
+        out.write(transactionId, 0, transactionId.length);
+        out.write(0);
+        out.write(MMS_VERSION);
+        out.write(MMS_VERSION_1_2);
+        out.write(RESPONSE_STATUS);
+        out.write(RESPONSE_STATUS_OK);
+        out.write(MESSAGE_ID);
+        writeTextString(out, messageId);
+        return out.toByteArray();
+    }
+
+    public static byte[] makeRetrieveConf(String messageId, String from, String text) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MESSAGE_TYPE);
+        out.write(MESSAGE_TYPE_RETRIEVE_CONF);
+        out.write(MMS_VERSION);
+        out.write(MMS_VERSION_1_2);
+        out.write(MESSAGE_ID);
+        writeTextString(out, messageId);
+        out.write(DATE);
+        writeLongInteger(out, System.currentTimeMillis() / 1000L);
+        writeFrom(out, from);
+        out.write(CONTENT_TYPE);
+        out.write(CONTENT_TYPE_MULTIPART_MIXED);
+
+        // A single text/plain; charset=utf-8 part.
+        byte[] headers = new byte[] {
+                3, (byte) CONTENT_TYPE_TEXT_PLAIN, (byte) PARAMETER_CHARSET, (byte) CHARSET_UTF8 };
+        byte[] data = text.getBytes();
+        writeUintvar(out, 1);
+        writeUintvar(out, headers.length);
+        writeUintvar(out, data.length);
+        out.write(headers, 0, headers.length);
+        out.write(data, 0, data.length);
+        return out.toByteArray();
+    }
+
+    private static void writeFrom(ByteArrayOutputStream out, String from) {
+        byte[] address = (from + "/TYPE=PLMN").getBytes();
+        out.write(FROM);
+        writeValueLength(out, address.length + 2);
+        out.write(ADDRESS_PRESENT_TOKEN);
+        out.write(address, 0, address.length);
+        out.write(0);
+    }
+
+    private static void writeTextString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes();
+        out.write(bytes, 0, bytes.length);
+        out.write(0);
+    }
+
+    private static void writeLongInteger(ByteArrayOutputStream out, long value) {
+        int length = 1;
+        for (long v = value >>> 8; v != 0; v >>>= 8) {
+            length++;
+        }
+        out.write(length);
+        for (int i = length - 1; i >= 0; i--) {
+            out.write((int) (value >>> (8 * i)) & 0xFF);
+        }
+    }
+
+    private static void writeValueLength(ByteArrayOutputStream out, int length) {
+        if (length < 31) {
+            out.write(length);
+        } else {
+            out.write(31);
+            writeUintvar(out, length);
+        }
+    }
+
+    private static void writeUintvar(ByteArrayOutputStream out, long value) {
+        int length = 1;
+        for (long v = value >>> 7; v != 0; v >>>= 7) {
+            length++;
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            out.write((int) ((value >>> (7 * i)) & 0x7F) | (i == 0 ? 0 : 0x80));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import static android.provider.Telephony.Sms.Intents.WAP_PUSH_DELIVER_ACTION;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+import com.google.android.mms.ContentType;
+
+/**
+ * Feeds PushReceiver synthetic M-Notification.ind WAP pushes which point at a
+ * StubMmsc, the way the framework delivers them from the radio.
+ */
+public class WapPushGenerator {
+    private static final long MESSAGE_SIZE = 2 * 1024;
+
+    private final Context mContext;
+    private final StubMmsc mMmsc;
+    private final PushReceiver mReceiver = new PushReceiver();
+    private int mNextId;
+
+    public WapPushGenerator(Context context, StubMmsc mmsc) {
+        mContext = context;
+        mMmsc = mmsc;
+    }
+
+    public Intent createPush(String transactionId, String from) {
+        byte[] pdu = TestPduEncoder.makeNotificationInd(transactionId, from,
+                mMmsc.getContentLocation(transactionId), MESSAGE_SIZE);
+        Intent intent = new Intent(WAP_PUSH_DELIVER_ACTION);
+        intent.setType(ContentType.MMS_MESSAGE);
+        intent.putExtra("data", pdu);
+        return intent;
+    }
+
+    public void deliver(Intent push) {
+        mReceiver.onReceive(mContext, push);
+    }
+
+    /**
+     * Deliver count pushes from senderCount different senders, intervalMs apart.
+     *
+     * @param duplicateEvery if greater than zero, every duplicateEvery-th push
+     *         repeats the previous transaction id, as carriers sometimes do.
+     * @return the unique transaction ids delivered, in order.
+     */
+    public List<String> deliverBurst(String tag, int count, int senderCount,
+            long intervalMs, int duplicateEvery) {
+        ArrayList<String> ids = new ArrayList<String>(count);
+        String previous = null;
+        for (int i = 0; i < count; i++) {
+            String transactionId;
+            if (previous != null && duplicateEvery > 0 && (i % duplicateEvery) == 0) {
+                transactionId = previous;
+            } else {
+                transactionId = tag + "-" + (mNextId++);
+                ids.add(transactionId);
+            }
+            String from = "+1555555" + String.format("%04d", i % Math.max(senderCount, 1));
+            deliver(createPush(transactionId, from));
+            previous = transactionId;
+            if (intervalMs > 0) {
+                SystemClock.sleep(intervalMs);
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.Telephony.Mms;
+import android.provider.Telephony.Threads;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.google.android.mms.pdu.PduHeaders;
+
+/**
+ * Tests that the download states DownloadManager keeps in memory agree with the
+ * provider, including after the process restarts.
+ *
+ * To run the test:
+ *    runtest --test-class=com.android.mms.util.DownloadManagerTests mms
+ */
+@MediumTest
+public class DownloadManagerTests extends AndroidTestCase {
+    private static final String ADDRESS = "+15550009876";
+    private static final long WRITE_TIMEOUT_MS = 5000;
+
+    private Uri mUri;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // MmsApp has already initialized the DownloadManager of the process.
+
+        ContentValues values = new ContentValues();
+        values.put(Mms.THREAD_ID, Threads.getOrCreateThreadId(getContext(), ADDRESS));
+        values.put(Mms.MESSAGE_BOX, Mms.MESSAGE_BOX_INBOX);
+        values.put(Mms.MESSAGE_TYPE, PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND);
+        values.put(Mms.CONTENT_LOCATION, "http://mmsc.example.com/" + System.nanoTime());
+        values.put(Mms.EXPIRY, System.currentTimeMillis() / 1000L + 3600);
+        values.put(Mms.STATUS, DownloadManager.STATE_UNSTARTED);
+        mUri = getContext().getContentResolver().insert(Mms.Inbox.CONTENT_URI, values);
+        assertNotNull(mUri);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().getContentResolver().delete(mUri, null, null);
+        super.tearDown();
+    }
+
+    /**
+     * A marked state is seen at once, before it reaches the provider.
+     */
+    public void testMarkedStateIsImmediate() {
+        DownloadManager manager = DownloadManager.getInstance();
+        manager.markState(mUri, DownloadManager.STATE_DOWNLOADING);
+        assertEquals(DownloadManager.STATE_DOWNLOADING, manager.getState(mUri));
+
+        // A stale STATUS column read by the message list doesn't win over it.
+        int status = manager.getState(mUri, DownloadManager.STATE_UNSTARTED);
+        assertEquals(DownloadManager.STATE_DOWNLOADING, status & ~DownloadManager.DEFERRED_MASK);
+    }
+
+    /**
+     * The marked state is written through, so a new DownloadManager, as after a process
+     * restart, reads the same state.
+     */
+    public void testStateSurvivesRestart() {
+        DownloadManager.getInstance().markState(mUri, DownloadManager.STATE_TRANSIENT_FAILURE);
+
+        long start = SystemClock.elapsedRealtime();
+        while (queryState() != DownloadManager.STATE_TRANSIENT_FAILURE
+                && SystemClock.elapsedRealtime() - start < WRITE_TIMEOUT_MS) {
+            SystemClock.sleep(20);
+        }
+        assertEquals(DownloadManager.STATE_TRANSIENT_FAILURE, queryState());
+
+        // Replaces the instance, releasing the old one.
+        DownloadManager.init(getContext());
+        assertEquals(DownloadManager.STATE_TRANSIENT_FAILURE,
+                DownloadManager.getInstance().getState(mUri));
+    }
+
+    private int queryState() {
+        Cursor cursor = getContext().getContentResolver().query(mUri,
+                new String[] { Mms.STATUS }, null, null, null);
+        if (cursor == null) {
+            return DownloadManager.STATE_UNKNOWN;
+        }
+        try {
+            return cursor.moveToFirst() ?
+                    cursor.getInt(0) & ~DownloadManager.DEFERRED_MASK :
+                    DownloadManager.STATE_UNKNOWN;
+        } finally {
+            cursor.close();
+        }
+    }
+}